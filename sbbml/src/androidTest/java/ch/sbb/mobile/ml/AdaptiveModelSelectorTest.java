@@ -0,0 +1,52 @@
+package ch.sbb.mobile.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class AdaptiveModelSelectorTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void switchesOnlyAfterFullWindowOutsideBand() {
+        AdaptiveModelSelector selector = new AdaptiveModelSelector(3, 1, 40 * MS, 100 * MS);
+
+        // too slow, but the window is not full yet
+        for (int i = 0; i < AdaptiveModelSelector.WINDOW_SIZE; i++) {
+            assertThat(selector.onInference(150 * MS)).isEqualTo(1);
+        }
+        assertThat(selector.onInference(150 * MS)).isEqualTo(0);
+
+        // the smallest model can not get smaller
+        for (int i = 0; i <= 2 * AdaptiveModelSelector.WINDOW_SIZE; i++) {
+            assertThat(selector.onInference(150 * MS)).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void staysInsideBandAndGrowsWhenFast() {
+        AdaptiveModelSelector selector = new AdaptiveModelSelector(3, 0, 40 * MS, 100 * MS);
+
+        for (int i = 0; i <= 3 * AdaptiveModelSelector.WINDOW_SIZE; i++) {
+            assertThat(selector.onInference(70 * MS)).isEqualTo(0);
+        }
+
+        // a single spike does not move the average out of the band
+        assertThat(selector.onInference(300 * MS)).isEqualTo(0);
+
+        // the window started over after the switch, so each step needs a full window
+        for (int i = 0; i <= AdaptiveModelSelector.WINDOW_SIZE; i++) {
+            selector.onInference(10 * MS);
+        }
+        assertThat(selector.getSelected()).isEqualTo(1);
+        for (int i = 0; i <= AdaptiveModelSelector.WINDOW_SIZE; i++) {
+            selector.onInference(10 * MS);
+        }
+        assertThat(selector.getSelected()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,59 @@
+package ch.sbb.mobile.ml;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static com.google.common.truth.Truth.assertThat;
+import static ch.sbb.mobile.ml.TestHelper.loadImage;
+import android.graphics.Bitmap;
+import android.util.Size;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class BatchDetectorTest {
+
+    private BatchDetector batchDetector;
+
+    @Before
+    public void setUp() throws Exception {
+        MLSettings mlSettings = new MLSettings(new Size(640, 480), "wagen_yolov5n_448_float32.tflite", 448);
+        batchDetector = new BatchDetector(getApplicationContext(), mlSettings, 4);
+    }
+
+    @After
+    public void tearDown() {
+        batchDetector.close();
+        ModelCache.getInstance().clear();
+    }
+
+    @Test
+    public void resultsPerImageInOrder() throws Exception {
+        Bitmap bitmap = loadImage("wagen_448.jpg");
+        Bitmap empty = Bitmap.createBitmap(448, 448, Bitmap.Config.ARGB_8888);
+        List<List<MLRecognition>> results = batchDetector.detectBitmaps(Arrays.asList(bitmap, empty, bitmap, bitmap, empty));
+
+        assertThat(results.size()).isEqualTo(5);
+        assertThat(results.get(0).size()).isEqualTo(13);
+        assertThat(results.get(1).size()).isEqualTo(0);
+        assertThat(results.get(2).size()).isEqualTo(13);
+        assertThat(results.get(3).size()).isEqualTo(13);
+        assertThat(results.get(4).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void resultsInSourceImageCoordinates() throws Exception {
+        Bitmap bitmap = loadImage("wagen_448.jpg");
+        Bitmap doubled = Bitmap.createScaledBitmap(bitmap, 896, 896, true);
+        MLRecognition original = batchDetector.detectBitmaps(Collections.singletonList(bitmap)).get(0).get(0);
+        List<MLRecognition> scaled = batchDetector.detectBitmaps(Collections.singletonList(doubled)).get(0);
+
+        assertThat(scaled.size()).isEqualTo(13);
+        assertThat(scaled.get(0).getLocation().width()).isWithin(8f).of(2 * original.getLocation().width());
+        assertThat(scaled.get(0).getLocation().height()).isWithin(8f).of(2 * original.getLocation().height());
+    }
+}
@@ -0,0 +1,73 @@
+package ch.sbb.mobile.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class DetectionBufferTest {
+
+    @Test
+    public void filterKeepsOrderOfRemaining() {
+        DetectionBuffer buffer = new DetectionBuffer(4);
+        buffer.add(0, 0, 50, 50, 0.9f, 0);
+        buffer.add(0, 0, 50, 50, 0.2f, 1);
+        buffer.add(0, 0, 5, 50, 0.9f, 2);
+        buffer.add(10, 10, 60, 60, 0.6f, 3);
+
+        buffer.filter(0.5f, 10);
+
+        assertThat(buffer.size()).isEqualTo(2);
+        assertThat(buffer.getLabelId(0)).isEqualTo(0);
+        assertThat(buffer.getLabelId(1)).isEqualTo(3);
+        assertThat(buffer.getLeft(1)).isEqualTo(10f);
+    }
+
+    @Test
+    public void addStopsAtCapacity() {
+        DetectionBuffer buffer = new DetectionBuffer(1);
+
+        assertThat(buffer.add(0, 0, 1, 1, 0.5f, 0)).isTrue();
+        assertThat(buffer.add(0, 0, 1, 1, 0.5f, 0)).isFalse();
+        assertThat(buffer.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void transformMapsLocationsInPlace() {
+        DetectionBuffer buffer = new DetectionBuffer(1);
+        buffer.add(10, 20, 30, 40, 0.5f, 0);
+        Matrix matrix = new Matrix();
+        matrix.setScale(2, 3);
+
+        buffer.transform(matrix);
+
+        RectF location = new RectF();
+        buffer.getLocation(0, location);
+        assertThat(location).isEqualTo(new RectF(20, 60, 60, 120));
+    }
+
+    @Test
+    public void convertsToRecognitions() {
+        DetectionBuffer buffer = new DetectionBuffer(2);
+        buffer.setLabels(Arrays.asList("wagen", "lok"));
+        buffer.add(10, 20, 30, 40, 0.7f, 1);
+
+        DetectionBuffer copy = new DetectionBuffer(2);
+        copy.copyFrom(buffer);
+        List<MLRecognition> recognitions = copy.toRecognitions();
+
+        assertThat(recognitions).hasSize(1);
+        assertThat(recognitions.get(0).getTitle()).isEqualTo("lok");
+        assertThat(recognitions.get(0).getConfidence()).isEqualTo(0.7f);
+        assertThat(recognitions.get(0).getLocation()).isEqualTo(new RectF(10, 20, 30, 40));
+    }
+}
@@ -0,0 +1,65 @@
+package ch.sbb.mobile.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class DetectionSchedulerTest {
+
+    private static final long MS = 1_000_000L;
+    private static final long MIN_INTERVAL = 100 * MS;
+    private static final long MAX_INTERVAL = 2000 * MS;
+
+    private boolean stable(DetectionScheduler scheduler, long nowNanos) {
+        return scheduler.shouldDetect(nowNanos, MIN_INTERVAL, MAX_INTERVAL, 200, 0.05f, 0.001f, 0.9f);
+    }
+
+    @Test
+    public void firstFrameIsDetected() {
+        DetectionScheduler scheduler = new DetectionScheduler();
+        assertThat(stable(scheduler, 0)).isTrue();
+    }
+
+    @Test
+    public void stableSceneIsDetectedAfterMaxInterval() {
+        DetectionScheduler scheduler = new DetectionScheduler();
+        assertThat(stable(scheduler, 0)).isTrue();
+
+        for (long t = 33 * MS; t < MAX_INTERVAL; t += 33 * MS) {
+            assertThat(stable(scheduler, t)).isFalse();
+        }
+        assertThat(stable(scheduler, MAX_INTERVAL)).isTrue();
+        assertThat(stable(scheduler, MAX_INTERVAL + 33 * MS)).isFalse();
+    }
+
+    @Test
+    public void motionTriggersDetectionAfterMinInterval() {
+        DetectionScheduler scheduler = new DetectionScheduler();
+        assertThat(stable(scheduler, 0)).isTrue();
+
+        assertThat(scheduler.shouldDetect(50 * MS, MIN_INTERVAL, MAX_INTERVAL, 200, 0.05f, 0.05f, 0.9f)).isFalse();
+        assertThat(scheduler.shouldDetect(MIN_INTERVAL, MIN_INTERVAL, MAX_INTERVAL, 200, 0.05f, 0.05f, 0.9f)).isTrue();
+        // the interval starts again with the detection
+        assertThat(scheduler.shouldDetect(MIN_INTERVAL + 50 * MS, MIN_INTERVAL, MAX_INTERVAL, 200, 0.05f, 0.05f, 0.9f)).isFalse();
+    }
+
+    @Test
+    public void churnAndLowCorrelationTriggerDetection() {
+        DetectionScheduler scheduler = new DetectionScheduler();
+        assertThat(stable(scheduler, 0)).isTrue();
+        assertThat(scheduler.shouldDetect(200 * MS, MIN_INTERVAL, MAX_INTERVAL, 200, 0.5f, 0.001f, 0.9f)).isTrue();
+        assertThat(scheduler.shouldDetect(400 * MS, MIN_INTERVAL, MAX_INTERVAL, 200, 0.05f, 0.001f, 0.3f)).isTrue();
+        assertThat(stable(scheduler, 600 * MS)).isFalse();
+    }
+
+    @Test
+    public void missingKeypointsTriggerDetection() {
+        DetectionScheduler scheduler = new DetectionScheduler();
+        assertThat(stable(scheduler, 0)).isTrue();
+        assertThat(scheduler.shouldDetect(200 * MS, MIN_INTERVAL, MAX_INTERVAL, 0, 0, 0, 1)).isTrue();
+    }
+}
@@ -2,19 +2,41 @@ package ch.sbb.mobile.ml;
 
 import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
 import static com.google.common.truth.Truth.assertThat;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.ImageWriter;
+import android.os.SystemClock;
 import android.util.Size;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 @RunWith(AndroidJUnit4.class)
 public class FrameProcessorTest  {
 
+    private static final long TIMEOUT_MS = 5000;
+
     private FrameProcessor frameProcessor;
     private MLSettings mlSettings;
+    // camera frames written by the test
+    private ImageReader imageReader;
+    private ImageWriter imageWriter;
+    // the stages of the processor, the detection thread is blocked until the test releases it
+    private ExecutorService trackingExecutor;
+    private ExecutorService detectionExecutor;
+    private final CountDownLatch detectionBlocked = new CountDownLatch(1);
+    private final AtomicInteger trackedFrames = new AtomicInteger();
+    private final AtomicReference<MLMetrics> latestMetrics = new AtomicReference<>();
 
     @Before
     public void setUp() {
@@ -22,12 +44,58 @@ public class FrameProcessorTest  {
         mlSettings.setPreviewSize(new Size(640, 480));
     }
 
+    @After
+    public void tearDown() {
+        detectionBlocked.countDown();
+        if (imageWriter != null) {
+            imageWriter.close();
+        }
+        if (imageReader != null) {
+            imageReader.close();
+        }
+    }
+
     @Test
-    public void canReserver2Buffers() throws Exception {
+    public void canReserveDefault3Buffers() throws Exception {
+        assertThat(mlSettings.getNumberOfFrameBuffers()).isEqualTo(3);
+        frameProcessor = new FrameProcessor(getApplicationContext(), mlSettings, 0, new FrameProcessor.FrameProcessorListener() {
+            @Override
+            public void foundObjects(DetectionBuffer objects) {
+
+            }
+
+            @Override
+            public void error(String errorMsg) {
+                Assert.fail(errorMsg);
+            }
+
+            @Override
+            public void info(Size frameInfo, Size scaleInfo, int inferenceTime) {
+
+            }
+        });
 
+        int index0 = frameProcessor.reserveBuffer();
+        int index1 = frameProcessor.reserveBuffer();
+        int index2 = frameProcessor.reserveBuffer();
+        int index3 = frameProcessor.reserveBuffer();
+
+        assertThat(index0).isEqualTo(0);
+        assertThat(index1).isEqualTo(1);
+        assertThat(index2).isEqualTo(2);
+        assertThat(index3).isEqualTo(-1);
+
+        frameProcessor.freeBuffer(1);
+        int index4 = frameProcessor.reserveBuffer();
+        assertThat(index4).isEqualTo(1);
+    }
+
+    @Test
+    public void canReserver2Buffers() throws Exception {
+        mlSettings.setNumberOfFrameBuffers(2);
         frameProcessor = new FrameProcessor(getApplicationContext(), mlSettings, 0, new FrameProcessor.FrameProcessorListener() {
             @Override
-            public void foundObjects(List<MultiBoxTracker.TrackedRecognition> objectList) {
+            public void foundObjects(DetectionBuffer objects) {
 
             }
 
@@ -54,4 +122,273 @@ public class FrameProcessorTest  {
         int index3 = frameProcessor.reserveBuffer();
         assertThat(index3).isEqualTo(1);
     }
+
+    @Test
+    public void canReserveConfiguredNumberOfBuffers() throws Exception {
+        mlSettings.setNumberOfFrameBuffers(4);
+        frameProcessor = new FrameProcessor(getApplicationContext(), mlSettings, 0, new FrameProcessor.FrameProcessorListener() {
+            @Override
+            public void foundObjects(DetectionBuffer objects) {
+
+            }
+
+            @Override
+            public void error(String errorMsg) {
+                Assert.fail(errorMsg);
+            }
+
+            @Override
+            public void info(Size frameInfo, Size scaleInfo, int inferenceTime) {
+
+            }
+        });
+
+        for (int i = 0; i < 4; i++) {
+            assertThat(frameProcessor.reserveBuffer()).isEqualTo(i);
+        }
+        assertThat(frameProcessor.reserveBuffer()).isEqualTo(-1);
+
+        // freed slots are handed out again, the ring continues after the last reserved slot
+        frameProcessor.freeBuffer(2);
+        frameProcessor.freeBuffer(0);
+        assertThat(frameProcessor.reserveBuffer()).isEqualTo(0);
+        assertThat(frameProcessor.reserveBuffer()).isEqualTo(2);
+        assertThat(frameProcessor.reserveBuffer()).isEqualTo(-1);
+    }
+
+    @Test
+    public void onlyCameraSettingsNeedRestart() throws Exception {
+        frameProcessor = new FrameProcessor(getApplicationContext(), mlSettings, 0, new FrameProcessor.FrameProcessorListener() {
+            @Override
+            public void foundObjects(DetectionBuffer objects) {
+
+            }
+
+            @Override
+            public void error(String errorMsg) {
+                Assert.fail(errorMsg);
+            }
+
+            @Override
+            public void info(Size frameInfo, Size scaleInfo, int inferenceTime) {
+
+            }
+        });
+
+        MLSettings liveSettings = new MLSettings(new Size(640, 480), "wagen_yolov5n_448_float32.tflite", 448);
+        liveSettings.setPreviewSize(new Size(640, 480));
+        liveSettings.setNumberOfThreds(2);
+        liveSettings.setMinimumConfidence(0.3f);
+        liveSettings.setUseTracker(false);
+        assertThat(frameProcessor.canUpdateSettings(liveSettings)).isTrue();
+
+        MLSettings cameraSettings = new MLSettings(new Size(640, 480), "wagen_yolov5n_448_float32.tflite", 448);
+        cameraSettings.setNumberOfFrameBuffers(mlSettings.getNumberOfFrameBuffers() + 1);
+        assertThat(frameProcessor.canUpdateSettings(cameraSettings)).isFalse();
+
+        frameProcessor.updateSettings(liveSettings);
+        frameProcessor.onStop();
+    }
+
+    @Test
+    public void becomesReadyAfterLoadingInBackground() throws Exception {
+        CountDownLatch ready = new CountDownLatch(1);
+        frameProcessor = new FrameProcessor(getApplicationContext(), mlSettings, 0, new FrameProcessor.FrameProcessorListener() {
+            @Override
+            public void foundObjects(DetectionBuffer objects) {
+
+            }
+
+            @Override
+            public void error(String errorMsg) {
+                Assert.fail(errorMsg);
+            }
+
+            @Override
+            public void info(Size frameInfo, Size scaleInfo, int inferenceTime) {
+
+            }
+
+            @Override
+            public void ready() {
+                ready.countDown();
+            }
+
+            @Override
+            public void initializationFailed(String errorMsg) {
+                Assert.fail(errorMsg);
+            }
+        });
+
+        // the constructor returns before the model is loaded
+        assertThat(ready.await(30, TimeUnit.SECONDS)).isTrue();
+        frameProcessor.onStop();
+    }
+
+    @Test
+    public void newerFrameReplacesTheWaitingOneAndReleasesIt() throws Exception {
+        startWithBlockedDetection();
+        final Image[] images = new Image[3];
+        for (int i = 0; i < images.length; i++) {
+            assertThat(frameProcessor.reserveBuffer()).isEqualTo(i);
+            images[i] = nextCameraImage();
+            frameProcessor.processImage(images[i], i);
+        }
+        awaitTracking();
+
+        // the first two frames were replaced in the mailbox, the last one waits for the detector
+        assertThat(isClosed(images[0])).isTrue();
+        assertThat(isClosed(images[1])).isTrue();
+        assertThat(isClosed(images[2])).isFalse();
+        assertThat(frameProcessor.reserveBuffer()).isEqualTo(0);
+        assertThat(frameProcessor.reserveBuffer()).isEqualTo(1);
+        assertThat(frameProcessor.reserveBuffer()).isEqualTo(-1);
+
+        frameProcessor.onStop();
+    }
+
+    @Test
+    public void trackingContinuesWhileDetectionIsBusy() throws Exception {
+        startWithBlockedDetection();
+        // more frames than buffers, the frames replaced in the mailbox free their buffers
+        final int frames = 10;
+        for (int i = 0; i < frames; i++) {
+            frameProcessor.processImage(nextCameraImage(), awaitFreeBuffer());
+        }
+        awaitTracking();
+
+        assertThat(trackedFrames.get()).isEqualTo(frames);
+        frameProcessor.onStop();
+    }
+
+    @Test
+    public void onStopDrainsBothThreads() throws Exception {
+        startWithBlockedDetection();
+        final Image[] images = new Image[3];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = nextCameraImage();
+            frameProcessor.processImage(images[i], frameProcessor.reserveBuffer());
+        }
+
+        frameProcessor.onStop();
+        // the queued frames are tracked, the detection thread is still busy
+        assertThat(trackingExecutor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(trackedFrames.get()).isEqualTo(images.length);
+        assertThat(detectionExecutor.isShutdown()).isTrue();
+        assertThat(detectionExecutor.isTerminated()).isFalse();
+
+        detectionBlocked.countDown();
+        assertThat(detectionExecutor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        // the frame in the mailbox was released as well
+        for (final Image image : images) {
+            assertThat(isClosed(image)).isTrue();
+        }
+        for (int i = 0; i < images.length; i++) {
+            assertThat(frameProcessor.reserveBuffer()).isAtLeast(0);
+        }
+    }
+
+    @Test
+    public void countsOfferedAcquiredAndDroppedFrames() throws Exception {
+        // a snapshot after every tracked frame
+        mlSettings.setMetricsIntervalMs(1);
+        startWithBlockedDetection();
+        for (int i = 0; i < 3; i++) {
+            assertThat(frameProcessor.reserveBuffer()).isEqualTo(i);
+        }
+        assertThat(frameProcessor.reserveBuffer()).isEqualTo(-1);
+        assertThat(frameProcessor.reserveBuffer()).isEqualTo(-1);
+        for (int i = 0; i < 3; i++) {
+            frameProcessor.processImage(nextCameraImage(), i);
+        }
+        awaitTracking();
+        // one more frame after the interval, its snapshot counts all the frames before
+        Thread.sleep(5);
+        frameProcessor.processImage(nextCameraImage(), awaitFreeBuffer());
+        awaitTracking();
+
+        final MLMetrics metrics = latestMetrics.get();
+        assertThat(metrics).isNotNull();
+        assertThat(metrics.getFramesOffered()).isEqualTo(6L);
+        assertThat(metrics.getFramesAcquired()).isEqualTo(4L);
+        assertThat(metrics.getFramesDropped(MLMetrics.DropReason.NO_FREE_BUFFER)).isEqualTo(2L);
+        assertThat(metrics.getFramesOffered()).isEqualTo(
+                metrics.getFramesAcquired() + metrics.getFramesDropped(MLMetrics.DropReason.NO_FREE_BUFFER));
+        // every frame but the last one was replaced in the mailbox while the detector was busy
+        assertThat(metrics.getFramesTracked()).isEqualTo(4L);
+        assertThat(metrics.getFramesDropped(MLMetrics.DropReason.DETECTOR_BUSY)).isEqualTo(3L);
+        assertThat(metrics.getFramesDetected()).isEqualTo(0L);
+        frameProcessor.onStop();
+    }
+
+    private void startWithBlockedDetection() {
+        imageReader = ImageReader.newInstance(640, 480, ImageFormat.YUV_420_888, mlSettings.getNumberOfFrameBuffers() + 1);
+        imageWriter = ImageWriter.newInstance(imageReader.getSurface(), mlSettings.getNumberOfFrameBuffers() + 1);
+        trackingExecutor = Executors.newSingleThreadExecutor();
+        detectionExecutor = Executors.newSingleThreadExecutor();
+        detectionExecutor.execute(() -> {
+            try {
+                detectionBlocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        frameProcessor = new FrameProcessor(getApplicationContext(), mlSettings, 0, new FrameProcessor.FrameProcessorListener() {
+            @Override
+            public void foundObjects(DetectionBuffer objects) {
+                // the detection thread is blocked, only the tracking thread publishes
+                trackedFrames.incrementAndGet();
+            }
+
+            @Override
+            public void error(String errorMsg) {
+                Assert.fail(errorMsg);
+            }
+
+            @Override
+            public void info(Size frameInfo, Size scaleInfo, int inferenceTime) {
+
+            }
+
+            @Override
+            public void metrics(MLMetrics metrics) {
+                latestMetrics.set(metrics);
+            }
+        }, trackingExecutor, detectionExecutor);
+    }
+
+    private Image nextCameraImage() throws Exception {
+        imageWriter.queueInputImage(imageWriter.dequeueInputImage());
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        Image image;
+        while ((image = imageReader.acquireNextImage()) == null) {
+            assertThat(SystemClock.uptimeMillis()).isLessThan(deadline);
+            Thread.sleep(5);
+        }
+        return image;
+    }
+
+    private int awaitFreeBuffer() throws Exception {
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        int index;
+        while ((index = frameProcessor.reserveBuffer()) < 0) {
+            assertThat(SystemClock.uptimeMillis()).isLessThan(deadline);
+            Thread.sleep(5);
+        }
+        return index;
+    }
+
+    // the tracking thread runs one task after the other, it is done with the frames queued before
+    private void awaitTracking() throws Exception {
+        trackingExecutor.submit(() -> {}).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isClosed(Image image) {
+        try {
+            image.getTimestamp();
+            return false;
+        } catch (IllegalStateException e) {
+            return true;
+        }
+    }
 }
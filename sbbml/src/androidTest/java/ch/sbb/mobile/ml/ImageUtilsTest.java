@@ -2,9 +2,12 @@ package ch.sbb.mobile.ml;
 
 import static com.google.common.truth.Truth.assertThat;
 import android.graphics.Matrix;
+import android.graphics.RectF;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 @RunWith(AndroidJUnit4.class)
 public class ImageUtilsTest  {
@@ -26,4 +29,110 @@ public class ImageUtilsTest  {
         matrix.setValues(f);
         assertThat(transformationMatrix).isEqualTo(matrix);
     }
+
+    @Test
+    public void tilesOverlapAndCoverFrame() {
+        RectF[] tiles = ImageUtils.getTiles(640, 480, 2, 2, 0.2f);
+
+        assertThat(tiles.length).isEqualTo(4);
+        assertThat(tiles[0]).isEqualTo(new RectF(0, 0, 356, 267));
+        assertThat(tiles[1]).isEqualTo(new RectF(284, 0, 640, 267));
+        assertThat(tiles[2]).isEqualTo(new RectF(0, 213, 356, 480));
+        assertThat(tiles[3]).isEqualTo(new RectF(284, 213, 640, 480));
+    }
+
+    @Test
+    public void tileTransformationStartsAtTile() {
+        Matrix transformationMatrix = ImageUtils.getTileTransformationMatrix(new RectF(284, 213, 640, 480), 712, 534, 0, false);
+        float[] points = {284, 213, 640, 480};
+        transformationMatrix.mapPoints(points);
+
+        assertThat(points[0]).isWithin(0.001f).of(0f);
+        assertThat(points[1]).isWithin(0.001f).of(0f);
+        assertThat(points[2]).isWithin(0.001f).of(712f);
+        assertThat(points[3]).isWithin(0.001f).of(534f);
+    }
+
+    @Test
+    public void convertYUV420ToRotatedTensor() {
+        // 4x2 frame with grey chroma, so every channel is the converted luminance
+        byte[] y = {20, 40, 60, 80, 100, 120, (byte) 140, (byte) 160};
+        byte[] u = {(byte) 128, (byte) 128, (byte) 128, (byte) 128};
+        byte[] v = {(byte) 128, (byte) 128, (byte) 128, (byte) 128};
+
+        Matrix frameToTensor = ImageUtils.getTransformationMatrix(4, 2, 2, 4, 90, false);
+        Matrix tensorToFrame = new Matrix();
+        frameToTensor.invert(tensorToFrame);
+        float[] tensorToFrameValues = new float[9];
+        tensorToFrame.getValues(tensorToFrameValues);
+
+        ByteBuffer uint8Tensor = ByteBuffer.allocateDirect(2 * 4 * 3);
+        ImageUtils.convertYUV420ToTensor(y, u, v, 4, 2, 4, 2, 1, tensorToFrameValues, uint8Tensor, 2, 4, ImageUtils.TENSOR_UINT8);
+
+        // tensor pixel (x, y) comes from frame pixel (y, 1 - x)
+        assertThat(uint8Tensor.get(0) & 0xff).isEqualTo(97);   // frame (0, 1), luminance 100
+        assertThat(uint8Tensor.get(3) & 0xff).isEqualTo(4);    // frame (0, 0), luminance 20
+        assertThat(uint8Tensor.get(21) & 0xff).isEqualTo(74);  // frame (3, 0), luminance 80
+
+        ByteBuffer floatTensor = ByteBuffer.allocateDirect(2 * 4 * 3 * 4).order(ByteOrder.nativeOrder());
+        ImageUtils.convertYUV420ToTensor(y, u, v, 4, 2, 4, 2, 1, tensorToFrameValues, floatTensor, 2, 4, ImageUtils.TENSOR_FLOAT32);
+        for (int i = 0; i < 2 * 4 * 3; i++) {
+            assertThat(floatTensor.getFloat(i * 4)).isEqualTo((float) (uint8Tensor.get(i) & 0xff));
+        }
+    }
+
+    @Test
+    public void convertYUV420ToInt8Tensor() {
+        byte[] y = {100, 100, 100, 100};
+        byte[] uv = {(byte) 128};
+        float[] identity = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+
+        ByteBuffer int8Tensor = ByteBuffer.allocateDirect(2 * 2 * 3);
+        ImageUtils.convertYUV420ToTensor(y, uv, uv, 2, 2, 2, 1, 1, identity, int8Tensor, 2, 2, ImageUtils.TENSOR_INT8);
+
+        // 97 shifted by the zero point of -128
+        for (int i = 0; i < 2 * 2 * 3; i++) {
+            assertThat(int8Tensor.get(i)).isEqualTo((byte) -31);
+        }
+    }
+
+    @Test
+    public void convertYUV420BuffersMatchesArrays() {
+        // 4x2 frame with a padded luminance row stride of 6, as delivered by some cameras
+        byte[] y = {20, 40, 60, 80, 0, 0, 100, 120, (byte) 140, (byte) 160, 0, 0};
+        byte[] u = {(byte) 100, (byte) 150};
+        byte[] v = {(byte) 200, (byte) 50};
+        float[] identity = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+
+        ByteBuffer fromArrays = ByteBuffer.allocateDirect(4 * 2 * 3);
+        ImageUtils.convertYUV420ToTensor(y, u, v, 4, 2, 6, 2, 1, identity, fromArrays, 4, 2, ImageUtils.TENSOR_UINT8);
+
+        ByteBuffer fromBuffers = ByteBuffer.allocateDirect(4 * 2 * 3);
+        ImageUtils.convertYUV420BuffersToTensor(directCopy(y), directCopy(u), directCopy(v), 4, 2, 6, 2, 1, identity, fromBuffers, 4, 2, ImageUtils.TENSOR_UINT8);
+
+        assertThat(fromBuffers).isEqualTo(fromArrays);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void convertYUV420BuffersRejectsTooSmallLuminance() {
+        // a row stride of 6 needs 6 + 4 bytes for two rows
+        float[] identity = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        ImageUtils.convertYUV420BuffersToTensor(ByteBuffer.allocateDirect(8), ByteBuffer.allocateDirect(2), ByteBuffer.allocateDirect(2),
+                4, 2, 6, 2, 1, identity, ByteBuffer.allocateDirect(4 * 2 * 3), 4, 2, ImageUtils.TENSOR_UINT8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void convertYUV420BuffersRejectsTooSmallChroma() {
+        // interleaved chroma with a pixel stride of 2 needs 3 bytes for two chroma pixels
+        float[] identity = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        ImageUtils.convertYUV420BuffersToTensor(ByteBuffer.allocateDirect(8), ByteBuffer.allocateDirect(2), ByteBuffer.allocateDirect(2),
+                4, 2, 4, 4, 2, identity, ByteBuffer.allocateDirect(4 * 2 * 3), 4, 2, ImageUtils.TENSOR_UINT8);
+    }
+
+    private static ByteBuffer directCopy(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.rewind();
+        return buffer;
+    }
 }
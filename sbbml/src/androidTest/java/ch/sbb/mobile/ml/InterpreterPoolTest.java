@@ -0,0 +1,121 @@
+package ch.sbb.mobile.ml;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static com.google.common.truth.Truth.assertThat;
+import static ch.sbb.mobile.ml.TestHelper.loadImage;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@RunWith(AndroidJUnit4.class)
+public class InterpreterPoolTest {
+
+    private static final String MODEL = "wagen_yolov5n_448_float32.tflite";
+
+    private MLSettings mlSettings;
+
+    @Before
+    public void setUp() {
+        ModelCache.getInstance().clear();
+        mlSettings = new MLSettings(new Size(640, 480), MODEL, 448);
+    }
+
+    @After
+    public void tearDown() {
+        ModelCache.getInstance().clear();
+    }
+
+    @Test
+    public void threadsAreSplitOverTheCores() {
+        assertThat(InterpreterPool.threadsPerInterpreter(1, 4, 8)).isEqualTo(4);
+        assertThat(InterpreterPool.threadsPerInterpreter(2, 4, 8)).isEqualTo(4);
+        assertThat(InterpreterPool.threadsPerInterpreter(4, 4, 8)).isEqualTo(2);
+        assertThat(InterpreterPool.threadsPerInterpreter(3, 4, 8)).isEqualTo(2);
+        assertThat(InterpreterPool.threadsPerInterpreter(8, 4, 8)).isEqualTo(1);
+        assertThat(InterpreterPool.threadsPerInterpreter(16, 4, 8)).isEqualTo(1);
+    }
+
+    @Test
+    public void interpretersShareTheMappedModel() throws Exception {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        InterpreterPool pool = InterpreterPool.acquire(getApplicationContext(), mlSettings, MODEL, 2);
+        try {
+            assertThat(pool.size()).isEqualTo(Math.min(2, cores));
+            for (int i = 0; i < pool.size(); i++) {
+                assertThat(pool.get(i).getModel()).isSameInstanceAs(pool.get(0).getModel());
+                assertThat(pool.get(i).getNumberOfThreads() * pool.size()).isAtMost(Math.max(cores, pool.size()));
+            }
+            if (pool.size() > 1) {
+                assertThat(pool.get(1)).isNotSameInstanceAs(pool.get(0));
+            }
+            assertThat(ModelCache.getInstance().getModelCount()).isEqualTo(1);
+        } finally {
+            pool.release(mlSettings.getModelCacheSizeBytes());
+        }
+    }
+
+    /**
+     * Runs the same number of inferences with pools of 1, 2 and 4 interpreters, which together
+     * use the cores. Logs the latency of a single inference and the throughput of the pool.
+     */
+    @Test
+    public void benchmarkThroughputAgainstLatency() throws Exception {
+        final Bitmap bitmap = loadImage("wagen_448.jpg");
+        final int runs = 24;
+        mlSettings.setNumberOfThreds(Runtime.getRuntime().availableProcessors());
+
+        for (final int poolSize : new int[] {1, 2, 4}) {
+            final InterpreterPool pool = InterpreterPool.acquire(getApplicationContext(), mlSettings, MODEL, poolSize);
+            final ExecutorService executor = Executors.newFixedThreadPool(pool.size());
+            try {
+                for (int i = 0; i < pool.size(); i++) {
+                    pool.get(i).loadImage(bitmap);
+                    pool.get(i).runInference();
+                }
+
+                final long start = SystemClock.elapsedRealtimeNanos();
+                final List<Future<Long>> partitions = new ArrayList<>();
+                for (int i = 0; i < pool.size(); i++) {
+                    final TFLiteObjectDetector detector = pool.get(i);
+                    final int partitionRuns = runs / pool.size();
+                    partitions.add(executor.submit(() -> {
+                        long inferenceNanos = 0;
+                        for (int run = 0; run < partitionRuns; run++) {
+                            final long inferenceStart = SystemClock.elapsedRealtimeNanos();
+                            detector.runInference();
+                            inferenceNanos += SystemClock.elapsedRealtimeNanos() - inferenceStart;
+                        }
+                        return inferenceNanos;
+                    }));
+                }
+                long inferenceNanos = 0;
+                for (final Future<Long> partition : partitions) {
+                    inferenceNanos += partition.get();
+                }
+                final long elapsedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+                final int completed = (runs / pool.size()) * pool.size();
+                final long latencyMicros = inferenceNanos / 1000 / completed;
+                final float throughput = completed * 1e9f / elapsedNanos;
+                Log.i("InterpreterPoolTest", pool.size() + " interpreters x " + pool.get(0).getNumberOfThreads()
+                        + " threads: latency " + latencyMicros + "us, throughput " + throughput + " inferences/s");
+                assertThat(latencyMicros).isGreaterThan(0L);
+            } finally {
+                executor.shutdown();
+                pool.release(mlSettings.getModelCacheSizeBytes());
+                ModelCache.getInstance().clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ch.sbb.mobile.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverValuesWithBoundedError() {
+        for (long micros = 1; micros < 10_000_000L; micros = micros * 3 / 2 + 1) {
+            final long bucketValue = LatencyHistogram.highestValueInBucket(LatencyHistogram.bucketIndex(micros));
+            assertThat(bucketValue).isAtLeast(micros);
+            assertThat((double) bucketValue).isAtMost(micros * 1.125);
+        }
+        assertThat(LatencyHistogram.bucketIndex(Long.MAX_VALUE)).isEqualTo(LatencyHistogram.BUCKET_COUNT - 1);
+    }
+
+    @Test
+    public void percentilesOfInterval() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 100);
+        }
+
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        assertThat(histogram.drainTo(counts)).isEqualTo(10_000);
+
+        // values are reported with the upper bound of their bucket: 5000 falls into [4608, 5119],
+        // 9900 into [9216, 10239]
+        assertThat(LatencyHistogram.valueAtPercentile(counts, 100, 50)).isEqualTo(5_119);
+        assertThat(LatencyHistogram.valueAtPercentile(counts, 100, 99)).isEqualTo(10_239);
+
+        // draining starts a new interval
+        assertThat(histogram.drainTo(counts)).isEqualTo(0);
+        assertThat(LatencyHistogram.valueAtPercentile(counts, 0, 50)).isEqualTo(0);
+    }
+}
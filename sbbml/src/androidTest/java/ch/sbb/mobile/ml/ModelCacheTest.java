@@ -0,0 +1,76 @@
+package ch.sbb.mobile.ml;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static com.google.common.truth.Truth.assertThat;
+import android.util.Size;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ModelCacheTest {
+
+    private static final String MODEL = "wagen_yolov5n_448_float32.tflite";
+
+    private ModelCache modelCache;
+    private MLSettings mlSettings;
+
+    @Before
+    public void setUp() {
+        modelCache = ModelCache.getInstance();
+        modelCache.clear();
+        mlSettings = new MLSettings(new Size(640, 480), MODEL, 448);
+    }
+
+    @After
+    public void tearDown() {
+        modelCache.clear();
+    }
+
+    @Test
+    public void releasedDetectorIsReused() throws Exception {
+        TFLiteObjectDetector first = modelCache.acquire(getApplicationContext(), mlSettings, MODEL);
+        modelCache.release(first, mlSettings.getModelCacheSizeBytes());
+        assertThat(modelCache.getIdleCount()).isEqualTo(1);
+
+        TFLiteObjectDetector second = modelCache.acquire(getApplicationContext(), mlSettings, MODEL);
+        assertThat(second).isSameInstanceAs(first);
+        assertThat(modelCache.getIdleCount()).isEqualTo(0);
+        modelCache.release(second, mlSettings.getModelCacheSizeBytes());
+    }
+
+    @Test
+    public void leasedDetectorIsNotShared() throws Exception {
+        TFLiteObjectDetector first = modelCache.acquire(getApplicationContext(), mlSettings, MODEL);
+        TFLiteObjectDetector second = modelCache.acquire(getApplicationContext(), mlSettings, MODEL);
+
+        assertThat(second).isNotSameInstanceAs(first);
+        assertThat(second.getModel()).isSameInstanceAs(first.getModel());
+        assertThat(modelCache.getModelCount()).isEqualTo(1);
+
+        modelCache.release(first, mlSettings.getModelCacheSizeBytes());
+        modelCache.release(second, mlSettings.getModelCacheSizeBytes());
+    }
+
+    @Test
+    public void otherThreadsCreateNewInterpreter() throws Exception {
+        TFLiteObjectDetector first = modelCache.acquire(getApplicationContext(), mlSettings, MODEL);
+        modelCache.release(first, mlSettings.getModelCacheSizeBytes());
+
+        mlSettings.setNumberOfThreds(mlSettings.getNumberOfThreds() + 1);
+        TFLiteObjectDetector second = modelCache.acquire(getApplicationContext(), mlSettings, MODEL);
+        assertThat(second).isNotSameInstanceAs(first);
+        modelCache.release(second, mlSettings.getModelCacheSizeBytes());
+    }
+
+    @Test
+    public void evictsWhenOverBudget() throws Exception {
+        TFLiteObjectDetector detector = modelCache.acquire(getApplicationContext(), mlSettings, MODEL);
+        modelCache.release(detector, 0);
+
+        assertThat(modelCache.getIdleCount()).isEqualTo(0);
+        assertThat(modelCache.getModelCount()).isEqualTo(0);
+    }
+}
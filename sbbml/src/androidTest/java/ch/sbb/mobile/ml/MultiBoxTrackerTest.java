@@ -68,4 +68,73 @@ public class MultiBoxTrackerTest {
         assertThat(trackedRecognition.getTitle()).isEqualTo(detectedRect.getTitle());
         assertThat(trackedRecognition.getDetectionConfidence()).isEqualTo(detectedRect.getConfidence());
     }
+
+    @Test
+    public void publishedListIsNotChangedByLaterResults() {
+        final List<MLRecognition> firstResults = new ArrayList<>();
+        firstResults.add(new MLRecognition("first", 0.8f, new RectF(100, 100, 200, 200)));
+        final List<MLRecognition> secondResults = new ArrayList<>();
+        secondResults.add(new MLRecognition("second", 0.7f, new RectF(10, 10, 60, 60)));
+        secondResults.add(new MLRecognition("third", 0.6f, new RectF(300, 300, 400, 400)));
+
+        tracker.trackResults(firstResults, new byte[448 * 448], 0);
+        final List<MultiBoxTracker.TrackedRecognition> published = tracker.publish();
+        assertThat(tracker.publish()).isSameInstanceAs(published);
+        tracker.trackResults(secondResults, new byte[448 * 448], 1);
+
+        assertThat(published).hasSize(1);
+        assertThat(published.get(0).getTitle()).isEqualTo("first");
+        assertThat(tracker.publish()).hasSize(2);
+    }
+
+    @Test
+    public void olderDetectionsAreComparedWhereTheCameraMovedThem() throws Exception {
+        Bitmap bitmap = loadImage("wagen_448.jpg");
+        int mWidth = bitmap.getWidth();
+        int mHeight = bitmap.getHeight();
+        int[] rgb = new int[mWidth * mHeight];
+        byte[] luminance = new byte[mWidth * mHeight];
+        bitmap.getPixels(rgb, 0, mWidth, 0, 0, mWidth, mHeight);
+        getLuminanceFromRGB(rgb, luminance, mWidth, mHeight);
+        final RectF detectedRect = new RectF(160, 160, 260, 260);
+        final List<MLRecognition> firstResults = new ArrayList<>();
+        firstResults.add(new MLRecognition("title", 0.8f, detectedRect));
+
+        tracker.onFrame(mWidth, mHeight, mWidth, luminance, 1);
+        tracker.trackResults(firstResults, luminance, 1);
+        assertThat(tracker.publish()).hasSize(1);
+
+        // the camera pans until the object is 100 pixels further left, it no longer overlaps the
+        // detected rect
+        for (int timestamp = 2; timestamp <= 5; timestamp++) {
+            tracker.onFrame(mWidth, mHeight, mWidth, shiftLeft(luminance, mWidth, mHeight, (timestamp - 1) * 25), timestamp);
+        }
+        final RectF trackedPosition = new RectF();
+        assertThat(tracker.publish().get(0).getTrackedObject().copyTrackedPositionInPreviewFrame(trackedPosition)).isTrue();
+        assertThat(trackedPosition.right).isLessThan(detectedRect.left);
+
+        // the next detection was run on the first frame as well and finishes only now
+        final List<MLRecognition> laterResults = new ArrayList<>();
+        laterResults.add(new MLRecognition("title", 0.7f, new RectF(detectedRect)));
+        tracker.trackResults(laterResults, luminance, 1);
+
+        assertThat(tracker.publish()).hasSize(1);
+    }
+
+    private static byte[] shiftLeft(byte[] luminance, int width, int height, int shift) {
+        final byte[] shifted = new byte[luminance.length];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(luminance, y * width + shift, shifted, y * width, width - shift);
+        }
+        return shifted;
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void publishedListIsImmutable() {
+        final List<MLRecognition> results = new ArrayList<>();
+        results.add(new MLRecognition("title", 0.8f, new RectF(100, 100, 200, 200)));
+        tracker.trackResults(results, new byte[448 * 448], 0);
+
+        tracker.publish().remove(0);
+    }
 }
@@ -4,6 +4,7 @@ import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
 import static com.google.common.truth.Truth.assertThat;
 import static ch.sbb.mobile.ml.TestHelper.loadImage;
 import android.graphics.Bitmap;
+import android.os.Debug;
 import android.util.Size;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import org.junit.Before;
@@ -40,4 +41,26 @@ public class ObjectDetectorTest {
         List<MLRecognition> detectedObjects = tfLiteObjectDetector.recognizeImage(bitmap);
         assertThat(detectedObjects.size()).isEqualTo(13);
     }
+
+    @Test
+    public void inferenceDoesNotAllocateOnHeap() throws Exception {
+        Bitmap bitmap = loadImage("wagen_448.jpg");
+        // the first run lets the interpreter finish its lazy initialization
+        tfLiteObjectDetector.loadImage(bitmap);
+        tfLiteObjectDetector.runInference();
+
+        final int runs = 10;
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        for (int i = 0; i < runs; i++) {
+            tfLiteObjectDetector.loadImage(bitmap);
+            tfLiteObjectDetector.runInference();
+        }
+        int allocatedBytes = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        // Only the small bookkeeping of the interpreter's Java binding is allowed,
+        // nothing that scales with the input or output tensors.
+        assertThat(allocatedBytes / runs).isLessThan(1024);
+    }
 }
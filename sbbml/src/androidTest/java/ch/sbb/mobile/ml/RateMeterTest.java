@@ -0,0 +1,52 @@
+package ch.sbb.mobile.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class RateMeterTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void noRateBeforeTwoEvents() {
+        RateMeter rateMeter = new RateMeter();
+        assertThat(rateMeter.getEventsPerSecond(0)).isEqualTo(0f);
+        rateMeter.tick(0);
+        assertThat(rateMeter.getEventsPerSecond(10 * MS)).isEqualTo(0f);
+    }
+
+    @Test
+    public void steadyEvents() {
+        RateMeter rateMeter = new RateMeter();
+        for (int i = 0; i <= 30; i++) {
+            rateMeter.tick(i * 50 * MS);
+        }
+        assertThat(rateMeter.getEventsPerSecond(30 * 50 * MS)).isWithin(0.01f).of(20f);
+        // an interval shorter than the average is not a sign of fewer events
+        assertThat(rateMeter.getEventsPerSecond(30 * 50 * MS + 40 * MS)).isWithin(0.01f).of(20f);
+    }
+
+    @Test
+    public void rateFallsWhenEventsStop() {
+        RateMeter rateMeter = new RateMeter();
+        for (int i = 0; i <= 30; i++) {
+            rateMeter.tick(i * 50 * MS);
+        }
+        final long lastNanos = 30 * 50 * MS;
+
+        final float afterOneSecond = rateMeter.getEventsPerSecond(lastNanos + 1000 * MS);
+        final float afterTenSeconds = rateMeter.getEventsPerSecond(lastNanos + 10_000 * MS);
+        assertThat(afterOneSecond).isLessThan(20f);
+        assertThat(afterTenSeconds).isLessThan(afterOneSecond);
+        assertThat(afterTenSeconds).isLessThan(1.1f);
+
+        // the next event continues from the average, not from the decayed rate
+        rateMeter.tick(lastNanos + 50 * MS);
+        assertThat(rateMeter.getEventsPerSecond(lastNanos + 50 * MS)).isWithin(0.01f).of(20f);
+    }
+}
@@ -0,0 +1,99 @@
+package ch.sbb.mobile.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+import static ch.sbb.mobile.ml.TestHelper.loadModelWithoutMetadata;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.RectF;
+import android.util.Size;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * The raw_yolo_4x4 models reshape their [1, 4, 4, 3] image input to a raw output of
+ * [1, 6, 8]: 6 anchors with a box, the objectness and 3 classes. The output is the input pixels,
+ * so the detections are set by the pixels of the image. The uint8 and int8 models take the
+ * pixels with a scale of 1, the uint8_scaled one with a scale of 0.5.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RawOutputModelTest {
+
+    private static final List<String> LABELS = Arrays.asList("a", "b", "c");
+
+    private MLSettings mlSettings;
+    private Bitmap bitmap;
+
+    @Before
+    public void setUp() {
+        mlSettings = new MLSettings(new Size(640, 480), "raw_yolo_4x4_float32.tflite", 4);
+        // anchor 0: center (1, 1), size (1, 1), objectness 1, class b with 1
+        bitmap = Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLACK);
+        bitmap.setPixel(0, 0, Color.rgb(1, 1, 1));
+        bitmap.setPixel(1, 0, Color.rgb(1, 1, 0));
+        bitmap.setPixel(2, 0, Color.rgb(1, 0, 0));
+    }
+
+    private TFLiteObjectDetector createDetector(String model) throws Exception {
+        return new TFLiteObjectDetector(loadModelWithoutMetadata(model, LABELS), mlSettings, null);
+    }
+
+    private static void assertDetectsAnchor0(List<MLRecognition> recognitions) {
+        assertThat(recognitions).hasSize(1);
+        assertThat(recognitions.get(0).getTitle()).isEqualTo("b");
+        assertThat(recognitions.get(0).getConfidence()).isEqualTo(1f);
+        assertThat(recognitions.get(0).getLocation()).isEqualTo(new RectF(2, 2, 6, 6));
+    }
+
+    @Test
+    public void floatImageInput() throws Exception {
+        TFLiteObjectDetector detector = createDetector("raw_yolo_4x4_float32.tflite");
+        assertThat(detector.getInputTensorType()).isEqualTo(ImageUtils.TENSOR_FLOAT32);
+        assertDetectsAnchor0(detector.recognizeImage(bitmap));
+        detector.close();
+    }
+
+    @Test
+    public void uint8ImageInputTakesThePixelBytes() throws Exception {
+        TFLiteObjectDetector detector = createDetector("raw_yolo_4x4_uint8.tflite");
+        assertThat(detector.getInputTensorType()).isEqualTo(ImageUtils.TENSOR_UINT8);
+        assertDetectsAnchor0(detector.recognizeImage(bitmap));
+        detector.close();
+    }
+
+    @Test
+    public void int8ImageInputTakesThePixelBytes() throws Exception {
+        TFLiteObjectDetector detector = createDetector("raw_yolo_4x4_int8.tflite");
+        assertThat(detector.getInputTensorType()).isEqualTo(ImageUtils.TENSOR_INT8);
+        assertDetectsAnchor0(detector.recognizeImage(bitmap));
+        detector.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void otherImageInputQuantizationIsRejected() throws Exception {
+        createDetector("raw_yolo_4x4_uint8_scaled.tflite");
+    }
+
+    @Test
+    public void floatRawOutputSurvivesRepeatedInferences() throws Exception {
+        TFLiteObjectDetector detector = createDetector("raw_yolo_4x4_float32.tflite");
+        for (int i = 0; i < 3; i++) {
+            assertDetectsAnchor0(detector.recognizeImage(bitmap));
+        }
+        detector.close();
+    }
+
+    @Test
+    public void quantizedRawOutputSurvivesRepeatedInferences() throws Exception {
+        TFLiteObjectDetector detector = createDetector("raw_yolo_4x4_uint8.tflite");
+        for (int i = 0; i < 3; i++) {
+            assertDetectsAnchor0(detector.recognizeImage(bitmap));
+        }
+        detector.close();
+    }
+}
@@ -0,0 +1,84 @@
+package ch.sbb.mobile.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.graphics.RectF;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class RoiPlannerTest {
+
+    private static final float FRAME_WIDTH = 1920;
+    private static final float FRAME_HEIGHT = 1080;
+    private static final float INPUT_SIZE = 320;
+
+    private static RectF roiAround(float left, float top, float right, float bottom) {
+        final RectF roi = new RectF();
+        RoiPlanner.setRoiAround(new RectF(left, top, right, bottom), INPUT_SIZE, FRAME_WIDTH, FRAME_HEIGHT, roi);
+        return roi;
+    }
+
+    @Test
+    public void smallObjectGetsARegionOfInputSize() {
+        assertThat(roiAround(900, 500, 1000, 600)).isEqualTo(new RectF(790, 390, 1110, 710));
+    }
+
+    @Test
+    public void largeObjectGetsItsMargin() {
+        // 300 x 200 with the margin of 1.5 on the longer side
+        assertThat(roiAround(800, 400, 1100, 600)).isEqualTo(new RectF(725, 275, 1175, 725));
+    }
+
+    @Test
+    public void regionIsMovedIntoTheFrame() {
+        assertThat(roiAround(0, 0, 50, 50)).isEqualTo(new RectF(0, 0, 320, 320));
+        assertThat(roiAround(1880, 1040, 1920, 1080)).isEqualTo(new RectF(1600, 760, 1920, 1080));
+        assertThat(roiAround(-20, 1000, 30, 1100)).isEqualTo(new RectF(0, 760, 320, 1080));
+    }
+
+    @Test
+    public void regionIsAtMostTheShorterSideOfTheFrame() {
+        assertThat(roiAround(500, 100, 1300, 900)).isEqualTo(new RectF(360, 0, 1440, 1080));
+        assertThat(roiAround(0, 0, 1000, 1000)).isEqualTo(new RectF(0, 0, 1080, 1080));
+    }
+
+    @Test
+    public void frameIsScannedEveryFullScanInterval() {
+        final RoiPlanner planner = new RoiPlanner();
+        final int fullScanInterval = 3;
+        for (int round = 0; round < 3; round++) {
+            assertThat(planner.isFullScanDue(fullScanInterval, 0)).isFalse();
+            planner.regionsDetected();
+            assertThat(planner.isFullScanDue(fullScanInterval, 0)).isFalse();
+            planner.regionsDetected();
+            assertThat(planner.isFullScanDue(fullScanInterval, 0)).isTrue();
+            planner.frameScanned();
+        }
+    }
+
+    @Test
+    public void fullScanIntervalOf1ScansEveryFrame() {
+        final RoiPlanner planner = new RoiPlanner();
+        for (int i = 0; i < 3; i++) {
+            assertThat(planner.isFullScanDue(1, 0)).isTrue();
+            planner.frameScanned();
+        }
+    }
+
+    @Test
+    public void lostObjectTriggersOneFullScan() {
+        final RoiPlanner planner = new RoiPlanner();
+        assertThat(planner.isFullScanDue(10, 0)).isFalse();
+        planner.regionsDetected();
+
+        assertThat(planner.isFullScanDue(10, 1)).isTrue();
+        planner.frameScanned();
+        assertThat(planner.isFullScanDue(10, 1)).isFalse();
+        planner.regionsDetected();
+        assertThat(planner.isFullScanDue(10, 3)).isTrue();
+    }
+}
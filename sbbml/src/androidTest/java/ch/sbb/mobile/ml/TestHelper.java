@@ -4,7 +4,14 @@ import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
 
 public class TestHelper {
 
@@ -14,6 +21,29 @@ public class TestHelper {
         return BitmapFactory.decodeStream(inputStream);
     }
 
+    /**
+     * Load a test model without metadata. It has a single image input and a single output.
+     */
+    public static ModelFile loadModelWithoutMetadata(String fileName, List<String> labels) throws Exception {
+        // copied out of the test apk to be mapped like the assets of the app
+        File file = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), fileName);
+        AssetManager assetManager = InstrumentationRegistry.getInstrumentation().getContext().getAssets();
+        try (InputStream inputStream = assetManager.open(fileName);
+             FileOutputStream outputStream = new FileOutputStream(file)) {
+            byte[] chunk = new byte[4096];
+            int length;
+            while ((length = inputStream.read(chunk)) > 0) {
+                outputStream.write(chunk, 0, length);
+            }
+        }
+        MappedByteBuffer buffer;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        return new ModelFile(fileName, buffer, labels,
+                Collections.singletonList("image"), Collections.singletonList("output"), 0);
+    }
+
     public static void getLuminanceFromRGB(int[] rgb, byte[] luminanceOutArray, int width, int height) {
         for (int i = 0; i < width * height; i++) {
             float red = (rgb[i] >> 16) & 0xff;
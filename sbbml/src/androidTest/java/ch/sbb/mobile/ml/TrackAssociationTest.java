@@ -0,0 +1,164 @@
+package ch.sbb.mobile.ml;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class TrackAssociationTest {
+
+    private static final float MIN_IOU = 0.1f;
+
+    private static float[] boxes(float... values) {
+        return values;
+    }
+
+    @Test
+    public void iouOfBoxes() {
+        final float[] a = boxes(0, 0, 10, 10);
+        assertThat(TrackAssociation.iou(a, 0, boxes(0, 0, 10, 10), 0)).isEqualTo(1f);
+        assertThat(TrackAssociation.iou(a, 0, boxes(5, 0, 15, 10), 0)).isWithin(1e-6f).of(1f / 3);
+        assertThat(TrackAssociation.iou(a, 0, boxes(10, 0, 20, 10), 0)).isEqualTo(0f);
+        assertThat(TrackAssociation.iou(a, 0, boxes(0, 0, 0, 0), 0)).isEqualTo(0f);
+    }
+
+    @Test
+    public void hungarianMaximizesTheTotalOverlap() {
+        final TrackAssociation association = new TrackAssociation();
+        association.setSize(2, 2);
+        association.setIou(0, 0, 0.6f);
+        association.setIou(0, 1, 0.5f);
+        association.setIou(1, 0, 0.55f);
+
+        association.solveHungarian(MIN_IOU);
+        assertThat(association.getTrack(0)).isEqualTo(1);
+        assertThat(association.getTrack(1)).isEqualTo(0);
+        assertThat(association.getDetection(0)).isEqualTo(1);
+        assertThat(association.getDetection(1)).isEqualTo(0);
+
+        // greedy takes the best pair first and leaves the second detection without a track
+        association.solveGreedy(MIN_IOU);
+        assertThat(association.getTrack(0)).isEqualTo(0);
+        assertThat(association.getTrack(1)).isEqualTo(-1);
+        assertThat(association.getDetection(1)).isEqualTo(-1);
+    }
+
+    @Test
+    public void pairsWithoutEnoughOverlapAreNotAssigned() {
+        final TrackAssociation association = new TrackAssociation();
+        association.setSize(2, 3);
+        association.setIou(0, 2, 0.9f);
+        association.setIou(1, 0, MIN_IOU);
+
+        association.solve(MIN_IOU);
+        assertThat(association.getTrack(0)).isEqualTo(2);
+        assertThat(association.getTrack(1)).isEqualTo(-1);
+        assertThat(association.getDetection(0)).isEqualTo(-1);
+        assertThat(association.getDetection(1)).isEqualTo(-1);
+    }
+
+    @Test
+    public void assignmentDoesNotDependOnTheDetectionOrder() {
+        final float[] tracks = boxes(0, 0, 100, 100, 60, 0, 160, 100, 300, 300, 400, 400);
+        final float[] detections = boxes(30, 0, 130, 100, 5, 5, 105, 105, 310, 290, 410, 390, 500, 500, 550, 550);
+        final float[] reversed = boxes(500, 500, 550, 550, 310, 290, 410, 390, 5, 5, 105, 105, 30, 0, 130, 100);
+        final TrackAssociation association = new TrackAssociation();
+
+        association.computeIou(detections, 4, tracks, 3);
+        association.solve(MIN_IOU);
+        final int[] tracksInOrder = new int[4];
+        for (int d = 0; d < 4; d++) {
+            tracksInOrder[d] = association.getTrack(d);
+        }
+        assertThat(tracksInOrder).isEqualTo(new int[] {1, 0, 2, -1});
+
+        association.computeIou(reversed, 4, tracks, 3);
+        association.solve(MIN_IOU);
+        for (int d = 0; d < 4; d++) {
+            assertThat(association.getTrack(3 - d)).isEqualTo(tracksInOrder[d]);
+        }
+    }
+
+    @Test
+    public void largeSizesAreAssignedGreedily() {
+        final int count = TrackAssociation.HUNGARIAN_MAX_SIZE + 6;
+        final float[] tracks = new float[count * 4];
+        final float[] detections = new float[count * 4];
+        for (int i = 0; i < count; i++) {
+            final float left = i * 20;
+            System.arraycopy(boxes(left, 0, left + 10, 10), 0, tracks, i * 4, 4);
+            // the detections in reverse order, slightly moved
+            final int d = count - 1 - i;
+            System.arraycopy(boxes(left + 1, 1, left + 11, 11), 0, detections, d * 4, 4);
+        }
+        final TrackAssociation association = new TrackAssociation();
+
+        association.computeIou(detections, count, tracks, count);
+        association.solve(MIN_IOU);
+        for (int d = 0; d < count; d++) {
+            assertThat(association.getTrack(d)).isEqualTo(count - 1 - d);
+        }
+    }
+
+    /**
+     * Associates random boxes at sizes up to the capacity of the tracker, with both solvers.
+     * Logs the time of one association, which runs once per detected frame.
+     */
+    @Test
+    public void benchmarkAssociation() {
+        final Random random = new Random(42);
+        final int runs = 200;
+        final TrackAssociation association = new TrackAssociation();
+
+        for (final int size : new int[] {4, 16, 64}) {
+            final float[] detections = randomBoxes(random, size);
+            final float[] tracks = randomBoxes(random, size);
+            // warm up the buffers and the JIT
+            for (int run = 0; run < 10; run++) {
+                association.computeIou(detections, size, tracks, size);
+                association.solveHungarian(MIN_IOU);
+                association.solveGreedy(MIN_IOU);
+            }
+
+            long hungarianNanos = 0;
+            long greedyNanos = 0;
+            for (int run = 0; run < runs; run++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                association.computeIou(detections, size, tracks, size);
+                association.solveHungarian(MIN_IOU);
+                hungarianNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                association.computeIou(detections, size, tracks, size);
+                association.solveGreedy(MIN_IOU);
+                greedyNanos += SystemClock.elapsedRealtimeNanos() - start;
+            }
+            Log.i("TrackAssociationTest", size + " x " + size + ": hungarian " + hungarianNanos / 1000 / runs
+                    + "us, greedy " + greedyNanos / 1000 / runs + "us");
+            assertThat(hungarianNanos).isGreaterThan(0L);
+            assertThat(greedyNanos).isGreaterThan(0L);
+        }
+    }
+
+    private static float[] randomBoxes(Random random, int count) {
+        final float[] boxes = new float[count * 4];
+        for (int i = 0; i < count; i++) {
+            final float left = random.nextFloat() * 400;
+            final float top = random.nextFloat() * 400;
+            final float size = 20 + random.nextFloat() * 80;
+            boxes[i * 4] = left;
+            boxes[i * 4 + 1] = top;
+            boxes[i * 4 + 2] = left + size;
+            boxes[i * 4 + 3] = top + size;
+        }
+        return boxes;
+    }
+}
@@ -0,0 +1,142 @@
+package ch.sbb.mobile.ml;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static com.google.common.truth.Truth.assertThat;
+import static ch.sbb.mobile.ml.TestHelper.loadImage;
+import static ch.sbb.mobile.ml.TestHelper.loadModelWithoutMetadata;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class YoloDecoderTest {
+
+    private static final int CLASSES = 3;
+    private static final int ROW = 5 + CLASSES;
+
+    private final float[][] locations = new float[YoloDecoder.MAX_DETECTIONS][4];
+    private final float[] categories = new float[YoloDecoder.MAX_DETECTIONS];
+    private final float[] scores = new float[YoloDecoder.MAX_DETECTIONS];
+
+    private static void setAnchor(float[] output, int anchor, float cx, float cy, float w, float h,
+                                  float objectness, int category, float classScore) {
+        final int row = anchor * ROW;
+        output[row] = cx;
+        output[row + 1] = cy;
+        output[row + 2] = w;
+        output[row + 3] = h;
+        output[row + 4] = objectness;
+        output[row + 5 + category] = classScore;
+    }
+
+    @Test
+    public void decodesCenterSizeToCorners() {
+        float[] output = new float[4 * ROW];
+        setAnchor(output, 2, 0.5f, 0.4f, 0.2f, 0.4f, 0.9f, 1, 0.8f);
+
+        YoloDecoder decoder = new YoloDecoder(4, CLASSES, YoloDecoder.MAX_DETECTIONS);
+        int count = decoder.decode(output, 0.5f, 0.45f, locations, categories, scores);
+
+        assertThat(count).isEqualTo(1);
+        assertThat(locations[0][0]).isWithin(1e-6f).of(0.2f);
+        assertThat(locations[0][1]).isWithin(1e-6f).of(0.4f);
+        assertThat(locations[0][2]).isWithin(1e-6f).of(0.6f);
+        assertThat(locations[0][3]).isWithin(1e-6f).of(0.6f);
+        assertThat(categories[0]).isEqualTo(1f);
+        assertThat(scores[0]).isWithin(1e-6f).of(0.72f);
+    }
+
+    @Test
+    public void dropsBoxesBelowConfidence() {
+        float[] output = new float[2 * ROW];
+        setAnchor(output, 0, 0.5f, 0.5f, 0.2f, 0.2f, 0.4f, 0, 1f);
+        setAnchor(output, 1, 0.5f, 0.5f, 0.2f, 0.2f, 0.9f, 0, 0.5f);
+
+        YoloDecoder decoder = new YoloDecoder(2, CLASSES, YoloDecoder.MAX_DETECTIONS);
+
+        assertThat(decoder.decode(output, 0.5f, 0.45f, locations, categories, scores)).isEqualTo(0);
+    }
+
+    @Test
+    public void suppressesOverlapsOfSameClassOnly() {
+        float[] output = new float[3 * ROW];
+        setAnchor(output, 0, 0.50f, 0.5f, 0.2f, 0.2f, 0.8f, 0, 1f);
+        setAnchor(output, 1, 0.51f, 0.5f, 0.2f, 0.2f, 0.9f, 0, 1f);
+        setAnchor(output, 2, 0.50f, 0.5f, 0.2f, 0.2f, 0.7f, 2, 1f);
+
+        YoloDecoder decoder = new YoloDecoder(3, CLASSES, YoloDecoder.MAX_DETECTIONS);
+        int count = decoder.decode(output, 0.5f, 0.45f, locations, categories, scores);
+
+        assertThat(count).isEqualTo(2);
+        assertThat(scores[0]).isWithin(1e-6f).of(0.9f);
+        assertThat(categories[0]).isEqualTo(0f);
+        assertThat(scores[1]).isWithin(1e-6f).of(0.7f);
+        assertThat(categories[1]).isEqualTo(2f);
+    }
+
+    @Test
+    public void keepsBestBoxesUpToLimit() {
+        float[] output = new float[10 * ROW];
+        for (int i = 0; i < 10; i++) {
+            setAnchor(output, i, 0.05f + i * 0.1f, 0.5f, 0.05f, 0.05f, 0.5f + i * 0.05f, 0, 1f);
+        }
+
+        YoloDecoder decoder = new YoloDecoder(10, CLASSES, 3);
+        int count = decoder.decode(output, 0.5f, 0.45f, locations, categories, scores);
+
+        assertThat(count).isEqualTo(3);
+        assertThat(scores[0]).isWithin(1e-6f).of(0.95f);
+        assertThat(scores[1]).isWithin(1e-6f).of(0.9f);
+        assertThat(scores[2]).isWithin(1e-6f).of(0.85f);
+    }
+
+    /**
+     * Compares the same 448 network exported twice: with the NMS ops in the graph, and raw with the
+     * decoding and NMS in Java. The raw export is the graph of the other one cut at the output of
+     * the detect layer, [1, (56 * 56 + 28 * 28 + 14 * 14) * 3, 5 + 83]. Only logs the times, they
+     * depend on the device.
+     */
+    @Test
+    public void benchmarkAgainstInGraphNms() throws Exception {
+        final List<String> labels = new ArrayList<>();
+        for (int i = 0; i < 83; i++) {
+            labels.add("class " + i);
+        }
+        final MLSettings mlSettings = new MLSettings(new Size(640, 480), "wagen_yolov5n_448_int8.tflite", 448);
+        final Bitmap bitmap = loadImage("wagen_448.jpg");
+        final int runs = 50;
+
+        final TFLiteObjectDetector rawDetector = new TFLiteObjectDetector(
+                loadModelWithoutMetadata("wagen_yolov5n_448_int8_raw.tflite", labels), mlSettings, null);
+        final long rawMicros = timeInference(rawDetector, bitmap, runs);
+        rawDetector.close();
+
+        final TFLiteObjectDetector nmsDetector = new TFLiteObjectDetector(getApplicationContext(), mlSettings);
+        final long nmsMicros = timeInference(nmsDetector, bitmap, runs);
+        nmsDetector.close();
+
+        Log.i("YoloDecoderTest", "raw inference + decode and NMS in Java " + rawMicros
+                + "us, inference with NMS in the graph " + nmsMicros + "us");
+    }
+
+    private static long timeInference(TFLiteObjectDetector detector, Bitmap bitmap, int runs) throws Exception {
+        detector.loadImage(bitmap);
+        // warm up
+        detector.runInference();
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < runs; i++) {
+            detector.runInference();
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / 1000 / runs;
+    }
+}
@@ -40,6 +40,18 @@ JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420ToARGB8888)(
     jintArray output, jint width, jint height, jint y_row_stride,
     jint uv_row_stride, jint uv_pixel_stride, jboolean halfSize);
 
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420ToTensor)(
+    JNIEnv* env, jclass clazz, jbyteArray y, jbyteArray u, jbyteArray v,
+    jint width, jint height, jint y_row_stride, jint uv_row_stride,
+    jint uv_pixel_stride, jfloatArray output_to_frame, jobject output,
+    jint output_width, jint output_height, jint output_type);
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420BuffersToTensor)(
+    JNIEnv* env, jclass clazz, jobject y, jobject u, jobject v, jint width,
+    jint height, jint y_row_stride, jint uv_row_stride, jint uv_pixel_stride,
+    jfloatArray output_to_frame, jobject output, jint output_width,
+    jint output_height, jint output_type);
+
 JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420SPToRGB565)(
     JNIEnv* env, jclass clazz, jbyteArray input, jbyteArray output, jint width,
     jint height);
@@ -112,6 +124,108 @@ JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420ToARGB8888)(
   env->ReleaseIntArrayElements(output, o, 0);
 }
 
+// Returns the address of the direct output buffer, or throws an
+// IllegalArgumentException and returns NULL if it cannot hold the tensor.
+static void* GetTensorAddress(JNIEnv* env, jobject output, jint output_width,
+                              jint output_height, jint output_type) {
+  const int bytes_per_channel = output_type == kTensorFloat32 ? 4 : 1;
+  void* const o = env->GetDirectBufferAddress(output);
+  if (o == NULL || env->GetDirectBufferCapacity(output) <
+                       output_width * output_height * 3 * bytes_per_channel) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+                  "output must be a direct buffer large enough for the tensor");
+    return NULL;
+  }
+  return o;
+}
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420ToTensor)(
+    JNIEnv* env, jclass clazz, jbyteArray y, jbyteArray u, jbyteArray v,
+    jint width, jint height, jint y_row_stride, jint uv_row_stride,
+    jint uv_pixel_stride, jfloatArray output_to_frame, jobject output,
+    jint output_width, jint output_height, jint output_type) {
+  void* const o = GetTensorAddress(env, output, output_width, output_height,
+                                   output_type);
+  if (o == NULL) {
+    return;
+  }
+
+  jfloat matrix[9];
+  env->GetFloatArrayRegion(output_to_frame, 0, 9, matrix);
+
+  jboolean inputCopy = JNI_FALSE;
+  jbyte* const y_buff = env->GetByteArrayElements(y, &inputCopy);
+  jbyte* const u_buff = env->GetByteArrayElements(u, &inputCopy);
+  jbyte* const v_buff = env->GetByteArrayElements(v, &inputCopy);
+
+  ConvertYUV420ToRGBTensor(
+      reinterpret_cast<uint8_t*>(y_buff), reinterpret_cast<uint8_t*>(u_buff),
+      reinterpret_cast<uint8_t*>(v_buff), width, height, y_row_stride,
+      uv_row_stride, uv_pixel_stride, matrix, o, output_width, output_height,
+      output_type);
+
+  env->ReleaseByteArrayElements(y, y_buff, JNI_ABORT);
+  env->ReleaseByteArrayElements(u, u_buff, JNI_ABORT);
+  env->ReleaseByteArrayElements(v, v_buff, JNI_ABORT);
+}
+
+// Bytes a plane needs to be read with the given strides. The last row ends
+// after its last pixel, like the planes of an android.media.Image.
+static jlong PlaneBytes(jint rows, jint columns, jint row_stride,
+                        jint pixel_stride) {
+  return static_cast<jlong>(row_stride) * (rows - 1) +
+         static_cast<jlong>(pixel_stride) * (columns - 1) + 1;
+}
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420BuffersToTensor)(
+    JNIEnv* env, jclass clazz, jobject y, jobject u, jobject v, jint width,
+    jint height, jint y_row_stride, jint uv_row_stride, jint uv_pixel_stride,
+    jfloatArray output_to_frame, jobject output, jint output_width,
+    jint output_height, jint output_type) {
+  void* const o = GetTensorAddress(env, output, output_width, output_height,
+                                   output_type);
+  if (o == NULL) {
+    return;
+  }
+
+  const uint8_t* const y_buff =
+      static_cast<const uint8_t*>(env->GetDirectBufferAddress(y));
+  const uint8_t* const u_buff =
+      static_cast<const uint8_t*>(env->GetDirectBufferAddress(u));
+  const uint8_t* const v_buff =
+      static_cast<const uint8_t*>(env->GetDirectBufferAddress(v));
+  if (y_buff == NULL || u_buff == NULL || v_buff == NULL) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+                  "planes must be direct buffers");
+    return;
+  }
+
+  // The planes are read in place, so their layout must fit the frame.
+  const jint uv_width = (width + 1) / 2;
+  const jint uv_height = (height + 1) / 2;
+  if (width <= 0 || height <= 0 || y_row_stride < width ||
+      uv_pixel_stride <= 0 ||
+      uv_row_stride < uv_pixel_stride * (uv_width - 1) + 1 ||
+      env->GetDirectBufferCapacity(y) <
+          PlaneBytes(height, width, y_row_stride, 1) ||
+      env->GetDirectBufferCapacity(u) <
+          PlaneBytes(uv_height, uv_width, uv_row_stride, uv_pixel_stride) ||
+      env->GetDirectBufferCapacity(v) <
+          PlaneBytes(uv_height, uv_width, uv_row_stride, uv_pixel_stride)) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+                  "planes are too small for the frame size and strides");
+    return;
+  }
+
+  jfloat matrix[9];
+  env->GetFloatArrayRegion(output_to_frame, 0, 9, matrix);
+
+  ConvertYUV420ToRGBTensor(y_buff, u_buff, v_buff, width, height,
+                           y_row_stride, uv_row_stride, uv_pixel_stride,
+                           matrix, o, output_width, output_height,
+                           output_type);
+}
+
 JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420SPToRGB565)(
     JNIEnv* env, jclass clazz, jbyteArray input, jbyteArray output, jint width,
     jint height) {
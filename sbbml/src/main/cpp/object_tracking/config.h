@@ -96,6 +96,13 @@ static const int kMaxTempKeypoints = 1024;
 // Number of floats each keypoint takes up when exporting to an array.
 static const int kKeypointStep = 7;
 
+// Number of floats of the frame statistics, see ObjectTracker::GetFrameStats.
+static const int kFrameStatsSize = 3;
+
+// Number of floats per tracked object when exporting their states to an array:
+// [handle, left, top, right, bottom, correlation, visible].
+static const int kObjectStateStep = 7;
+
 // Number of frame deltas to keep around in the circular queue.
 static const int kNumFrames = 512;
 
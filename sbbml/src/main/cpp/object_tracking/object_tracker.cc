@@ -45,6 +45,7 @@ ObjectTracker::ObjectTracker(const TrackerConfig* const config,
       frame_height_(config->image_size.height),
       curr_time_(0),
       num_frames_(0),
+      num_objects_(0),
       flow_cache_(&config->flow_config),
       keypoint_detector_(&config->keypoint_detector_config),
       curr_num_frame_pairs_(0),
@@ -60,9 +61,8 @@ ObjectTracker::ObjectTracker(const TrackerConfig* const config,
 
 
 ObjectTracker::~ObjectTracker() {
-  for (TrackedObjectMap::iterator iter = objects_.begin();
-       iter != objects_.end(); iter++) {
-    TrackedObject* object = iter->second;
+  for (size_t handle = 0; handle < objects_.size(); ++handle) {
+    TrackedObject* object = objects_[handle];
     SAFE_DELETE(object);
   }
 }
@@ -129,8 +129,8 @@ void ObjectTracker::NextFrame(const uint8_t* const new_frame,
     return;
   }
 
-  if (config_->always_track || objects_.size() > 0) {
-    LOGV("Tracking %zu targets", objects_.size());
+  if (config_->always_track || num_objects_ > 0) {
+    LOGV("Tracking %d targets", num_objects_);
     ComputeKeypoints(true);
     TimeLog("Keypoints computed!");
 
@@ -147,12 +147,23 @@ void ObjectTracker::NextFrame(const uint8_t* const new_frame,
   TimeLog("Detected objects.");
 }
 
+int ObjectTracker::AllocateHandle() {
+  if (!free_handles_.empty()) {
+    const int handle = free_handles_.back();
+    free_handles_.pop_back();
+    return handle;
+  }
+  objects_.push_back(NULL);
+  return static_cast<int>(objects_.size()) - 1;
+}
+
 TrackedObject* ObjectTracker::MaybeAddObject(
-    const std::string& id, const Image<uint8_t>& source_image,
-    const BoundingBox& bounding_box, const ObjectModelBase* object_model) {
+    const int handle, const std::string& name,
+    const Image<uint8_t>& source_image, const BoundingBox& bounding_box,
+    const ObjectModelBase* object_model) {
   // Train the detector if this is a new object.
-  if (objects_.find(id) != objects_.end()) {
-    return objects_[id];
+  if (HaveObject(handle)) {
+    return objects_[handle];
   }
 
   // Need to get a non-const version of the model, or create a new one if it
@@ -164,22 +175,27 @@ TrackedObject* ObjectTracker::MaybeAddObject(
     model = detector_->CreateObjectModel(object_model->GetName());
   }
   TrackedObject* const object =
-      new TrackedObject(id, source_image, bounding_box, model);
+      new TrackedObject(name, source_image, bounding_box, model);
 
-  objects_[id] = object;
+  objects_[handle] = object;
+  ++num_objects_;
   return object;
 }
 
-void ObjectTracker::RegisterNewObjectWithAppearance(
-    const std::string& id, const uint8_t* const new_frame,
-    const BoundingBox& bounding_box) {
+int ObjectTracker::RegisterNewObjectWithAppearance(
+    const uint8_t* const new_frame, const BoundingBox& bounding_box) {
   ObjectModelBase* object_model = NULL;
 
   Image<uint8_t> image(frame_width_, frame_height_);
   image.FromArray(new_frame, frame_width_, 1);
 
+  const int handle = AllocateHandle();
+  std::ostringstream ss;
+  ss << "object_" << handle;
+  const std::string name = ss.str();
+
   if (detector_ != NULL) {
-    object_model = detector_->CreateObjectModel(id);
+    object_model = detector_->CreateObjectModel(name);
     CHECK_ALWAYS(object_model != NULL, "Null object model!");
 
     const IntegralImage integral_image(image);
@@ -187,47 +203,49 @@ void ObjectTracker::RegisterNewObjectWithAppearance(
   }
 
   // Create an object at this position.
-  CHECK_ALWAYS(!HaveObject(id), "Already have this object!");
-  if (objects_.find(id) == objects_.end()) {
-    TrackedObject* const object =
-        MaybeAddObject(id, image, bounding_box, object_model);
-    CHECK_ALWAYS(object != NULL, "Object not created!");
-  }
+  CHECK_ALWAYS(!HaveObject(handle), "Already have this object!");
+  TrackedObject* const object =
+      MaybeAddObject(handle, name, image, bounding_box, object_model);
+  CHECK_ALWAYS(object != NULL, "Object not created!");
+  return handle;
 }
 
-void ObjectTracker::SetPreviousPositionOfObject(const std::string& id,
+void ObjectTracker::SetPreviousPositionOfObject(const int handle,
                                                 const BoundingBox& bounding_box,
                                                 const int64_t timestamp) {
   CHECK_ALWAYS(timestamp > 0, "Timestamp too low! %lld", timestamp);
   CHECK_ALWAYS(timestamp <= curr_time_,
                "Timestamp too great! %lld vs %lld", timestamp, curr_time_);
 
-  TrackedObject* const object = GetObject(id);
+  TrackedObject* const object = GetObject(handle);
 
   // Track this bounding box from the past to the current time.
   const BoundingBox current_position = TrackBox(bounding_box, timestamp);
 
   object->UpdatePosition(current_position, curr_time_, *frame2_, false);
 
-  VLOG(2) << "Set tracked position for " << id << " to " << bounding_box
+  VLOG(2) << "Set tracked position for " << handle << " to " << bounding_box
           << std::endl;
 }
 
 
 void ObjectTracker::SetCurrentPositionOfObject(
-    const std::string& id, const BoundingBox& bounding_box) {
-  SetPreviousPositionOfObject(id, bounding_box, curr_time_);
+    const int handle, const BoundingBox& bounding_box) {
+  SetPreviousPositionOfObject(handle, bounding_box, curr_time_);
 }
 
 
-void ObjectTracker::ForgetTarget(const std::string& id) {
-  LOGV("Forgetting object %s", id.c_str());
-  TrackedObject* const object = GetObject(id);
+void ObjectTracker::ForgetTarget(const int handle) {
+  LOGV("Forgetting object %d", handle);
+  TrackedObject* const object = GetObject(handle);
+  const std::string name = object->GetName();
   delete object;
-  objects_.erase(id);
+  objects_[handle] = NULL;
+  free_handles_.push_back(handle);
+  --num_objects_;
 
   if (detector_ != NULL) {
-    detector_->DeleteObjectModel(id);
+    detector_->DeleteObjectModel(name);
   }
 }
 
@@ -282,6 +300,59 @@ int ObjectTracker::GetKeypoints(const bool only_found,
 }
 
 
+void ObjectTracker::GetFrameStats(float* const out_data) const {
+  out_data[0] = 0.0f;
+  out_data[1] = 0.0f;
+  out_data[2] = 0.0f;
+  if (curr_num_frame_pairs_ == 0) {
+    return;
+  }
+
+  const FramePair& change = frame_pairs_[GetNthIndexFromEnd(0)];
+  if (change.number_of_keypoints_ == 0) {
+    return;
+  }
+
+  int num_found = 0;
+  float total_displacement = 0.0f;
+  for (int i = 0; i < change.number_of_keypoints_; ++i) {
+    if (change.optical_flow_found_keypoint_[i]) {
+      const Point2f& point1 = change.frame1_keypoints_[i].pos_;
+      const Point2f& point2 = change.frame2_keypoints_[i].pos_;
+      const float dx = point2.x - point1.x;
+      const float dy = point2.y - point1.y;
+      total_displacement += sqrtf(dx * dx + dy * dy);
+      ++num_found;
+    }
+  }
+
+  out_data[0] = change.number_of_keypoints_;
+  out_data[1] = 1.0f - static_cast<float>(num_found) / change.number_of_keypoints_;
+  if (num_found > 0) {
+    out_data[2] = total_displacement / num_found / config_->image_size.width;
+  }
+}
+
+int ObjectTracker::GetObjectStates(float* const out_data,
+                                   const int max_objects) const {
+  int num_objects = 0;
+  for (size_t handle = 0;
+       handle < objects_.size() && num_objects < max_objects; ++handle) {
+    const TrackedObject* const object = objects_[handle];
+    if (object == NULL) {
+      continue;
+    }
+    float* const state = out_data + num_objects * kObjectStateStep;
+    state[0] = handle;
+    object->GetPosition().CopyToArray(state + 1);
+    state[5] = object->GetCorrelation();
+    state[6] = object->IsVisible() ? 1.0f : 0.0f;
+    ++num_objects;
+  }
+  return num_objects;
+}
+
+
 BoundingBox ObjectTracker::TrackBox(const BoundingBox& region,
                                     const FramePair& frame_pair) const {
   float translation_x;
@@ -403,10 +474,10 @@ void ObjectTracker::Draw(const int canvas_width, const int canvas_height,
   glMultMatrixf(transformation);
 
   // Draw tracked object bounding boxes.
-  for (TrackedObjectMap::const_iterator iter = objects_.begin();
-    iter != objects_.end(); ++iter) {
-    TrackedObject* tracked_object = iter->second;
-    tracked_object->Draw();
+  for (size_t handle = 0; handle < objects_.size(); ++handle) {
+    if (objects_[handle] != NULL) {
+      objects_[handle]->Draw();
+    }
   }
 
   static const bool kRenderDebugPyramid = false;
@@ -477,9 +548,11 @@ void ObjectTracker::ComputeKeypoints(const bool cached_ok) {
 
   std::vector<BoundingBox> boxes;
 
-  for (TrackedObjectMap::iterator object_iter = objects_.begin();
-       object_iter != objects_.end(); ++object_iter) {
-    BoundingBox box = object_iter->second->GetPosition();
+  for (size_t handle = 0; handle < objects_.size(); ++handle) {
+    if (objects_[handle] == NULL) {
+      continue;
+    }
+    BoundingBox box = objects_[handle]->GetPosition();
     box.Scale(config_->object_box_scale_factor_for_features,
               config_->object_box_scale_factor_for_features);
     AddQuadrants(box, &boxes);
@@ -498,10 +571,12 @@ bool ObjectTracker::GetBestObjectForDetection(
   TrackedObject* best_match = NULL;
   float best_overlap = -FLT_MAX;
 
-  LOGV("Looking for matches in %zu objects!", objects_.size());
-  for (TrackedObjectMap::const_iterator object_iter = objects_.begin();
-      object_iter != objects_.end(); ++object_iter) {
-    TrackedObject* const tracked_object = object_iter->second;
+  LOGV("Looking for matches in %d objects!", num_objects_);
+  for (size_t handle = 0; handle < objects_.size(); ++handle) {
+    TrackedObject* const tracked_object = objects_[handle];
+    if (tracked_object == NULL) {
+      continue;
+    }
 
     const float overlap = tracked_object->GetPosition().PascalScore(
         detection.GetObjectBoundingBox());
@@ -582,7 +657,7 @@ void ObjectTracker::ProcessDetections(
         // TODO(andrewharp): Generate this in a more general fashion.
         ss << "hand_" << num_detected_++;
         std::string object_name = ss.str();
-        MaybeAddObject(object_name, *frame2_->GetImage(),
+        MaybeAddObject(AllocateHandle(), object_name, *frame2_->GetImage(),
                        detection.GetObjectBoundingBox(), model);
       }
     }
@@ -604,9 +679,11 @@ void ObjectTracker::DetectTargets() {
   LOGV("Creating test vector!");
   std::vector<BoundingSquare> positions;
 
-  for (TrackedObjectMap::iterator object_iter = objects_.begin();
-      object_iter != objects_.end(); ++object_iter) {
-    TrackedObject* const tracked_object = object_iter->second;
+  for (size_t handle = 0; handle < objects_.size(); ++handle) {
+    TrackedObject* const tracked_object = objects_[handle];
+    if (tracked_object == NULL) {
+      continue;
+    }
 
 #if DEBUG_PREDATOR
   positions.push_back(GetCenteredSquare(
@@ -651,11 +728,13 @@ void ObjectTracker::TrackObjects() {
   const bool automatic_removal_allowed = detector_.get() != NULL ?
       detector_->AllowSpontaneousDetections() : false;
 
-  LOGV("Tracking %zu objects!", objects_.size());
-  std::vector<std::string> dead_objects;
-  for (TrackedObjectMap::iterator iter = objects_.begin();
-       iter != objects_.end(); iter++) {
-    TrackedObject* object = iter->second;
+  LOGV("Tracking %d objects!", num_objects_);
+  std::vector<int> dead_objects;
+  for (size_t handle = 0; handle < objects_.size(); ++handle) {
+    TrackedObject* object = objects_[handle];
+    if (object == NULL) {
+      continue;
+    }
     const BoundingBox tracked_position = TrackBox(
         object->GetPosition(), frame_pairs_[GetNthIndexFromEnd(0)]);
     object->UpdatePosition(tracked_position, curr_time_, *frame2_, false);
@@ -663,20 +742,20 @@ void ObjectTracker::TrackObjects() {
     if (automatic_removal_allowed &&
         object->GetNumConsecutiveFramesBelowThreshold() >
         kMaxNumDetectionFailures * 5) {
-      dead_objects.push_back(iter->first);
+      dead_objects.push_back(static_cast<int>(handle));
     }
   }
 
   if (detector_ != NULL && automatic_removal_allowed) {
-    for (std::vector<std::string>::iterator iter = dead_objects.begin();
+    for (std::vector<int>::iterator iter = dead_objects.begin();
          iter != dead_objects.end(); iter++) {
-      LOGE("Removing object! %s", iter->c_str());
+      LOGE("Removing object! %d", *iter);
       ForgetTarget(*iter);
     }
   }
   TimeLog("Tracked all objects.");
 
-  LOGV("%zu objects tracked!", objects_.size());
+  LOGV("%d objects tracked!", num_objects_);
 }
 
 }  // namespace tf_tracking
@@ -16,8 +16,8 @@ limitations under the License.
 #ifndef THIRD_PARTY_TENSORFLOW_EXAMPLES_ANDROID_JNI_OBJECT_TRACKING_OBJECT_TRACKER_H_
 #define THIRD_PARTY_TENSORFLOW_EXAMPLES_ANDROID_JNI_OBJECT_TRACKING_OBJECT_TRACKER_H_
 
-#include <map>
 #include <string>
+#include <vector>
 
 #include "geom.h"
 #include "integral_image.h"
@@ -34,15 +34,17 @@ limitations under the License.
 
 namespace tf_tracking {
 
-typedef std::map<const std::string, TrackedObject*> TrackedObjectMap;
+// Tracked objects indexed by their handle. The handles are dense: the slot of
+// a forgotten object is NULL until it is reused by the next new object, so
+// looking up an object is a bounds check and an array access.
+typedef std::vector<TrackedObject*> TrackedObjectMap;
 
 inline std::ostream& operator<<(std::ostream& stream,
                                 const TrackedObjectMap& map) {
-  for (TrackedObjectMap::const_iterator iter = map.begin();
-      iter != map.end(); ++iter) {
-    const TrackedObject& tracked_object = *iter->second;
-    const std::string& key = iter->first;
-    stream << key << ": " << tracked_object;
+  for (size_t handle = 0; handle < map.size(); ++handle) {
+    if (map[handle] != NULL) {
+      stream << handle << ": " << *map[handle];
+    }
   }
   return stream;
 }
@@ -75,22 +77,24 @@ class ObjectTracker {
                          const uint8_t* const uv_frame, const int64_t timestamp,
                          const float* const alignment_matrix_2x3);
 
-  virtual void RegisterNewObjectWithAppearance(const std::string& id,
-                                               const uint8_t* const new_frame,
-                                               const BoundingBox& bounding_box);
+  // Starts tracking a new object and returns its handle, which stays valid
+  // until the object is forgotten.
+  virtual int RegisterNewObjectWithAppearance(const uint8_t* const new_frame,
+                                              const BoundingBox& bounding_box);
 
   // Updates the position of a tracked object, given that it was known to be at
   // a certain position at some point in the past.
-  virtual void SetPreviousPositionOfObject(const std::string& id,
+  virtual void SetPreviousPositionOfObject(const int handle,
                                            const BoundingBox& bounding_box,
                                            const int64_t timestamp);
 
   // Sets the current position of the object in the most recent frame provided.
-  virtual void SetCurrentPositionOfObject(const std::string& id,
+  virtual void SetCurrentPositionOfObject(const int handle,
                                           const BoundingBox& bounding_box);
 
-  // Tells the ObjectTracker to stop tracking a target.
-  void ForgetTarget(const std::string& id);
+  // Tells the ObjectTracker to stop tracking a target. Its handle may be
+  // returned again for a new object.
+  void ForgetTarget(const int handle);
 
   // Fills the given out_data buffer with the latest detected keypoint
   // correspondences, first scaled by scale_factor (to adjust for downsampling
@@ -104,6 +108,21 @@ class ObjectTracker {
   // where N is the number of keypoints tracked.  N is returned as the result.
   int GetKeypoints(const bool only_found, float* const out_data) const;
 
+  // Fills out_data with kFrameStatsSize statistics of the latest frame change:
+  // the number of keypoints of the previous frame, the fraction of them which
+  // were not found again in the new frame, and the mean displacement of the
+  // found ones relative to the frame width.
+  void GetFrameStats(float* const out_data) const;
+
+  // Fills out_data with the kObjectStateStep floats of each tracked object, at
+  // most max_objects of them, and returns the number of objects written.
+  int GetObjectStates(float* const out_data, const int max_objects) const;
+
+  // Returns the number of tracked objects.
+  inline int GetNumObjects() const {
+    return num_objects_;
+  }
+
   // Returns the current position of a box, given that it was at a certain
   // position at the given time.
   BoundingBox TrackBox(const BoundingBox& region,
@@ -114,32 +133,27 @@ class ObjectTracker {
     return num_frames_;
   }
 
-  inline bool HaveObject(const std::string& id) const {
-    return objects_.find(id) != objects_.end();
+  inline bool HaveObject(const int handle) const {
+    return handle >= 0 && handle < static_cast<int>(objects_.size()) &&
+           objects_[handle] != NULL;
   }
 
-  // Returns the TrackedObject associated with the given id.
-  inline const TrackedObject* GetObject(const std::string& id) const {
-    TrackedObjectMap::const_iterator iter = objects_.find(id);
-    CHECK_ALWAYS(iter != objects_.end(),
-                 "Unknown object key! \"%s\"", id.c_str());
-    TrackedObject* const object = iter->second;
-    return object;
+  // Returns the TrackedObject associated with the given handle.
+  inline const TrackedObject* GetObject(const int handle) const {
+    CHECK_ALWAYS(HaveObject(handle), "Unknown object handle! %d", handle);
+    return objects_[handle];
   }
 
-  // Returns the TrackedObject associated with the given id.
-  inline TrackedObject* GetObject(const std::string& id) {
-    TrackedObjectMap::iterator iter = objects_.find(id);
-    CHECK_ALWAYS(iter != objects_.end(),
-                 "Unknown object key! \"%s\"", id.c_str());
-    TrackedObject* const object = iter->second;
-    return object;
+  // Returns the TrackedObject associated with the given handle.
+  inline TrackedObject* GetObject(const int handle) {
+    CHECK_ALWAYS(HaveObject(handle), "Unknown object handle! %d", handle);
+    return objects_[handle];
   }
 
-  bool IsObjectVisible(const std::string& id) const {
-    SCHECK(HaveObject(id), "Don't have this object.");
+  bool IsObjectVisible(const int handle) const {
+    SCHECK(HaveObject(handle), "Don't have this object.");
 
-    const TrackedObject* object = GetObject(id);
+    const TrackedObject* object = GetObject(handle);
     return object->IsVisible();
   }
 
@@ -147,15 +161,20 @@ class ObjectTracker {
                     const float* const frame_to_canvas) const;
 
  protected:
-  // Creates a new tracked object at the given position.
+  // Creates a new tracked object at the given position in the slot of the
+  // handle, which must come from AllocateHandle().
   // If an object model is provided, then that model will be associated with the
   // object. If not, a new model may be created from the appearance at the
   // initial position and registered with the object detector.
-  virtual TrackedObject* MaybeAddObject(const std::string& id,
+  virtual TrackedObject* MaybeAddObject(const int handle,
+                                        const std::string& name,
                                         const Image<uint8_t>& image,
                                         const BoundingBox& bounding_box,
                                         const ObjectModelBase* object_model);
 
+  // Returns a free slot of objects_, reusing the slots of forgotten objects.
+  int AllocateHandle();
+
   // Find the keypoints in the frame before the current frame.
   // If only one frame exists, keypoints will be found in that frame.
   void ComputeKeypoints(const bool cached_ok = false);
@@ -202,6 +221,11 @@ class ObjectTracker {
 
   TrackedObjectMap objects_;
 
+  // Handles of forgotten objects, reused before objects_ grows.
+  std::vector<int> free_handles_;
+
+  int num_objects_;
+
   FlowCache flow_cache_;
 
   KeypointDetector keypoint_detector_;
@@ -61,46 +61,46 @@ void JNICALL OBJECT_TRACKER_METHOD(releaseMemoryNative)(JNIEnv* env,
                                                         jobject thiz);
 
 JNIEXPORT
-void JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
-    jfloat x2, jfloat y2, jbyteArray frame_data);
+jint JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
+    JNIEnv* env, jobject thiz, jfloat x1, jfloat y1, jfloat x2, jfloat y2,
+    jbyteArray frame_data);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setPreviousPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1,
     jfloat x2, jfloat y2, jlong timestamp);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setCurrentPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1,
     jfloat x2, jfloat y2);
 
 JNIEXPORT
 jboolean JNICALL OBJECT_TRACKER_METHOD(haveObject)(JNIEnv* env, jobject thiz,
-                                                   jstring object_id);
+                                                   jint handle);
 
 JNIEXPORT
 jboolean JNICALL OBJECT_TRACKER_METHOD(isObjectVisible)(JNIEnv* env,
                                                         jobject thiz,
-                                                        jstring object_id);
+                                                        jint handle);
 
 JNIEXPORT
 jstring JNICALL OBJECT_TRACKER_METHOD(getModelIdNative)(JNIEnv* env,
                                                         jobject thiz,
-                                                        jstring object_id);
+                                                        jint handle);
 
 JNIEXPORT
 jfloat JNICALL OBJECT_TRACKER_METHOD(getCurrentCorrelation)(JNIEnv* env,
                                                             jobject thiz,
-                                                            jstring object_id);
+                                                            jint handle);
 
 JNIEXPORT
 jfloat JNICALL OBJECT_TRACKER_METHOD(getMatchScore)(JNIEnv* env, jobject thiz,
-                                                    jstring object_id);
+                                                    jint handle);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(getTrackedPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloatArray rect_array);
+    JNIEnv* env, jobject thiz, jint handle, jfloatArray rect_array);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(nextFrameNative)(JNIEnv* env, jobject thiz,
@@ -111,11 +111,12 @@ void JNICALL OBJECT_TRACKER_METHOD(nextFrameNative)(JNIEnv* env, jobject thiz,
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(forgetNative)(JNIEnv* env, jobject thiz,
-                                                 jstring object_id);
+                                                 jint handle);
 
 JNIEXPORT
-jbyteArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsPacked)(
-    JNIEnv* env, jobject thiz, jfloat scale_factor);
+jint JNICALL OBJECT_TRACKER_METHOD(getKeypointsPackedNative)(
+    JNIEnv* env, jobject thiz, jfloat scale_factor, jbyteArray out_data,
+    jint offset);
 
 JNIEXPORT
 jfloatArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsNative)(
@@ -127,6 +128,14 @@ void JNICALL OBJECT_TRACKER_METHOD(getCurrentPositionNative)(
     jfloat position_y1, jfloat position_x2, jfloat position_y2,
     jfloatArray delta);
 
+JNIEXPORT
+void JNICALL OBJECT_TRACKER_METHOD(getFrameStatsNative)(
+    JNIEnv* env, jobject thiz, jfloatArray stats);
+
+JNIEXPORT
+jint JNICALL OBJECT_TRACKER_METHOD(getObjectStatesNative)(
+    JNIEnv* env, jobject thiz, jfloatArray states);
+
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(drawNative)(JNIEnv* env, jobject obj,
                                                jint view_width,
@@ -137,10 +146,26 @@ JNIEXPORT void JNICALL OBJECT_TRACKER_METHOD(downsampleImageNative)(
     JNIEnv* env, jobject thiz, jint width, jint height, jint row_stride,
     jbyteArray input, jint factor, jbyteArray output);
 
+JNIEXPORT void JNICALL OBJECT_TRACKER_METHOD(downsampleImageBufferNative)(
+    JNIEnv* env, jobject thiz, jint width, jint height, jint row_stride,
+    jobject input, jint factor, jbyteArray output);
+
 #ifdef __cplusplus
 }
 #endif
 
+static void DownsampleImage(const int width, const int height,
+                            const int row_stride, const uint8_t* const input,
+                            const int factor, uint8_t* const output) {
+  const int new_width = (width + factor - 1) / factor;
+  const int new_height = (height + factor - 1) / factor;
+
+  tf_tracking::Image<uint8_t> downsampled_image(new_width, new_height, output,
+                                                false);
+
+  downsampled_image.DownsampleAveraged(input, row_stride, factor);
+}
+
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(initNative)(JNIEnv* env, jobject thiz,
                                                jint width, jint height,
@@ -167,89 +192,69 @@ void JNICALL OBJECT_TRACKER_METHOD(releaseMemoryNative)(JNIEnv* env,
 }
 
 JNIEXPORT
-void JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
-    jfloat x2, jfloat y2, jbyteArray frame_data) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  LOGI("Registering the position of %s at %.2f,%.2f,%.2f,%.2f", id_str, x1, y1,
-       x2, y2);
-
+jint JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
+    JNIEnv* env, jobject thiz, jfloat x1, jfloat y1, jfloat x2, jfloat y2,
+    jbyteArray frame_data) {
   jboolean iCopied = JNI_FALSE;
 
   // Copy image into currFrame.
   jbyte* pixels = env->GetByteArrayElements(frame_data, &iCopied);
 
   BoundingBox bounding_box(x1, y1, x2, y2);
-  get_object_tracker(env, thiz)->RegisterNewObjectWithAppearance(
-      id_str, reinterpret_cast<const uint8_t*>(pixels), bounding_box);
+  const int handle =
+      get_object_tracker(env, thiz)->RegisterNewObjectWithAppearance(
+          reinterpret_cast<const uint8_t*>(pixels), bounding_box);
 
   env->ReleaseByteArrayElements(frame_data, pixels, JNI_ABORT);
 
-  env->ReleaseStringUTFChars(object_id, id_str);
+  LOGI("Registering the position of %d at %.2f,%.2f,%.2f,%.2f", handle, x1, y1,
+       x2, y2);
+  return handle;
 }
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setPreviousPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1,
     jfloat x2, jfloat y2, jlong timestamp) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
   LOGI(
-      "Registering the position of %s at %.2f,%.2f,%.2f,%.2f"
+      "Registering the position of %d at %.2f,%.2f,%.2f,%.2f"
       " at time %lld",
-      id_str, x1, y1, x2, y2, static_cast<int64_t>(timestamp));
+      handle, x1, y1, x2, y2, static_cast<int64_t>(timestamp));
 
   get_object_tracker(env, thiz)->SetPreviousPositionOfObject(
-      id_str, BoundingBox(x1, y1, x2, y2), timestamp);
-
-  env->ReleaseStringUTFChars(object_id, id_str);
+      handle, BoundingBox(x1, y1, x2, y2), timestamp);
 }
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setCurrentPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1,
     jfloat x2, jfloat y2) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  LOGI("Registering the position of %s at %.2f,%.2f,%.2f,%.2f", id_str, x1, y1,
+  LOGI("Registering the position of %d at %.2f,%.2f,%.2f,%.2f", handle, x1, y1,
        x2, y2);
 
   get_object_tracker(env, thiz)->SetCurrentPositionOfObject(
-      id_str, BoundingBox(x1, y1, x2, y2));
-
-  env->ReleaseStringUTFChars(object_id, id_str);
+      handle, BoundingBox(x1, y1, x2, y2));
 }
 
 JNIEXPORT
 jboolean JNICALL OBJECT_TRACKER_METHOD(haveObject)(JNIEnv* env, jobject thiz,
-                                                   jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const bool haveObject = get_object_tracker(env, thiz)->HaveObject(id_str);
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return haveObject;
+                                                   jint handle) {
+  return get_object_tracker(env, thiz)->HaveObject(handle);
 }
 
 JNIEXPORT
 jboolean JNICALL OBJECT_TRACKER_METHOD(isObjectVisible)(JNIEnv* env,
                                                         jobject thiz,
-                                                        jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const bool visible = get_object_tracker(env, thiz)->IsObjectVisible(id_str);
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return visible;
+                                                        jint handle) {
+  return get_object_tracker(env, thiz)->IsObjectVisible(handle);
 }
 
 JNIEXPORT
 jstring JNICALL OBJECT_TRACKER_METHOD(getModelIdNative)(JNIEnv* env,
                                                         jobject thiz,
-                                                        jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
+                                                        jint handle) {
   const TrackedObject* const object =
-      get_object_tracker(env, thiz)->GetObject(id_str);
-  env->ReleaseStringUTFChars(object_id, id_str);
+      get_object_tracker(env, thiz)->GetObject(handle);
   jstring model_name = env->NewStringUTF(object->GetModel()->GetName().c_str());
   return model_name;
 }
@@ -257,39 +262,25 @@ jstring JNICALL OBJECT_TRACKER_METHOD(getModelIdNative)(JNIEnv* env,
 JNIEXPORT
 jfloat JNICALL OBJECT_TRACKER_METHOD(getCurrentCorrelation)(JNIEnv* env,
                                                             jobject thiz,
-                                                            jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const float correlation =
-      get_object_tracker(env, thiz)->GetObject(id_str)->GetCorrelation();
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return correlation;
+                                                            jint handle) {
+  return get_object_tracker(env, thiz)->GetObject(handle)->GetCorrelation();
 }
 
 JNIEXPORT
 jfloat JNICALL OBJECT_TRACKER_METHOD(getMatchScore)(JNIEnv* env, jobject thiz,
-                                                    jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const float match_score =
-      get_object_tracker(env, thiz)->GetObject(id_str)->GetMatchScore().value;
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return match_score;
+                                                    jint handle) {
+  return get_object_tracker(env, thiz)->GetObject(handle)->GetMatchScore().value;
 }
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(getTrackedPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloatArray rect_array) {
-  jboolean iCopied = JNI_FALSE;
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
+    JNIEnv* env, jobject thiz, jint handle, jfloatArray rect_array) {
   const BoundingBox bounding_box =
-      get_object_tracker(env, thiz)->GetObject(id_str)->GetPosition();
-  env->ReleaseStringUTFChars(object_id, id_str);
+      get_object_tracker(env, thiz)->GetObject(handle)->GetPosition();
 
-  jfloat* rect = env->GetFloatArrayElements(rect_array, &iCopied);
-  bounding_box.CopyToArray(reinterpret_cast<float*>(rect));
-  env->ReleaseFloatArrayElements(rect_array, rect, 0);
+  float rect[4];
+  bounding_box.CopyToArray(rect);
+  env->SetFloatArrayRegion(rect_array, 0, 4, rect);
 }
 
 JNIEXPORT
@@ -342,12 +333,8 @@ void JNICALL OBJECT_TRACKER_METHOD(nextFrameNative)(JNIEnv* env, jobject thiz,
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(forgetNative)(JNIEnv* env, jobject thiz,
-                                                 jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  get_object_tracker(env, thiz)->ForgetTarget(id_str);
-
-  env->ReleaseStringUTFChars(object_id, id_str);
+                                                 jint handle) {
+  get_object_tracker(env, thiz)->ForgetTarget(handle);
 }
 
 JNIEXPORT
@@ -372,8 +359,9 @@ jfloatArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsNative)(
 }
 
 JNIEXPORT
-jbyteArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsPacked)(
-    JNIEnv* env, jobject thiz, jfloat scale_factor) {
+jint JNICALL OBJECT_TRACKER_METHOD(getKeypointsPackedNative)(
+    JNIEnv* env, jobject thiz, jfloat scale_factor, jbyteArray out_data,
+    jint offset) {
   // 2 bytes to a uint16_t and two pairs of xy coordinates per keypoint.
   const int bytes_per_keypoint = sizeof(uint16_t) * 2 * 2;
   jbyte keypoint_arr[kMaxKeypoints * bytes_per_keypoint];
@@ -382,19 +370,11 @@ jbyteArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsPacked)(
       get_object_tracker(env, thiz)->GetKeypointsPacked(
           reinterpret_cast<uint16_t*>(keypoint_arr), scale_factor);
 
-  // Create and return the array that will be passed back to Java.
-  jbyteArray keypoints =
-      env->NewByteArray(number_of_keypoints * bytes_per_keypoint);
-
-  if (keypoints == NULL) {
-    LOGE("null array!");
-    return NULL;
-  }
-
+  // Copied into the slot of the caller's ring, nothing is allocated.
   env->SetByteArrayRegion(
-      keypoints, 0, number_of_keypoints * bytes_per_keypoint, keypoint_arr);
+      out_data, offset, number_of_keypoints * bytes_per_keypoint, keypoint_arr);
 
-  return keypoints;
+  return number_of_keypoints;
 }
 
 JNIEXPORT
@@ -412,6 +392,29 @@ void JNICALL OBJECT_TRACKER_METHOD(getCurrentPositionNative)(
   env->SetFloatArrayRegion(delta, 0, 4, point_arr);
 }
 
+JNIEXPORT
+void JNICALL OBJECT_TRACKER_METHOD(getFrameStatsNative)(
+    JNIEnv* env, jobject thiz, jfloatArray stats) {
+  jfloat stats_arr[kFrameStatsSize];
+  get_object_tracker(env, thiz)->GetFrameStats(stats_arr);
+  env->SetFloatArrayRegion(stats, 0, kFrameStatsSize, stats_arr);
+}
+
+JNIEXPORT
+jint JNICALL OBJECT_TRACKER_METHOD(getObjectStatesNative)(
+    JNIEnv* env, jobject thiz, jfloatArray states) {
+  const ObjectTracker* const object_tracker = get_object_tracker(env, thiz);
+  const int max_objects = env->GetArrayLength(states) / kObjectStateStep;
+
+  // Written in place, nothing in between may call back into the VM.
+  jfloat* const states_arr =
+      static_cast<jfloat*>(env->GetPrimitiveArrayCritical(states, NULL));
+  const int num_objects =
+      object_tracker->GetObjectStates(states_arr, max_objects);
+  env->ReleasePrimitiveArrayCritical(states, states_arr, 0);
+  return num_objects;
+}
+
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(drawNative)(
     JNIEnv* env, jobject thiz, jint view_width, jint view_height,
@@ -438,21 +441,39 @@ JNIEXPORT void JNICALL OBJECT_TRACKER_METHOD(downsampleImageNative)(
   jbyte* const input_array = env->GetByteArrayElements(input, 0);
   jbyte* const output_array = env->GetByteArrayElements(output, 0);
 
-  {
-    tf_tracking::Image<uint8_t> full_image(
-        width, height, reinterpret_cast<uint8_t*>(input_array), false);
+  DownsampleImage(width, height, row_stride,
+                  reinterpret_cast<uint8_t*>(input_array), factor,
+                  reinterpret_cast<uint8_t*>(output_array));
 
-    const int new_width = (width + factor - 1) / factor;
-    const int new_height = (height + factor - 1) / factor;
+  env->ReleaseByteArrayElements(input, input_array, JNI_ABORT);
+  env->ReleaseByteArrayElements(output, output_array, 0);
+}
 
-    tf_tracking::Image<uint8_t> downsampled_image(
-        new_width, new_height, reinterpret_cast<uint8_t*>(output_array), false);
 
-    downsampled_image.DownsampleAveraged(
-        reinterpret_cast<uint8_t*>(input_array), row_stride, factor);
+JNIEXPORT void JNICALL OBJECT_TRACKER_METHOD(downsampleImageBufferNative)(
+    JNIEnv* env, jobject thiz, jint width, jint height, jint row_stride,
+    jobject input, jint factor, jbyteArray output) {
+  if (input == NULL || output == NULL) {
+    LOGW("Received null buffers, hopefully this is a test!");
+    return;
   }
 
-  env->ReleaseByteArrayElements(input, input_array, JNI_ABORT);
+  // The luminance plane of an android.media.Image is a direct buffer, so it
+  // can be read in place without copying it into a Java array first.
+  const uint8_t* const input_buffer =
+      static_cast<const uint8_t*>(env->GetDirectBufferAddress(input));
+  if (input_buffer == NULL ||
+      env->GetDirectBufferCapacity(input) <
+          static_cast<jlong>(row_stride) * (height - 1) + width) {
+    LOGW("Input buffer is not a direct buffer or too small for the frame");
+    return;
+  }
+
+  jbyte* const output_array = env->GetByteArrayElements(output, 0);
+
+  DownsampleImage(width, height, row_stride, input_buffer, factor,
+                  reinterpret_cast<uint8_t*>(output_array));
+
   env->ReleaseByteArrayElements(output, output_array, 0);
 }
 
@@ -58,7 +58,7 @@ class TrackedObject {
         num_consecutive_frames_below_threshold_ < kMaxNumDetectionFailures;
   }
 
-  inline float GetCorrelation() {
+  inline float GetCorrelation() const {
     return tracked_correlation_;
   }
 
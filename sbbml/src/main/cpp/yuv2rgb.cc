@@ -80,6 +80,72 @@ void ConvertYUV420ToARGB8888(const uint8_t* const yData,
   }
 }
 
+//  Accepts a YUV 4:2:0 image with separate Y, U and V planes like above and
+//  writes the RGB model input tensor for it. The matrix is affine, so the
+//  source position advances by a constant step for every output pixel of a row.
+void ConvertYUV420ToRGBTensor(const uint8_t* const yData,
+                              const uint8_t* const uData,
+                              const uint8_t* const vData, const int width,
+                              const int height, const int y_row_stride,
+                              const int uv_row_stride,
+                              const int uv_pixel_stride,
+                              const float* const output_to_src,
+                              void* const output, const int out_width,
+                              const int out_height, const int output_type) {
+  const float step_x = output_to_src[0];
+  const float step_y = output_to_src[3];
+
+  float* out_float = reinterpret_cast<float*>(output);
+  uint8_t* out_byte = reinterpret_cast<uint8_t*>(output);
+
+  for (int oy = 0; oy < out_height; oy++) {
+    // Source position of the center of the first pixel in this row.
+    float src_x = output_to_src[0] * 0.5f + output_to_src[1] * (oy + 0.5f) +
+                  output_to_src[2];
+    float src_y = output_to_src[3] * 0.5f + output_to_src[4] * (oy + 0.5f) +
+                  output_to_src[5];
+
+    for (int ox = 0; ox < out_width; ox++) {
+      // Truncation is not flooring for negative values, so compare the float
+      // before converting it.
+      int r = 0;
+      int g = 0;
+      int b = 0;
+      if (src_x >= 0.0f && src_y >= 0.0f) {
+        const int x = static_cast<int>(src_x);
+        const int y = static_cast<int>(src_y);
+        if (x < width && y < height) {
+          const int uv_offset =
+              uv_row_stride * (y >> 1) + (x >> 1) * uv_pixel_stride;
+          const uint32_t argb = YUV2RGB(yData[y_row_stride * y + x],
+                                        uData[uv_offset], vData[uv_offset]);
+          r = (argb >> 16) & 0xff;
+          g = (argb >> 8) & 0xff;
+          b = argb & 0xff;
+        }
+      }
+
+      if (output_type == kTensorFloat32) {
+        *out_float++ = r;
+        *out_float++ = g;
+        *out_float++ = b;
+      } else if (output_type == kTensorInt8) {
+        // Shifting by the zero point of -128 flips the highest bit.
+        *out_byte++ = r ^ 0x80;
+        *out_byte++ = g ^ 0x80;
+        *out_byte++ = b ^ 0x80;
+      } else {
+        *out_byte++ = r;
+        *out_byte++ = g;
+        *out_byte++ = b;
+      }
+
+      src_x += step_x;
+      src_y += step_y;
+    }
+  }
+}
+
 //  Accepts a YUV 4:2:0 image with a plane of 8 bit Y samples followed by an
 //  interleaved U/V plane containing 8 bit 2x2 subsampled chroma samples,
 //  except the interleave order of U and V is reversed. Converts to a packed
@@ -32,6 +32,28 @@ void ConvertYUV420ToARGB8888(const uint8_t* const yData,
                              const int y_row_stride, const int uv_row_stride,
                              const int uv_pixel_stride);
 
+// Output element types of ConvertYUV420ToRGBTensor.
+enum TensorType { kTensorFloat32 = 0, kTensorUint8 = 1, kTensorInt8 = 2 };
+
+// Converts a YUV 4:2:0 image directly into an RGB model input tensor of
+// out_width x out_height pixels. Every output pixel center is mapped back into
+// the source image with output_to_src, a row-major 3x3 affine matrix, and
+// sampled with nearest neighbour. Pixels falling outside of the source image
+// are written as black. Channels are written as uint8 or as float32 in the
+// range [0, 255], or as int8 with a zero point of -128, depending on
+// output_type.
+// This replaces the ARGB conversion, the bitmap scaling and the tensor
+// conversion by a single pass over the output pixels.
+void ConvertYUV420ToRGBTensor(const uint8_t* const yData,
+                              const uint8_t* const uData,
+                              const uint8_t* const vData, const int width,
+                              const int height, const int y_row_stride,
+                              const int uv_row_stride,
+                              const int uv_pixel_stride,
+                              const float* const output_to_src,
+                              void* const output, const int out_width,
+                              const int out_height, const int output_type);
+
 // Converts YUV420 semi-planar data to ARGB 8888 data using the supplied width
 // and height. The input and output must already be allocated and non-null.
 // For efficiency, no error checking is performed.
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import java.util.Arrays;
+
+/*
+ * Chooses between models ordered from the smallest to the largest input size. The average of the
+ * last WINDOW_SIZE inference times is compared with a target band: above the band the next smaller
+ * model is chosen, below it the next larger one. After a switch the window starts over, so the new
+ * model is judged only by its own inference times.
+ */
+class AdaptiveModelSelector {
+
+    static final int WINDOW_SIZE = 10;
+
+    private final int modelCount;
+    private final long minInferenceNanos;
+    private final long maxInferenceNanos;
+    private final long[] window = new long[WINDOW_SIZE];
+    private int windowCount = 0;
+    private int windowPosition = 0;
+    private long windowSum = 0;
+    private int selected;
+
+    AdaptiveModelSelector(int modelCount, int selected, long minInferenceNanos, long maxInferenceNanos) {
+        if (minInferenceNanos >= maxInferenceNanos) {
+            throw new IllegalArgumentException("Empty inference time band " + minInferenceNanos + " - " + maxInferenceNanos);
+        }
+        this.modelCount = modelCount;
+        this.selected = selected;
+        this.minInferenceNanos = minInferenceNanos;
+        this.maxInferenceNanos = maxInferenceNanos;
+    }
+
+    int getSelected() {
+        return selected;
+    }
+
+    /**
+     * Add the inference time of the selected model.
+     *
+     * @return index of the model to use for the next inference.
+     */
+    int onInference(long inferenceNanos) {
+        windowSum += inferenceNanos - window[windowPosition];
+        window[windowPosition] = inferenceNanos;
+        windowPosition = (windowPosition + 1) % WINDOW_SIZE;
+        if (windowCount < WINDOW_SIZE) {
+            windowCount++;
+            return selected;
+        }
+
+        final long average = windowSum / WINDOW_SIZE;
+        if (average > maxInferenceNanos && selected > 0) {
+            select(selected - 1);
+        } else if (average < minInferenceNanos && selected < modelCount - 1) {
+            select(selected + 1);
+        }
+        return selected;
+    }
+
+    private void select(int index) {
+        selected = index;
+        windowCount = 0;
+        windowPosition = 0;
+        windowSum = 0;
+        Arrays.fill(window, 0);
+    }
+}
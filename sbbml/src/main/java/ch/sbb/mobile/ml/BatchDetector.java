@@ -0,0 +1,266 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ImageFormat;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.YuvImage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import timber.log.Timber;
+
+/*
+ * Detects objects in a set of stored images, e.g. recorded inspection photos, without a camera
+ * and a view. Several images go through the interpreter at once if the model has a dynamic batch
+ * dimension. Otherwise, or additionally, the images are spread over an {@link InterpreterPool},
+ * as many interpreters as the cores allow with the threads of the settings, so decoding and
+ * inference of different images overlap.
+ *
+ * The results are in the coordinates of each source image, filtered with the minimum confidence
+ * and object size of the settings. Not thread safe, use one instance per caller.
+ */
+public class BatchDetector implements Closeable {
+
+    private interface ImageSource {
+        void loadInto(Worker worker, int index, int batchIndex) throws IOException;
+    }
+
+    private final MLSettings mlSettings;
+    private final InterpreterPool interpreterPool;
+    private final Worker[] workers;
+    private final BlockingQueue<Worker> idleWorkers;
+    private final ExecutorService executor;
+    private boolean closed = false;
+
+    /**
+     * Load the model of the settings for batch processing.
+     *
+     * @param batchSize images per inference, applied only if the model allows resizing its batch.
+     */
+    public BatchDetector(Context context, MLSettings mlSettings, int batchSize) throws IOException {
+        this.mlSettings = mlSettings;
+        interpreterPool = InterpreterPool.acquire(context, mlSettings, mlSettings.getModelFilename(),
+                Runtime.getRuntime().availableProcessors() / Math.max(1, mlSettings.getNumberOfThreds()));
+        final int parallelism = interpreterPool.size();
+        workers = new Worker[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            final TFLiteObjectDetector detector = interpreterPool.get(i);
+            workers[i] = new Worker(detector, detector.setBatchSize(Math.max(1, batchSize)));
+        }
+        idleWorkers = new ArrayBlockingQueue<>(parallelism, false, Arrays.asList(workers));
+        executor = Executors.newFixedThreadPool(parallelism);
+        Timber.i("BatchDetector with %d interpreters, batch size %d", parallelism, getBatchSize());
+    }
+
+    /**
+     * Images per inference of each interpreter, 1 if the model does not allow batches.
+     */
+    public int getBatchSize() {
+        return workers[0].detector.getBatchSize();
+    }
+
+    /**
+     * Number of interpreters running in parallel.
+     */
+    public int getParallelism() {
+        return workers.length;
+    }
+
+    /**
+     * @return the recognitions of each bitmap, in the order of the bitmaps.
+     */
+    public List<List<MLRecognition>> detectBitmaps(final List<Bitmap> bitmaps) throws IOException {
+        return detect(bitmaps.size(), (worker, index, batchIndex) -> worker.load(bitmaps.get(index), batchIndex));
+    }
+
+    /**
+     * Decode and detect image files, in any format {@link BitmapFactory} supports.
+     *
+     * @return the recognitions of each file, in the order of the files.
+     */
+    public List<List<MLRecognition>> detectFiles(final List<File> files) throws IOException {
+        return detect(files.size(), (worker, index, batchIndex) -> {
+            final Bitmap bitmap = BitmapFactory.decodeFile(files.get(index).getPath());
+            if (bitmap == null) {
+                throw new IOException("Cannot decode " + files.get(index));
+            }
+            worker.load(bitmap, batchIndex);
+            bitmap.recycle();
+        });
+    }
+
+    /**
+     * Detect NV21 images, the format of recorded camera frames. They are converted straight into
+     * the model input without an intermediate bitmap.
+     *
+     * @return the recognitions of each image, in the order of the images.
+     */
+    public List<List<MLRecognition>> detectYuvImages(final List<YuvImage> images) throws IOException {
+        for (final YuvImage image : images) {
+            if (image.getYuvFormat() != ImageFormat.NV21) {
+                throw new IllegalArgumentException("Unsupported YUV format " + image.getYuvFormat());
+            }
+        }
+        return detect(images.size(), (worker, index, batchIndex) -> worker.load(images.get(index), batchIndex));
+    }
+
+    /**
+     * Give the interpreters back to the model cache. The detector cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        executor.shutdown();
+        for (final Worker worker : workers) {
+            worker.detector.setBatchSize(1);
+        }
+        interpreterPool.release(mlSettings.getModelCacheSizeBytes());
+    }
+
+    private List<List<MLRecognition>> detect(int count, ImageSource source) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("BatchDetector is closed");
+        }
+        final List<List<MLRecognition>> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(null);
+        }
+
+        final int batchSize = getBatchSize();
+        final List<Future<?>> batches = new ArrayList<>();
+        for (int first = 0; first < count; first += batchSize) {
+            final int start = first;
+            final int end = Math.min(count, first + batchSize);
+            batches.add(executor.submit(() -> {
+                final Worker worker = idleWorkers.take();
+                try {
+                    worker.detect(source, start, end, results);
+                } finally {
+                    idleWorkers.add(worker);
+                }
+                return null;
+            }));
+        }
+
+        try {
+            for (final Future<?> batch : batches) {
+                batch.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch detection interrupted");
+        } catch (ExecutionException e) {
+            for (final Future<?> batch : batches) {
+                batch.cancel(false);
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Batch detection failed: " + e.getCause());
+        }
+        return results;
+    }
+
+    /*
+     * An interpreter with the buffers to fill its batch, used by one thread at a time.
+     */
+    private class Worker {
+        final TFLiteObjectDetector detector;
+        final Bitmap inputBitmap;
+        final Canvas inputCanvas;
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        final Matrix[] inputToImageTransforms;
+        final float[] inputToImageValues = new float[9];
+        final DetectionBuffer detections;
+
+        Worker(TFLiteObjectDetector detector, int batchSize) {
+            this.detector = detector;
+            inputBitmap = Bitmap.createBitmap(detector.getInputWidth(), detector.getInputHeight(), Bitmap.Config.ARGB_8888);
+            inputCanvas = new Canvas(inputBitmap);
+            inputToImageTransforms = new Matrix[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                inputToImageTransforms[i] = new Matrix();
+            }
+            detections = new DetectionBuffer(detector.getMaxNumberOfOutput());
+        }
+
+        void detect(ImageSource source, int start, int end, List<List<MLRecognition>> results) throws IOException {
+            for (int i = start; i < end; i++) {
+                source.loadInto(this, i, i - start);
+            }
+            detector.updateSettings(mlSettings);
+            detector.runBatchInference();
+            for (int i = start; i < end; i++) {
+                final int batchIndex = i - start;
+                detector.collectDetections(detector.getBatchResult(batchIndex), detections);
+                detections.filter(mlSettings.getMinimumConfidence(), mlSettings.getMinObjectSize());
+                detections.transform(inputToImageTransforms[batchIndex]);
+                // each index is written by one worker only, the futures publish the results
+                results.set(i, detections.toRecognitions());
+            }
+        }
+
+        void load(Bitmap bitmap, int batchIndex) {
+            final Matrix imageToInput = imageToInputTransform(bitmap.getWidth(), bitmap.getHeight(), batchIndex);
+            inputCanvas.drawBitmap(bitmap, imageToInput, paint);
+            detector.loadImage(inputBitmap, batchIndex);
+        }
+
+        void load(YuvImage image, int batchIndex) {
+            final int width = image.getWidth();
+            final int height = image.getHeight();
+            final int[] strides = image.getStrides();
+            final byte[] data = image.getYuvData();
+            // NV21 is the Y plane followed by interleaved V and U
+            final int uvStart = strides[0] * height;
+            final byte[] vData = Arrays.copyOfRange(data, uvStart, data.length);
+            final byte[] uData = Arrays.copyOfRange(data, uvStart + 1, data.length);
+
+            imageToInputTransform(width, height, batchIndex);
+            inputToImageTransforms[batchIndex].getValues(inputToImageValues);
+            ImageUtils.convertYUV420ToTensor(
+                    data,
+                    uData,
+                    vData,
+                    width,
+                    height,
+                    strides[0],
+                    strides[1],
+                    2,
+                    inputToImageValues,
+                    detector.getInputImageBuffer(batchIndex),
+                    detector.getInputWidth(),
+                    detector.getInputHeight(),
+                    detector.getInputTensorType());
+        }
+
+        private Matrix imageToInputTransform(int width, int height, int batchIndex) {
+            final Matrix imageToInput = ImageUtils.getTransformationMatrix(
+                    width, height, detector.getInputWidth(), detector.getInputHeight(),
+                    0, mlSettings.isMaintainAspectRatio());
+            imageToInput.invert(inputToImageTransforms[batchIndex]);
+            return imageToInput;
+        }
+    }
+}
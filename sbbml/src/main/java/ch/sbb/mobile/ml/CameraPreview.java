@@ -101,7 +101,7 @@ class CameraPreview {
             previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             previewRequestBuilder.addTarget(surface);
 
-            previewReader = ImageReader.newInstance(mlSettings.getPreviewSize().getWidth(), mlSettings.getPreviewSize().getHeight(), ImageFormat.YUV_420_888, 2);
+            previewReader = ImageReader.newInstance(mlSettings.getPreviewSize().getWidth(), mlSettings.getPreviewSize().getHeight(), ImageFormat.YUV_420_888, mlSettings.getNumberOfFrameBuffers());
             previewReader.setOnImageAvailableListener(imageListener, cameraHandler);
             previewRequestBuilder.addTarget(previewReader.getSurface());
 
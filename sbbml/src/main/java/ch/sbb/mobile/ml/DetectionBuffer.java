@@ -0,0 +1,250 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Detected objects of one frame held in primitive arrays. A buffer is allocated once and filled in
+ * place for every frame, so passing results through the pipeline does not create garbage. Use
+ * {@link #toRecognitions()} where a list of {@link MLRecognition} is more convenient.
+ */
+public class DetectionBuffer {
+
+    /**
+     * Enough for the objects of a frame which are published to the view.
+     */
+    static final int DEFAULT_CAPACITY = 100;
+
+    private final float[] left;
+    private final float[] top;
+    private final float[] right;
+    private final float[] bottom;
+    private final float[] score;
+    private final int[] labelId;
+    private int count;
+    private List<String> labels = Collections.emptyList();
+    private final RectF rect = new RectF();
+    // only allocated when overlaps are suppressed
+    private float[] suppressionScores;
+    private int[] selected;
+    private boolean[] kept;
+
+    public DetectionBuffer(int capacity) {
+        left = new float[capacity];
+        top = new float[capacity];
+        right = new float[capacity];
+        bottom = new float[capacity];
+        score = new float[capacity];
+        labelId = new int[capacity];
+    }
+
+    /**
+     * Copy a list of recognitions, the labels are numbered in the order they first appear.
+     */
+    static DetectionBuffer fromRecognitions(List<MLRecognition> recognitions) {
+        final DetectionBuffer buffer = new DetectionBuffer(recognitions.size());
+        final List<String> labels = new ArrayList<>();
+        for (final MLRecognition recognition : recognitions) {
+            int id = labels.indexOf(recognition.getTitle());
+            if (id < 0) {
+                id = labels.size();
+                labels.add(recognition.getTitle());
+            }
+            final RectF location = recognition.getLocation();
+            buffer.add(location.left, location.top, location.right, location.bottom, recognition.getConfidence(), id);
+        }
+        buffer.setLabels(labels);
+        return buffer;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return score.length;
+    }
+
+    public float getLeft(int index) {
+        return left[index];
+    }
+
+    public float getTop(int index) {
+        return top[index];
+    }
+
+    public float getRight(int index) {
+        return right[index];
+    }
+
+    public float getBottom(int index) {
+        return bottom[index];
+    }
+
+    public float getScore(int index) {
+        return score[index];
+    }
+
+    public int getLabelId(int index) {
+        return labelId[index];
+    }
+
+    /**
+     * @return the label of the detection, null if the id is not in the labels of the model.
+     */
+    public String getLabel(int index) {
+        final int id = labelId[index];
+        return id >= 0 && id < labels.size() ? labels.get(id) : null;
+    }
+
+    /**
+     * Copy the location of a detection into rect.
+     */
+    public void getLocation(int index, RectF rect) {
+        rect.set(left[index], top[index], right[index], bottom[index]);
+    }
+
+    /**
+     * @return the labels the label ids refer to.
+     */
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    void setLabels(List<String> labels) {
+        this.labels = labels;
+    }
+
+    void clear() {
+        count = 0;
+    }
+
+    /**
+     * @return false if the buffer is full and the detection was not added.
+     */
+    boolean add(float left, float top, float right, float bottom, float score, int labelId) {
+        if (count == this.score.length) {
+            return false;
+        }
+        this.left[count] = left;
+        this.top[count] = top;
+        this.right[count] = right;
+        this.bottom[count] = bottom;
+        this.score[count] = score;
+        this.labelId[count] = labelId;
+        count++;
+        return true;
+    }
+
+    boolean add(RectF location, float score, int labelId) {
+        return add(location.left, location.top, location.right, location.bottom, score, labelId);
+    }
+
+    /**
+     * Replace the content with the content of other, as far as it fits.
+     */
+    void copyFrom(DetectionBuffer other) {
+        count = Math.min(other.count, score.length);
+        System.arraycopy(other.left, 0, left, 0, count);
+        System.arraycopy(other.top, 0, top, 0, count);
+        System.arraycopy(other.right, 0, right, 0, count);
+        System.arraycopy(other.bottom, 0, bottom, 0, count);
+        System.arraycopy(other.score, 0, score, 0, count);
+        System.arraycopy(other.labelId, 0, labelId, 0, count);
+        labels = other.labels;
+    }
+
+    /**
+     * Append the detections of other as far as they fit. Both must use the same labels.
+     */
+    void addAll(DetectionBuffer other) {
+        for (int i = 0; i < other.count; i++) {
+            if (!add(other.left[i], other.top[i], other.right[i], other.bottom[i], other.score[i], other.labelId[i])) {
+                return;
+            }
+        }
+        labels = other.labels;
+    }
+
+    /**
+     * Remove the detections which overlap a better detection of the same label by more than
+     * iouThreshold, e.g. objects found by two overlapping tiles. The order is preserved.
+     */
+    void suppressOverlaps(float iouThreshold) {
+        if (suppressionScores == null) {
+            suppressionScores = new float[score.length];
+            selected = new int[score.length];
+            kept = new boolean[score.length];
+        }
+        System.arraycopy(score, 0, suppressionScores, 0, count);
+        final int numSelected = NonMaxSuppression.select(top, left, bottom, right, suppressionScores, labelId, count,
+                iouThreshold, count, selected);
+        Arrays.fill(kept, 0, count, false);
+        for (int i = 0; i < numSelected; i++) {
+            kept[selected[i]] = true;
+        }
+        int remaining = 0;
+        for (int i = 0; i < count; i++) {
+            if (kept[i]) {
+                move(i, remaining++);
+            }
+        }
+        count = remaining;
+    }
+
+    private void move(int from, int to) {
+        left[to] = left[from];
+        top[to] = top[from];
+        right[to] = right[from];
+        bottom[to] = bottom[from];
+        score[to] = score[from];
+        labelId[to] = labelId[from];
+    }
+
+    /**
+     * Keep only the detections with at least minimumScore whose sides are at least minimumSize,
+     * the order is preserved.
+     */
+    void filter(float minimumScore, float minimumSize) {
+        int remaining = 0;
+        for (int i = 0; i < count; i++) {
+            if (score[i] >= minimumScore && right[i] - left[i] >= minimumSize && bottom[i] - top[i] >= minimumSize) {
+                move(i, remaining++);
+            }
+        }
+        count = remaining;
+    }
+
+    /**
+     * Map every location with the transformation, see {@link Matrix#mapRect(RectF)}.
+     */
+    void transform(Matrix matrix) {
+        for (int i = 0; i < count; i++) {
+            getLocation(i, rect);
+            matrix.mapRect(rect);
+            left[i] = rect.left;
+            top[i] = rect.top;
+            right[i] = rect.right;
+            bottom[i] = rect.bottom;
+        }
+    }
+
+    /**
+     * @return a new list with a recognition for every detection.
+     */
+    public List<MLRecognition> toRecognitions() {
+        final List<MLRecognition> recognitions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            recognitions.add(new MLRecognition(getLabel(i), score[i], new RectF(left[i], top[i], right[i], bottom[i])));
+        }
+        return recognitions;
+    }
+}
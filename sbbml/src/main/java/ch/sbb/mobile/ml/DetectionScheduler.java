@@ -0,0 +1,54 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+/*
+ * Decides for every tracked frame whether it goes to the detector, from the motion statistics of
+ * the tracker. A stable scene is only detected again after the maximum interval, a changing scene
+ * as soon as the minimum interval has passed.
+ */
+class DetectionScheduler {
+
+    // mean keypoint motion per frame, relative to the frame width, from which on the camera or the
+    // scene is considered moving
+    static final float MOTION_THRESHOLD = 0.005f;
+    // fraction of keypoints lost from one frame to the next, e.g. something entered the view
+    static final float CHURN_THRESHOLD = 0.3f;
+    // the tracker lets an object go below 0.2, detect again before that happens
+    static final float CORRELATION_THRESHOLD = 0.5f;
+
+    private long lastDetectionNanos;
+    private boolean detected = false;
+
+    /**
+     * @param keypointCount  keypoints of the tracker in the last frame, 0 if nothing is known about the scene
+     * @param keypointChurn  fraction of the keypoints lost in the last frame
+     * @param frameMotion    mean motion of the keypoints relative to the frame width
+     * @param minCorrelation lowest correlation of the tracked objects, 1 if nothing is tracked
+     * @return true if the frame should be detected, then the next interval starts now.
+     */
+    boolean shouldDetect(long nowNanos, long minIntervalNanos, long maxIntervalNanos,
+                         int keypointCount, float keypointChurn, float frameMotion, float minCorrelation) {
+        final long elapsedNanos = nowNanos - lastDetectionNanos;
+        final boolean detect;
+        if (!detected) {
+            detect = true;
+        } else if (elapsedNanos < minIntervalNanos) {
+            detect = false;
+        } else if (elapsedNanos >= maxIntervalNanos) {
+            detect = true;
+        } else {
+            detect = keypointCount == 0
+                    || frameMotion > MOTION_THRESHOLD
+                    || keypointChurn > CHURN_THRESHOLD
+                    || minCorrelation < CORRELATION_THRESHOLD;
+        }
+
+        if (detect) {
+            detected = true;
+            lastDetectionNanos = nowNanos;
+        }
+        return detect;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import timber.log.Timber;
+
+/*
+ * The loaded models of a frame processor: the model of the settings or, in adaptive mode, all
+ * candidate models ordered from the smallest to the largest input size, so switching between them
+ * does not stall the pipeline. Only used from the detection thread once it is loaded.
+ */
+class DetectorSet {
+
+    private final ScaledDetector[] detectors;
+    private final AdaptiveModelSelector modelSelector;
+    private final long modelCacheSizeBytes;
+    private ScaledDetector active;
+
+    private DetectorSet(ScaledDetector[] detectors, MLSettings mlSettings) {
+        this.detectors = detectors;
+        this.modelCacheSizeBytes = mlSettings.getModelCacheSizeBytes();
+        if (detectors.length > 1) {
+            int start = 0;
+            for (int i = 0; i < detectors.length; i++) {
+                if (detectors[i].detector.getModelFilename().equals(mlSettings.getModelFilename())) {
+                    start = i;
+                }
+            }
+            modelSelector = new AdaptiveModelSelector(detectors.length, start,
+                    mlSettings.getAdaptiveMinInferenceTimeMs() * 1_000_000L,
+                    mlSettings.getAdaptiveMaxInferenceTimeMs() * 1_000_000L);
+            active = detectors[start];
+        } else {
+            modelSelector = null;
+            active = detectors[0];
+        }
+    }
+
+    static DetectorSet load(Context context, MLSettings mlSettings, int sensorOrientation) throws IOException {
+        final int poolSize = mlSettings.getInterpreterPoolSize();
+        final List<String> filenames = mlSettings.getAdaptiveModelFilenames();
+        if (filenames == null || filenames.isEmpty()) {
+            return new DetectorSet(new ScaledDetector[] {
+                    new ScaledDetector(InterpreterPool.acquire(context, mlSettings, mlSettings.getModelFilename(), poolSize),
+                            mlSettings, sensorOrientation)
+            }, mlSettings);
+        }
+
+        final ScaledDetector[] detectors = new ScaledDetector[filenames.size()];
+        try {
+            for (int i = 0; i < detectors.length; i++) {
+                detectors[i] = new ScaledDetector(InterpreterPool.acquire(context, mlSettings, filenames.get(i), poolSize),
+                        mlSettings, sensorOrientation);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (final ScaledDetector detector : detectors) {
+                if (detector != null) {
+                    detector.interpreterPool.release(mlSettings.getModelCacheSizeBytes());
+                }
+            }
+            throw e;
+        }
+        Arrays.sort(detectors, (a, b) -> Integer.compare(a.getInputPixels(), b.getInputPixels()));
+        return new DetectorSet(detectors, mlSettings);
+    }
+
+    /**
+     * Settings which need the models to be loaded again when they change. Everything else is read
+     * from the settings for every frame.
+     */
+    static String configurationOf(MLSettings mlSettings) {
+        return mlSettings.getModelFilename()
+                + "|" + mlSettings.getAdaptiveModelFilenames()
+                + "|" + mlSettings.getAdaptiveMinInferenceTimeMs()
+                + "|" + mlSettings.getAdaptiveMaxInferenceTimeMs()
+                + "|" + mlSettings.getProcessor()
+                + "|" + mlSettings.getNumberOfThreds()
+                + "|" + mlSettings.getInterpreterPoolSize()
+                + "|" + mlSettings.isUseCPUBackup()
+                + "|" + mlSettings.isUseCompiledModelCache()
+                + "|" + mlSettings.isMaintainAspectRatio()
+                + "|" + mlSettings.getTileRows()
+                + "|" + mlSettings.getTileColumns()
+                + "|" + mlSettings.getTileOverlap();
+    }
+
+    /**
+     * Run every model a few times on its current input, so the one-time setup of the first
+     * inference does not delay the first camera frames or a later switch to the model.
+     */
+    void warmUp(int runs) throws IOException {
+        for (final ScaledDetector detector : detectors) {
+            for (int j = 0; j < detector.interpreterPool.size(); j++) {
+                for (int i = 0; i < runs; i++) {
+                    detector.interpreterPool.get(j).runInference();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if every model was taken from the compiled model cache of the delegate.
+     */
+    boolean isCompiledModelCached() {
+        for (final ScaledDetector detector : detectors) {
+            if (!detector.detector.isCompiledModelCached()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    ScaledDetector getActive() {
+        return active;
+    }
+
+    /**
+     * Feed the inference time of the active model to the adaptive selection, which may choose
+     * another model for the next frame. Called by every interpreter of the pool.
+     */
+    synchronized void onInference(long inferenceNanos) {
+        if (modelSelector == null) {
+            return;
+        }
+        final ScaledDetector selected = detectors[modelSelector.onInference(inferenceNanos)];
+        if (selected != active) {
+            Timber.i("Average inference time out of target band, switching to model %s", selected.detector.getModelFilename());
+            active = selected;
+        }
+    }
+
+    /**
+     * Take over thresholds changed in the settings without loading the models again.
+     */
+    void updateSettings(MLSettings mlSettings) {
+        for (final ScaledDetector detector : detectors) {
+            for (int i = 0; i < detector.interpreterPool.size(); i++) {
+                detector.interpreterPool.get(i).updateSettings(mlSettings);
+            }
+        }
+    }
+
+    /**
+     * Give the detectors back to the model cache, which closes them if they do not fit into it.
+     */
+    void close() {
+        for (final ScaledDetector detector : detectors) {
+            detector.interpreterPool.release(modelCacheSizeBytes);
+        }
+    }
+}
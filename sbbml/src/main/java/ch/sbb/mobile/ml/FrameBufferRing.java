@@ -0,0 +1,52 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Lock-free bookkeeping of the preallocated frame buffers. A slot is claimed with compare and set,
+ * so the camera thread can reserve slots while the processing threads free them without locking.
+ * The search starts after the last reserved slot, so the slots are used round robin.
+ */
+class FrameBufferRing {
+
+    private static final int FREE = 0;
+    private static final int RESERVED = 1;
+
+    private final AtomicIntegerArray slots;
+    private final AtomicInteger cursor = new AtomicInteger(0);
+
+    FrameBufferRing(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Ring needs at least one slot, got " + size);
+        }
+        slots = new AtomicIntegerArray(size);
+    }
+
+    int size() {
+        return slots.length();
+    }
+
+    /**
+     * @return index of the reserved slot or -1 if all slots are in use.
+     */
+    int reserve() {
+        final int size = slots.length();
+        final int start = cursor.get();
+        for (int i = 0; i < size; i++) {
+            final int index = (start + i) % size;
+            if (slots.compareAndSet(index, FREE, RESERVED)) {
+                cursor.set((index + 1) % size);
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    void free(int index) {
+        slots.set(index, FREE);
+    }
+}
@@ -4,8 +4,6 @@
 package ch.sbb.mobile.ml;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.media.Image;
@@ -14,270 +12,714 @@ import android.util.Size;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import timber.log.Timber;
 
 /*
  * The architechture is optimized for performance.
  * 
- * There are 2 image buffers for input images and 2 threads in executor.
+ * There are N image buffers for input images (MLSettings#getNumberOfFrameBuffers) and two pipeline
+ * stages, each with its own thread:
+ * - the tracking thread gets every frame in capture order and updates the tracker with it.
+ * - the detection thread runs the detector. After tracking, a frame is posted to a single slot
+ *   mailbox; a frame which is still waiting there when the next one arrives is dropped, so the
+ *   detector always takes the newest frame. The slow inference never delays the tracking.
+ * The models are loaded and warmed up on a third thread, at start while the camera opens. When the
+ * settings change on the fly, new models are loaded there as well and swapped in by the detection
+ * thread between two inferences, the camera keeps running.
+ * With an interpreter pool (MLSettings#getInterpreterPoolSize) the tiles or the regions around
+ * tracked objects of a frame are detected in parallel by helper threads. There is still one frame
+ * in detection at a time, so the tracker gets the detections in capture order.
  * The algorithm gets images faster than it can handle and it discards some input images.
- * A thread may do both tracking and detection or only just tracking for an image depending on
- * if the detector is busy or not. Detector algorithm is slower than tracking. Tracking only thread
- * is executed several times while detection algorithms does the inference.
  *
  * The image buffers are never copied or given as input parameter to a function to avoid
- * large garbage collection.
+ * large garbage collection. In zero copy mode the planes are not even copied into the image
+ * buffers: the camera image stays open until its frame is processed and the native code reads
+ * the direct buffers of the planes in place.
  *
- * Some functions are C++ optimized.
+ * Some functions are C++ optimized. The YUV image is converted straight into the input tensor
+ * of the model, there is no intermediate RGB image or bitmap.
  */
 
 class FrameProcessor {
 
     public interface FrameProcessorListener {
-        void foundObjects(List<MultiBoxTracker.TrackedRecognition> objectList);
+        /**
+         * The buffer is reused for the next results, copy what is needed beyond the call.
+         */
+        void foundObjects(DetectionBuffer objects);
         void error(String errorMsg);
         void info(Size previewSize, Size inputSize, int inferenceTime);
+        default void metrics(MLMetrics metrics) {}
+        default void ready() {}
+        default void initializationFailed(String errorMsg) {}
     }
 
     private byte[][][] yuvBytesBuffer;
-    private int[] rgbBytes;
-    private ExecutorService executorService;
-    private MLSettings mlSettings;
-    private Bitmap rgbFrameBitmap;
-    private TFLiteObjectDetector detector;
+    private final ByteBuffer[][] planeBuffers;
+    private final FrameBufferRing frameBuffers;
+    private final boolean zeroCopy;
+    private final Frame[] frames;
+    private final AtomicReference<Frame> detectionMailbox = new AtomicReference<>();
+    private final AtomicBoolean isDetectionScheduled = new AtomicBoolean(false);
+    private final AtomicLong frameTimestamp = new AtomicLong(0);
+    private final Runnable detectionTask = this::detectLatestFrames;
+    private final ExecutorService trackingExecutor;
+    private final ExecutorService detectionExecutor;
+    // the other interpreters of the pool, created by the detection thread when first needed
+    private ExecutorService regionExecutor;
+    private final ExecutorService modelLoader = Executors.newSingleThreadExecutor();
+    private volatile MLSettings mlSettings;
+    private final Context context;
+    private final int sensorOrientation;
+    private DetectorSet detectorSet;
+    private MLSettings detectorSettings;
+    private final AtomicReference<DetectorSet> loadedDetectorSet = new AtomicReference<>();
+    private String requestedConfiguration;
+    private volatile boolean stopped = false;
     private MultiBoxTracker multiBoxTracker;
-    private long timestamp = 0;
     private long lastProcessingTimeMs;
-    private final AtomicBoolean isBuffer0Free = new AtomicBoolean(true);
-    private final AtomicBoolean isBuffer1Free = new AtomicBoolean(true);
-    private final AtomicBoolean isDetectingFrame = new AtomicBoolean(false);
-    private final List<MultiBoxTracker.TrackedRecognition> frameRecognitions = new ArrayList<>();
-    private Bitmap scaledBitmap;
-    private Matrix frameToScaledTransform;
-    private Matrix scaledToFrameTransform;
+    // filled by the detection thread only
+    private DetectionBuffer detections;
+    // filled by the tracking and the detection thread while holding the lock of the processor
+    private final DetectionBuffer publishedObjects = new DetectionBuffer(DetectionBuffer.DEFAULT_CAPACITY);
+    private volatile List<String> labels = Collections.emptyList();
+    // scheduling of the detection in regions around tracked objects, detection thread only
+    private final RoiPlanner roiPlanner = new RoiPlanner();
+    private final RectF roiBounds = new RectF();
+    // tracking thread only
+    private final DetectionScheduler detectionScheduler = new DetectionScheduler();
     private FrameProcessorListener frameProcessorListener;
+    private final PipelineMetrics metrics;
+
+    /**
+     * The models are loaded in the background, {@link FrameProcessorListener#ready()} is called
+     * when the detection can start.
+     */
+    public FrameProcessor(Context context, MLSettings mlSettings, int sensorOrientation, FrameProcessorListener frameProcessorListener) {
+        this(context, mlSettings, sensorOrientation, frameProcessorListener,
+                Executors.newSingleThreadExecutor(), Executors.newSingleThreadExecutor());
+    }
 
-    public FrameProcessor(Context context, MLSettings mlSettings, int sensorOrientation, FrameProcessorListener frameProcessorListener) throws IOException {
+    /**
+     * Runs the tracking and the detection stage on the given executors, each must run one task at
+     * a time in the order they were submitted. They are shut down by {@link #onStop()}.
+     */
+    FrameProcessor(Context context, MLSettings mlSettings, int sensorOrientation, FrameProcessorListener frameProcessorListener,
+                   ExecutorService trackingExecutor, ExecutorService detectionExecutor) {
         this.mlSettings = mlSettings;
+        this.context = context;
+        this.sensorOrientation = sensorOrientation;
         this.frameProcessorListener = frameProcessorListener;
-        executorService = Executors.newFixedThreadPool(2);
-        rgbFrameBitmap = Bitmap.createBitmap(mlSettings.getPreviewSize().getWidth(), mlSettings.getPreviewSize().getHeight(), Bitmap.Config.ARGB_8888);
-        rgbBytes = new int[mlSettings.getPreviewSize().getWidth() * mlSettings.getPreviewSize().getHeight()];
-        scaledBitmap = Bitmap.createBitmap(mlSettings.getModelInputSize(), mlSettings.getModelInputSize(), Bitmap.Config.ARGB_8888);
-        frameToScaledTransform = ImageUtils.getTransformationMatrix(
-                mlSettings.getPreviewSize().getWidth(), mlSettings.getPreviewSize().getHeight(),
-                mlSettings.getModelInputSize(), mlSettings.getModelInputSize(),
-                sensorOrientation, mlSettings.isMaintainAspectRatio());
-        scaledToFrameTransform = new Matrix();
-        frameToScaledTransform.invert(scaledToFrameTransform);
-
-        detector = new TFLiteObjectDetector(context, mlSettings);
+        zeroCopy = mlSettings.isUseZeroCopy();
+        metrics = new PipelineMetrics(mlSettings.getMetricsIntervalMs());
+        frameBuffers = new FrameBufferRing(mlSettings.getNumberOfFrameBuffers());
+        planeBuffers = new ByteBuffer[frameBuffers.size()][3];
+        frames = new Frame[frameBuffers.size()];
+        for (int i = 0; i < frames.length; i++) {
+            final Frame frame = new Frame(i);
+            frame.trackingTask = () -> trackAndPostFrame(frame);
+            frames[i] = frame;
+        }
+        this.trackingExecutor = trackingExecutor;
+        this.detectionExecutor = detectionExecutor;
+
+        requestedConfiguration = DetectorSet.configurationOf(mlSettings);
+        loadDetectors(mlSettings, true);
+
         multiBoxTracker = new MultiBoxTracker();
-        timestamp = 0;
+        multiBoxTracker.setKeypointHistorySize(mlSettings.getKeypointHistorySize());
+    }
+
+    /**
+     * @return true if the new settings can be taken over by {@link #updateSettings} while the
+     * camera keeps running.
+     */
+    boolean canUpdateSettings(MLSettings newSettings) {
+        return newSettings.getNumberOfFrameBuffers() == frames.length &&
+                newSettings.isUseZeroCopy() == zeroCopy &&
+                newSettings.getMetricsIntervalMs() == metrics.getIntervalMs();
+    }
+
+    /**
+     * Take over new settings on the running pipeline. Thresholds and the tracker flag apply to the
+     * next frame. If the model, the processor or the number of threads changed, the new models are
+     * loaded in the background and swapped in between two inferences, the current models keep
+     * running until then. The preview size must not change.
+     */
+    void updateSettings(MLSettings newSettings) {
+        if (stopped) {
+            return;
+        }
+        mlSettings = newSettings;
+        final String configuration = DetectorSet.configurationOf(newSettings);
+        if (configuration.equals(requestedConfiguration)) {
+            return;
+        }
+
+        requestedConfiguration = configuration;
+        loadDetectors(newSettings, false);
+    }
+
+    /**
+     * Load and warm up the models on the model loader thread and hand them to the detection thread.
+     *
+     * @param initial true at start, then the listener is told when the detection is ready.
+     */
+    private void loadDetectors(MLSettings settings, boolean initial) {
+        modelLoader.execute(() -> {
+            final long loadStart = PipelineMetrics.startStage();
+            final long warmUpStart;
+            final DetectorSet loaded;
+            try {
+                loaded = DetectorSet.load(context, settings, sensorOrientation);
+                warmUpStart = PipelineMetrics.startStage();
+                try {
+                    loaded.warmUp(settings.getNumberOfWarmUpRuns());
+                } catch (IOException | RuntimeException e) {
+                    loaded.close();
+                    throw e;
+                }
+            } catch (IOException | RuntimeException e) {
+                // on this thread an uncaught exception would end the app instead of reaching the listener
+                final String errorMsg = (initial ? "model init failed: " : "model update failed: ") + e.toString();
+                Timber.e(errorMsg);
+                if (initial) {
+                    frameProcessorListener.initializationFailed(errorMsg);
+                } else {
+                    frameProcessorListener.error(errorMsg);
+                }
+                return;
+            }
+            metrics.recordStartup(warmUpStart - loadStart, PipelineMetrics.startStage() - warmUpStart,
+                    loaded.isCompiledModelCached());
+            Timber.i("Models loaded for %s", DetectorSet.configurationOf(settings));
+
+            closeDetectorSet(loadedDetectorSet.getAndSet(loaded));
+            if (stopped) {
+                // the detection thread is gone and will not pick them up
+                closeDetectorSet(loadedDetectorSet.getAndSet(null));
+            } else if (initial) {
+                frameProcessorListener.ready();
+            }
+        });
+    }
+
+    /**
+     * Called by the detection thread between two inferences to swap in newly loaded models and to
+     * hand new thresholds to the models.
+     */
+    private void refreshDetectors() {
+        final DetectorSet loaded = loadedDetectorSet.getAndSet(null);
+        if (loaded != null) {
+            Timber.i("Swapping in the newly loaded models");
+            closeDetectorSet(detectorSet);
+            detectorSet = loaded;
+            detectorSettings = null;
+        }
+
+        final MLSettings settings = mlSettings;
+        if (detectorSet != null && settings != detectorSettings) {
+            detectorSet.updateSettings(settings);
+            detectorSettings = settings;
+        }
+    }
+
+    private static void closeDetectorSet(DetectorSet detectors) {
+        if (detectors != null) {
+            detectors.close();
+        }
     }
 
     public void processImage(Image image, int bufferIndex) {
         final Image.Plane[] planes = image.getPlanes();
-        final int yRowStride = planes[0].getRowStride();
-        final int uvRowStride = planes[1].getRowStride();
-        final int uvPixelStride = planes[1].getPixelStride();
+        final Frame frame = frames[bufferIndex];
+        frame.image = image;
+        frame.timestamp = frameTimestamp.incrementAndGet();
+        metrics.frameAcquired();
+        frame.yRowStride = planes[0].getRowStride();
+        frame.uvRowStride = planes[1].getRowStride();
+        frame.uvPixelStride = planes[1].getPixelStride();
+
+        if (zeroCopy) {
+            // the planes are read in place, the image is closed only after the frame is processed
+            for (int i = 0; i < planes.length; ++i) {
+                planeBuffers[bufferIndex][i] = planes[i].getBuffer();
+            }
+        } else {
+            final long copyStart = PipelineMetrics.startStage();
+            copyPlanes(planes, bufferIndex);
+            metrics.record(MLMetrics.Stage.PLANE_COPY, copyStart);
+        }
 
-        // allocate on first run
-        // it is not possible to allocate these buffers earlier. in some image formats the yuv image is actually
-        // bigger than chosen preview size
-        if(yuvBytesBuffer == null) {
-            final int luminanceLength = planes[0].getBuffer().capacity();
-            final int chrominanceLength = planes[1].getBuffer().capacity();
+        Timber.i("onImageAvailable - queue frame %d", frame.timestamp);
+        trackingExecutor.execute(frame.trackingTask);
+    }
 
-            yuvBytesBuffer = new byte[2][3][];
-            yuvBytesBuffer[0][0] = new byte[luminanceLength];
-            yuvBytesBuffer[0][1] = new byte[chrominanceLength];
-            yuvBytesBuffer[0][2] = new byte[chrominanceLength];
-            yuvBytesBuffer[1][0] = new byte[luminanceLength];
-            yuvBytesBuffer[1][1] = new byte[chrominanceLength];
-            yuvBytesBuffer[1][2] = new byte[chrominanceLength];
+    private void trackAndPostFrame(Frame frame) {
+        if(mlSettings.isUseTracker()) {
+            Timber.i("Executing tracker inside : %s", Thread.currentThread().getName());
+            trackFrame(frame);
+            metrics.frameTracked();
         }
 
-        for (int i = 0; i < planes.length; ++i) {
-            final ByteBuffer buffer = planes[i].getBuffer();
-            buffer.get(yuvBytesBuffer[bufferIndex][i]);
+        if (isDetectionDue()) {
+            // hand the frame over to the detector, a frame the detector did not pick up yet is replaced.
+            final Frame replacedFrame = detectionMailbox.getAndSet(frame);
+            if (replacedFrame != null) {
+                metrics.frameDropped(MLMetrics.DropReason.DETECTOR_BUSY);
+                releaseFrame(replacedFrame);
+            }
+            if (isDetectionScheduled.compareAndSet(false, true)) {
+                detectionExecutor.execute(detectionTask);
+            }
+        } else {
+            metrics.frameDropped(MLMetrics.DropReason.SCENE_STABLE);
+            releaseFrame(frame);
         }
 
-        Timber.i("onImageAvailable - launch new thread");
-        Runnable task = () -> {
-            // first do tracking
-            timestamp++;
-            if(mlSettings.isUseTracker()) {
-                Timber.i("Executing tracker inside : %s", Thread.currentThread().getName());
-                trackFrame(yuvBytesBuffer[bufferIndex][0], timestamp);
-            }
+        final MLMetrics snapshot = metrics.snapshotIfDue();
+        if (snapshot != null) {
+            frameProcessorListener.metrics(snapshot);
+        }
+    }
 
-            if(isDetectingFrame.get()) {
-                // the detector is already busy, free the buffer and return.
-                image.close();
-                freeBuffer(bufferIndex);
+    /**
+     * Must be called from the tracking thread after the frame was tracked.
+     */
+    private boolean isDetectionDue() {
+        if (!mlSettings.isUseMotionGatedDetection()) {
+            return true;
+        }
+        final boolean tracked = mlSettings.isUseTracker();
+        return detectionScheduler.shouldDetect(
+                SystemClock.elapsedRealtimeNanos(),
+                mlSettings.getMinDetectionIntervalMs() * 1_000_000L,
+                mlSettings.getMaxDetectionIntervalMs() * 1_000_000L,
+                tracked ? multiBoxTracker.getKeypointCount() : 0,
+                multiBoxTracker.getKeypointChurn(),
+                multiBoxTracker.getFrameMotion(),
+                multiBoxTracker.getMinCorrelation());
+    }
+
+    private void detectLatestFrames() {
+        while (true) {
+            final Frame frame = detectionMailbox.getAndSet(null);
+            if (frame == null) {
+                isDetectionScheduled.set(false);
+                // a frame may have been posted after the mailbox was found empty but before the flag was cleared
+                if (detectionMailbox.get() != null && isDetectionScheduled.compareAndSet(false, true)) {
+                    continue;
+                }
                 return;
             }
 
-            // run object detector on this frame
-            isDetectingFrame.set(true);
             try {
                 Timber.i("Executing detection inside : %s", Thread.currentThread().getName());
-                yuv2RGB(yRowStride, uvRowStride, uvPixelStride, yuvBytesBuffer[bufferIndex]);
-                scale();
-                detectObjects(yuvBytesBuffer[bufferIndex][0], timestamp);
+                refreshDetectors();
+                if (detectorSet == null) {
+                    Timber.w("Models are not loaded yet, skipping detection");
+                    metrics.frameDropped(MLMetrics.DropReason.MODELS_LOADING);
+                    releaseFrame(frame);
+                    continue;
+                }
+                // counted once per frame, however many regions of it failed
+                if (!detectObjects(frame, detectorSet.getActive())) {
+                    metrics.frameDropped(MLMetrics.DropReason.DETECTION_FAILED);
+                }
             } catch(Exception e) {
+                metrics.frameDropped(MLMetrics.DropReason.DETECTION_FAILED);
                 Timber.e("Buffer overflow. This may happen if input image size is changed on the fly. Just skip this frame.");
             }
-            isDetectingFrame.set(false);
 
             // closing the image will enable us the get next image in onImageAvailable() and we also free a buffer to read it.
-            image.close();
-            freeBuffer(bufferIndex);
-        };
-        executorService.execute(task);
+            releaseFrame(frame);
+        }
     }
 
-    private void trackFrame(byte[] luminance, long timestamp) {
+    private void copyPlanes(Image.Plane[] planes, int bufferIndex) {
+        // allocate on first run
+        // it is not possible to allocate these buffers earlier. in some image formats the yuv image is actually
+        // bigger than chosen preview size
+        if(yuvBytesBuffer == null) {
+            final int luminanceLength = planes[0].getBuffer().capacity();
+            final int chrominanceLength = planes[1].getBuffer().capacity();
+
+            final byte[][][] buffers = new byte[frameBuffers.size()][3][];
+            for (final byte[][] yuvBytes : buffers) {
+                yuvBytes[0] = new byte[luminanceLength];
+                yuvBytes[1] = new byte[chrominanceLength];
+                yuvBytes[2] = new byte[chrominanceLength];
+            }
+            yuvBytesBuffer = buffers;
+        }
+
+        for (int i = 0; i < planes.length; ++i) {
+            final ByteBuffer buffer = planes[i].getBuffer();
+            buffer.get(yuvBytesBuffer[bufferIndex][i]);
+        }
+    }
+
+    private void releaseFrame(Frame frame) {
+        if (zeroCopy) {
+            Arrays.fill(planeBuffers[frame.index], null);
+        }
+        final Image image = frame.image;
+        frame.image = null;
+        image.close();
+        freeBuffer(frame.index);
+    }
+
+    private void trackFrame(Frame frame) {
         Timber.i("trackFrame");
-        multiBoxTracker.onFrame(
-                mlSettings.getPreviewSize().getWidth(),
-                mlSettings.getPreviewSize().getHeight(),
-                mlSettings.getPreviewSize().getWidth(),
-                luminance,
-                timestamp);
+        final int width = mlSettings.getPreviewSize().getWidth();
+        final int height = mlSettings.getPreviewSize().getHeight();
+        if (zeroCopy) {
+            multiBoxTracker.onFrame(width, height, frame.yRowStride, planeBuffers[frame.index][0], frame.timestamp);
+        } else {
+            multiBoxTracker.onFrame(width, height, frame.yRowStride, yuvBytesBuffer[frame.index][0], frame.timestamp);
+        }
+        metrics.recordNanos(MLMetrics.Stage.DOWNSAMPLE, multiBoxTracker.getDownsampleNanos());
+        metrics.recordNanos(MLMetrics.Stage.TRACKING, multiBoxTracker.getTrackingNanos());
 
+        final long publishStart = PipelineMetrics.startStage();
         publishTrackerResults();
+        metrics.record(MLMetrics.Stage.PUBLISH, publishStart);
     }
 
     private synchronized void publishTrackerResults() {
-        frameRecognitions.clear();
-        CopyOnWriteArrayList<MultiBoxTracker.TrackedRecognition> unmutableCopyOfTrackedRecognitions = new CopyOnWriteArrayList(multiBoxTracker.publish());
-        for (final MultiBoxTracker.TrackedRecognition result : unmutableCopyOfTrackedRecognitions) {
+        publishedObjects.clear();
+        addTrackedObjects();
+        frameProcessorListener.foundObjects(publishedObjects);
+    }
+
+    private void addTrackedObjects() {
+        publishedObjects.setLabels(labels);
+        // a snapshot, the tracker publishes a new list when the other thread changes its objects
+        final List<MultiBoxTracker.TrackedRecognition> trackedRecognitions = multiBoxTracker.publish();
+        for (final MultiBoxTracker.TrackedRecognition result : trackedRecognitions) {
             if ((result != null) && (result.getTrackedObject() != null) && (result.getTrackedObject().isValid())) {
-                frameRecognitions.add(result);
-                Timber.i("found tracker match: %s", result.getTrackedObject().getTrackedPositionInPreviewFrame());
+                final RectF position = result.getTrackedObject().getTrackedPositionInPreviewFrame();
+                if (position != null) {
+                    publishedObjects.add(position, result.getDetectionConfidence(), result.getLabelId());
+                    Timber.i("found tracker match: %s", position);
+                }
             }
         }
-        frameProcessorListener.foundObjects(frameRecognitions);
     }
 
-    private void detectObjects(byte[] luminance, long lastTimestamp) {
+    /**
+     * @return false if the detection failed, the error is reported already.
+     */
+    private boolean detectObjects(Frame frame, ScaledDetector model) {
         Timber.i("detectObjects");
         final long startTime = SystemClock.uptimeMillis();
-        List<MLRecognition> results = new ArrayList<>();
-        try {
-            results = detector.recognizeImage(scaledBitmap);
-        } catch (IOException e) {
-            frameProcessorListener.error("Object detection failed:" + e.toString());
-            return;
+        final int capacity = model.detector.getMaxNumberOfOutput() * Math.max(1, model.tiles.length);
+        if (detections == null || detections.capacity() < capacity) {
+            detections = new DetectionBuffer(capacity);
         }
 
-        final List<MLRecognition> validResults = new ArrayList<>();
-        lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-
-        for (final MLRecognition result : results) {
-            final RectF location = result.getLocation();
-            if (location != null &&
-                    result.getConfidence() >= mlSettings.getMinimumConfidence() &&
-                    result.getLocation().width() >= mlSettings.getMinObjectSize() &&
-                    result.getLocation().height() >= mlSettings.getMinObjectSize()) {
-                scaledToFrameTransform.mapRect(location);
-                result.setLocation(location);
-                validResults.add(result);
-                Timber.i("detectObjects found: %s", location.toString());
+        // the tracker gets the detections of this frame only
+        DetectionBuffer trackerInput = detections;
+        final int roiCount = prepareRois(model);
+        if (roiCount > 0) {
+            if (!detectRegions(frame, model, model.rois, roiCount)) {
+                return false;
             }
+            mergeRegionDetections(model.rois, roiCount);
+            roiPlanner.regionsDetected();
+        } else if (!model.isTiled()) {
+            if (!detectRegion(frame, model.detector, model.scaledToFrameValues, model.scaledToFrameTransform, detections)) {
+                return false;
+            }
+            roiPlanner.frameScanned();
+        } else {
+            if (mlSettings.getTileScheduling() == MLSettings.TileScheduling.ROUND_ROBIN) {
+                final FrameTile tile = model.nextTile();
+                if (!detectRegion(frame, model.detector, tile.scaledToFrameValues, tile.scaledToFrameTransform, tile.detections)) {
+                    return false;
+                }
+                trackerInput = tile.detections;
+            } else if (!detectRegions(frame, model, model.tiles, model.tiles.length)) {
+                return false;
+            }
+            mergeRegionDetections(model.tiles, model.tiles.length);
+            roiPlanner.frameScanned();
         }
+        labels = detections.getLabels();
+        lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
 
         // update tracker with true detections
         if(mlSettings.isUseTracker()) {
-            multiBoxTracker.trackResults(validResults, luminance, lastTimestamp);
+            final long stageStart = PipelineMetrics.startStage();
+            if (zeroCopy) {
+                multiBoxTracker.trackResults(trackerInput, planeBuffers[frame.index][0], frame.timestamp);
+            } else {
+                multiBoxTracker.trackResults(trackerInput, yuvBytesBuffer[frame.index][0], frame.timestamp);
+            }
+            metrics.record(MLMetrics.Stage.TRACKER_UPDATE, stageStart);
         }
 
-        publishDetectionResults(validResults);
+        final long publishStart = PipelineMetrics.startStage();
+        publishDetectionResults(model);
+        metrics.record(MLMetrics.Stage.PUBLISH, publishStart);
+        metrics.firstDetectionPublished();
+        metrics.frameDetected();
+        return true;
     }
 
-    private synchronized void publishDetectionResults(List<MLRecognition> validResults) {
-        frameRecognitions.clear();
+    private synchronized void publishDetectionResults(ScaledDetector model) {
         if(mlSettings.isUseTracker()) {
-            List<MultiBoxTracker.TrackedRecognition> trackedRecognitions = multiBoxTracker.publish();
-            for (final MultiBoxTracker.TrackedRecognition result : trackedRecognitions) {
-                if ((result != null) && (result.getTrackedObject() != null) && result.getTrackedObject().isValid()) {
-                    frameRecognitions.add(result);
-                }
-            }
+            publishedObjects.clear();
+            addTrackedObjects();
         } else {
-            for(final MLRecognition validResult: validResults) {
-                frameRecognitions.add(new MultiBoxTracker.TrackedRecognition(null, validResult.getLocation(), validResult.getConfidence(), validResult.getTitle()));
-            }
+            publishedObjects.copyFrom(detections);
         }
 
-        Timber.i("Objects detected: %d", frameRecognitions.size());
-        frameProcessorListener.foundObjects(frameRecognitions);
+        Timber.i("Objects detected: %d", publishedObjects.size());
+        frameProcessorListener.foundObjects(publishedObjects);
 
         frameProcessorListener.info(
                 new Size(mlSettings.getPreviewSize().getWidth(), mlSettings.getPreviewSize().getHeight()),
-                new Size(scaledBitmap.getWidth(), scaledBitmap.getHeight()),
+                new Size(model.detector.getInputWidth(), model.detector.getInputHeight()),
                 (int)lastProcessingTimeMs);
     }
 
     public void onStop() {
-        if(executorService != null) {
-            executorService.shutdown();
+        if (trackingExecutor.isShutdown()) {
+            return;
+        }
+        // frames already queued are still tracked, afterwards the detection thread finishes its
+        // work and releases the detectors.
+        stopped = true;
+        trackingExecutor.execute(() -> {
+            detectionExecutor.execute(this::releaseDetectors);
+            detectionExecutor.shutdown();
+        });
+        trackingExecutor.shutdown();
+        modelLoader.shutdown();
+    }
+
+    private void releaseDetectors() {
+        final Frame frame = detectionMailbox.getAndSet(null);
+        if (frame != null) {
+            releaseFrame(frame);
+        }
+        closeDetectorSet(detectorSet);
+        detectorSet = null;
+        closeDetectorSet(loadedDetectorSet.getAndSet(null));
+        if (regionExecutor != null) {
+            regionExecutor.shutdown();
+            regionExecutor = null;
+        }
+    }
+
+    private void mergeRegionDetections(FrameTile[] regions, int count) {
+        final long mergeStart = PipelineMetrics.startStage();
+        detections.clear();
+        for (int i = 0; i < count; i++) {
+            detections.addAll(regions[i].detections);
         }
+        // objects in the overlap of two regions are found twice
+        detections.suppressOverlaps(mlSettings.getIou());
+        metrics.record(MLMetrics.Stage.RESULT_MAPPING, mergeStart);
     }
 
-    private void scale() {
-        Timber.i("scale");
-        rgbFrameBitmap.setPixels(rgbBytes, 0, mlSettings.getPreviewSize().getWidth(), 0, 0,
-                mlSettings.getPreviewSize().getWidth(), mlSettings.getPreviewSize().getHeight());
-        final Canvas canvas = new Canvas(scaledBitmap);
-        canvas.drawBitmap(rgbFrameBitmap, frameToScaledTransform, null);
+    /**
+     * Set the regions around the tracked objects for the next detection. The whole frame is
+     * scanned instead when the scan is due, a tracked object was lost, or the regions would not
+     * need fewer inferences than the scan.
+     *
+     * @return number of regions to detect in, 0 for a scan of the whole frame.
+     */
+    private int prepareRois(ScaledDetector model) {
+        if (!mlSettings.isUseRoiDetection() || !mlSettings.isUseTracker()) {
+            return 0;
+        }
+        if (roiPlanner.isFullScanDue(mlSettings.getFullScanInterval(), multiBoxTracker.getLostObjectCount())) {
+            return 0;
+        }
+
+        final int maxRois = Math.max(1, model.tiles.length);
+        final float frameWidth = mlSettings.getPreviewSize().getWidth();
+        final float frameHeight = mlSettings.getPreviewSize().getHeight();
+        final List<MultiBoxTracker.TrackedRecognition> trackedRecognitions = multiBoxTracker.publish();
+        int count = 0;
+        for (final MultiBoxTracker.TrackedRecognition result : trackedRecognitions) {
+            if (result == null || result.getTrackedObject() == null || !result.getTrackedObject().isValid()) {
+                continue;
+            }
+            final RectF position = result.getTrackedObject().getTrackedPositionInPreviewFrame();
+            if (position == null) {
+                continue;
+            }
+            if (count == maxRois) {
+                return 0;
+            }
+            RoiPlanner.setRoiAround(position, model.detector.getInputWidth(), frameWidth, frameHeight, roiBounds);
+            model.getRoi(count++).setBounds(roiBounds, sensorOrientation, mlSettings.isMaintainAspectRatio());
+        }
+        return count;
     }
 
-    private void yuv2RGB(int yRowStride, int uvRowStride, int uvPixelStride, byte[][] yuvBytes) {
-        Timber.i("yuv2RGB");
-        ImageUtils.convertYUV420ToARGB8888(
+    /**
+     * Detect the objects in the first count regions, each into its own detections. The regions are
+     * split over the interpreter pool of the model: the detection thread works with the first
+     * interpreter, every other interpreter with a thread of its own, one region after the other.
+     *
+     * @return false if the detection failed, the error is reported already.
+     */
+    private boolean detectRegions(Frame frame, ScaledDetector model, FrameTile[] regions, int count) {
+        final int parallelism = Math.min(model.interpreterPool.size(), count);
+        if (parallelism > 1 && regionExecutor == null) {
+            regionExecutor = Executors.newCachedThreadPool();
+        }
+        final Future<?>[] partitions = new Future<?>[parallelism];
+        for (int p = 1; p < parallelism; p++) {
+            final int partition = p;
+            partitions[p] = regionExecutor.submit(
+                    () -> detectRegionPartition(frame, model, regions, count, partition, parallelism));
+        }
+
+        boolean detected = detectRegionPartition(frame, model, regions, count, 0, parallelism);
+        for (int p = 1; p < parallelism; p++) {
+            try {
+                detected &= (Boolean) partitions[p].get();
+            } catch (InterruptedException | ExecutionException e) {
+                Timber.e("Detection in region partition %d failed: %s", p, e.toString());
+                detected = false;
+            }
+        }
+        return detected;
+    }
+
+    private boolean detectRegionPartition(Frame frame, ScaledDetector model, FrameTile[] regions, int count,
+                                          int partition, int parallelism) {
+        final TFLiteObjectDetector detector = model.interpreterPool.get(partition);
+        for (int i = partition; i < count; i += parallelism) {
+            final FrameTile region = regions[i];
+            if (!detectRegion(frame, detector, region.scaledToFrameValues, region.scaledToFrameTransform, region.detections)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Detect the objects in the part of the frame which the model input is mapped to by
+     * scaledToFrameTransform, the whole frame or a tile. The results are written to
+     * regionDetections in frame coordinates.
+     *
+     * @return false if the detection failed, the error is reported already.
+     */
+    private boolean detectRegion(Frame frame, TFLiteObjectDetector detector, float[] scaledToFrameValues,
+                                 Matrix scaledToFrameTransform, DetectionBuffer regionDetections) {
+        long stageStart = PipelineMetrics.startStage();
+        convertToModelInput(frame, detector, scaledToFrameValues);
+        metrics.record(MLMetrics.Stage.INPUT_CONVERSION, stageStart);
+
+        stageStart = PipelineMetrics.startStage();
+        final int numDetections;
+        try {
+            numDetections = detector.runInference();
+        } catch (IOException e) {
+            frameProcessorListener.error("Object detection failed:" + e.toString());
+            return false;
+        }
+        final long inferenceNanos = SystemClock.elapsedRealtimeNanos() - stageStart;
+        metrics.recordNanos(MLMetrics.Stage.INFERENCE, inferenceNanos);
+        detectorSet.onInference(inferenceNanos);
+
+        stageStart = PipelineMetrics.startStage();
+        detector.collectDetections(numDetections, regionDetections);
+        regionDetections.filter(mlSettings.getMinimumConfidence(), mlSettings.getMinObjectSize());
+        regionDetections.transform(scaledToFrameTransform);
+        metrics.record(MLMetrics.Stage.RESULT_MAPPING, stageStart);
+        return true;
+    }
+
+    private void convertToModelInput(Frame frame, TFLiteObjectDetector detector, float[] scaledToFrameValues) {
+        Timber.i("convertToModelInput");
+        if (zeroCopy) {
+            final ByteBuffer[] planes = planeBuffers[frame.index];
+            ImageUtils.convertYUV420BuffersToTensor(
+                    planes[0],
+                    planes[1],
+                    planes[2],
+                    mlSettings.getPreviewSize().getWidth(),
+                    mlSettings.getPreviewSize().getHeight(),
+                    frame.yRowStride,
+                    frame.uvRowStride,
+                    frame.uvPixelStride,
+                    scaledToFrameValues,
+                    detector.getInputBuffer(),
+                    detector.getInputWidth(),
+                    detector.getInputHeight(),
+                    detector.getInputTensorType());
+            return;
+        }
+
+        final byte[][] yuvBytes = yuvBytesBuffer[frame.index];
+        ImageUtils.convertYUV420ToTensor(
                 yuvBytes[0],
                 yuvBytes[1],
                 yuvBytes[2],
-                rgbBytes,
                 mlSettings.getPreviewSize().getWidth(),
                 mlSettings.getPreviewSize().getHeight(),
-                yRowStride,
-                uvRowStride,
-                uvPixelStride,
-                false);
-  }
+                frame.yRowStride,
+                frame.uvRowStride,
+                frame.uvPixelStride,
+                scaledToFrameValues,
+                detector.getInputBuffer(),
+                detector.getInputWidth(),
+                detector.getInputHeight(),
+                detector.getInputTensorType());
+    }
 
+    /**
+     * Called for every camera frame, the frame is dropped if -1 is returned.
+     */
     int reserveBuffer() {
-        if(isBuffer0Free.get()) {
-            Timber.i("reserveBuffer 0");
-            isBuffer0Free.set(false);
-            return 0;
-        } else if(isBuffer1Free.get()) {
-            Timber.i("reserveBuffer 1");
-            isBuffer1Free.set(false);
-            return 1;
-        } else {
-            return -1;
+        metrics.frameOffered();
+        final int index = frameBuffers.reserve();
+        Timber.i("reserveBuffer %d", index);
+        if (index < 0) {
+            metrics.frameDropped(MLMetrics.DropReason.NO_FREE_BUFFER);
         }
+        return index;
     }
 
     void freeBuffer(int index) {
         // this will just mark buffer as free
         Timber.i("Free buffer %d", index);
-        if(index == 0) {
-            isBuffer0Free.set(true);
-        } else if(index == 1) {
-            isBuffer1Free.set(true);
+        frameBuffers.free(index);
+    }
+
+    /*
+     * A camera frame in one of the frame buffer slots. The slot owns it from processImage until the
+     * frame is released, only one stage works on it at a time.
+     */
+    private static class Frame {
+        final int index;
+        Runnable trackingTask;
+        Image image;
+        long timestamp;
+        int yRowStride;
+        int uvRowStride;
+        int uvPixelStride;
+
+        Frame(int index) {
+            this.index = index;
         }
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+/*
+ * A part of the preview frame which is scaled to the model input on its own, together with the
+ * latest detections found in it. Used for the tiles of the frame and for the regions around
+ * tracked objects.
+ */
+class FrameTile {
+
+    final RectF bounds = new RectF();
+    final Matrix scaledToFrameTransform = new Matrix();
+    final float[] scaledToFrameValues = new float[9];
+    final DetectionBuffer detections;
+    private final TFLiteObjectDetector detector;
+
+    FrameTile(TFLiteObjectDetector detector) {
+        this.detector = detector;
+        detections = new DetectionBuffer(detector.getMaxNumberOfOutput());
+    }
+
+    FrameTile(RectF bounds, TFLiteObjectDetector detector, int sensorOrientation, boolean maintainAspectRatio) {
+        this(detector);
+        setBounds(bounds, sensorOrientation, maintainAspectRatio);
+    }
+
+    void setBounds(RectF bounds, int sensorOrientation, boolean maintainAspectRatio) {
+        this.bounds.set(bounds);
+        final Matrix frameToScaledTransform = ImageUtils.getTileTransformationMatrix(
+                bounds, detector.getInputWidth(), detector.getInputHeight(), sensorOrientation, maintainAspectRatio);
+        frameToScaledTransform.invert(scaledToFrameTransform);
+        scaledToFrameTransform.getValues(scaledToFrameValues);
+    }
+}
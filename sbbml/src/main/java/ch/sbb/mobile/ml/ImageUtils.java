@@ -5,10 +5,12 @@ package ch.sbb.mobile.ml;
 
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
+import android.graphics.RectF;
 import android.os.Environment;
 import android.util.Size;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -24,6 +26,19 @@ class ImageUtils {
 
   private static final int MINIMUM_PREVIEW_SIZE = 320;
 
+  // Element types of the tensor written by convertYUV420ToTensor. Keep in sync with yuv2rgb.h.
+  static final int TENSOR_FLOAT32 = 0;
+  static final int TENSOR_UINT8 = 1;
+  static final int TENSOR_INT8 = 2;
+
+  static {
+    try {
+      System.loadLibrary("sbbml");
+    } catch (UnsatisfiedLinkError e) {
+      Timber.e("sbbml.so not found, native image conversion unavailable");
+    }
+  }
+
   public static Size chooseOptimalSize(final Size[] choices, final int width, final int height) {
     final int minSize = Math.max(Math.min(width, height), MINIMUM_PREVIEW_SIZE);
     final List<Size> bigEnough = new ArrayList<>();
@@ -83,6 +98,47 @@ class ImageUtils {
                                                     int uvPixelStride,
                                                     boolean halfSize);
 
+  /**
+   * C++ optimized. Converts the YUV frame directly into the RGB input tensor of the model. This
+   * does the work of yuv2rgb, the scaling of the bitmap and the tensor conversion in one pass.
+   *
+   * @param outputToFrame the 9 values of the matrix which maps tensor pixels to frame pixels,
+   *     that is the inverse of the matrix from {@link #getTransformationMatrix}.
+   * @param output direct buffer of outputWidth * outputHeight * 3 elements.
+   * @param outputType {@link #TENSOR_FLOAT32}, {@link #TENSOR_UINT8} or {@link #TENSOR_INT8}.
+   */
+  public static native void convertYUV420ToTensor(byte[] yData,
+                                                  byte[] uData,
+                                                  byte[] vData,
+                                                  int width,
+                                                  int height,
+                                                  int yRowStride,
+                                                  int uvRowStride,
+                                                  int uvPixelStride,
+                                                  float[] outputToFrame,
+                                                  ByteBuffer output,
+                                                  int outputWidth,
+                                                  int outputHeight,
+                                                  int outputType);
+
+  /**
+   * Same as {@link #convertYUV420ToTensor} but reads the planes in place from the direct buffers
+   * of an {@link android.media.Image}, so they do not have to be copied into arrays first.
+   */
+  public static native void convertYUV420BuffersToTensor(ByteBuffer yData,
+                                                         ByteBuffer uData,
+                                                         ByteBuffer vData,
+                                                         int width,
+                                                         int height,
+                                                         int yRowStride,
+                                                         int uvRowStride,
+                                                         int uvPixelStride,
+                                                         float[] outputToFrame,
+                                                         ByteBuffer output,
+                                                         int outputWidth,
+                                                         int outputHeight,
+                                                         int outputType);
+
   // we use at the moment C++ optimized version of yuv2rgb conversion.
   // this code is left here just to compare if there are problems.
   public static void convertYUV420ToARGB8888(
@@ -194,4 +250,42 @@ class ImageUtils {
 
     return matrix;
   }
+
+  /**
+   * Split a frame into rows x columns tiles of equal size. Neighbouring tiles overlap by the given
+   * fraction of the tile size, the tiles together cover the whole frame.
+   */
+  public static RectF[] getTiles(final int frameWidth, final int frameHeight, final int rows, final int columns, final float overlap) {
+    final float tileWidth = frameWidth / (columns - (columns - 1) * overlap);
+    final float tileHeight = frameHeight / (rows - (rows - 1) * overlap);
+    final RectF[] tiles = new RectF[rows * columns];
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        final float left = Math.round(column * tileWidth * (1 - overlap));
+        final float top = Math.round(row * tileHeight * (1 - overlap));
+        tiles[row * columns + column] = new RectF(
+            left,
+            top,
+            Math.min(frameWidth, left + Math.round(tileWidth)),
+            Math.min(frameHeight, top + Math.round(tileHeight)));
+      }
+    }
+    return tiles;
+  }
+
+  /**
+   * Same as {@link #getTransformationMatrix(int, int, int, int, int, boolean)} for a tile of the
+   * frame instead of the whole frame. Frame coordinates outside the tile end up outside dst.
+   */
+  public static Matrix getTileTransformationMatrix(
+      final RectF tile,
+      final int dstWidth,
+      final int dstHeight,
+      final int applyRotation,
+      final boolean maintainAspectRatio) {
+    final Matrix matrix = getTransformationMatrix(
+        Math.round(tile.width()), Math.round(tile.height()), dstWidth, dstHeight, applyRotation, maintainAspectRatio);
+    matrix.preTranslate(-tile.left, -tile.top);
+    return matrix;
+  }
 }
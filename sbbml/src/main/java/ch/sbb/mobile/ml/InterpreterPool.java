@@ -0,0 +1,70 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import android.content.Context;
+
+import java.io.IOException;
+
+/*
+ * Several interpreters of one model, to run inferences in parallel. An interpreter is not thread
+ * safe, so each one is used by one thread at a time. They are acquired from the model cache and
+ * share its mapped model, only the tensors exist once per interpreter. The threads of the
+ * settings are split, so that all interpreters of the pool together use at most the cores:
+ * a larger pool gives more throughput, fewer threads per interpreter a longer latency per inference.
+ */
+class InterpreterPool {
+
+    private final TFLiteObjectDetector[] detectors;
+
+    private InterpreterPool(TFLiteObjectDetector[] detectors) {
+        this.detectors = detectors;
+    }
+
+    /**
+     * @return threads of each of poolSize interpreters, at most requestedThreads.
+     */
+    static int threadsPerInterpreter(int poolSize, int requestedThreads, int cores) {
+        return Math.max(1, Math.min(requestedThreads, cores / Math.max(1, poolSize)));
+    }
+
+    /**
+     * @param poolSize number of interpreters, at most one per core.
+     */
+    static InterpreterPool acquire(Context context, MLSettings mlSettings, String modelFilename, int poolSize) throws IOException {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final int size = Math.max(1, Math.min(poolSize, cores));
+        final int threads = threadsPerInterpreter(size, mlSettings.getNumberOfThreds(), cores);
+        final ModelCache modelCache = ModelCache.getInstance();
+        final TFLiteObjectDetector[] detectors = new TFLiteObjectDetector[size];
+        try {
+            for (int i = 0; i < size; i++) {
+                detectors[i] = modelCache.acquire(context, mlSettings, modelFilename, threads);
+            }
+        } catch (IOException | RuntimeException e) {
+            new InterpreterPool(detectors).release(mlSettings.getModelCacheSizeBytes());
+            throw e;
+        }
+        return new InterpreterPool(detectors);
+    }
+
+    int size() {
+        return detectors.length;
+    }
+
+    TFLiteObjectDetector get(int index) {
+        return detectors[index];
+    }
+
+    /**
+     * Give the interpreters back to the model cache, the pool cannot be used afterwards.
+     */
+    void release(long modelCacheSizeBytes) {
+        for (final TFLiteObjectDetector detector : detectors) {
+            if (detector != null) {
+                ModelCache.getInstance().release(detector, modelCacheSizeBytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Fixed memory latency histogram in the style of HdrHistogram. Values below 16 microseconds get
+ * their own bucket, above that every power of two is split into 8 linear sub buckets, so a
+ * reported percentile is at most 12.5% above the recorded value. The 256 buckets cover up to about
+ * 5 hours, larger values are counted in the last bucket.
+ *
+ * Recording does not allocate or lock and can be done from several threads.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    static final int BUCKET_COUNT = 256;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong maxMicros = new AtomicLong(0);
+
+    void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts.incrementAndGet(bucketIndex(micros));
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * Moves the recorded values into counts, which must hold {@link #BUCKET_COUNT} values, and
+     * starts a new interval.
+     *
+     * @return the largest value recorded in the interval.
+     */
+    long drainTo(long[] counts) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = this.counts.getAndSet(i, 0);
+        }
+        return maxMicros.getAndSet(0);
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        // shift so that the value keeps its SUB_BUCKET_BITS most significant bits
+        final int shift = 64 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        final int subBucket = (int) (micros >>> shift) - SUB_BUCKET_HALF_COUNT;
+        return Math.min(SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + subBucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return the largest value which falls into the bucket.
+     */
+    static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        final long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * @param counts drained bucket counts.
+     * @param total sum of the counts.
+     * @param percentile between 0 and 100.
+     * @return the value below which the given percentile of the values fall.
+     */
+    static long valueAtPercentile(long[] counts, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValueInBucket(i);
+            }
+        }
+        return highestValueInBucket(BUCKET_COUNT - 1);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the pipeline performance, see {@link MLSettings#setMetricsIntervalMs(int)}. The
+ * latencies cover the last metrics interval, the frame counters are counted since the detection
+ * was started.
+ */
+public class MLMetrics {
+
+    /**
+     * Steps of the frame processing. The YUV to RGB conversion and the scaling to the model input
+     * size are done in one pass and are reported together as {@link #INPUT_CONVERSION}.
+     */
+    public enum Stage {
+        /** Copy of the camera image planes, not done in zero copy mode. */
+        PLANE_COPY,
+        /** Downsampling of the luminance for the tracker. */
+        DOWNSAMPLE,
+        /** Optical flow tracking of the frame in the native tracker. */
+        TRACKING,
+        /** YUV to RGB conversion and scaling into the model input tensor. */
+        INPUT_CONVERSION,
+        /** Interpreter run. */
+        INFERENCE,
+        /** Mapping of the model output to recognitions in preview coordinates. */
+        RESULT_MAPPING,
+        /** Update of the tracker with the new detections. */
+        TRACKER_UPDATE,
+        /** Delivery of the tracked or detected objects to the listener. */
+        PUBLISH
+    }
+
+    /**
+     * Why a camera frame was not processed completely.
+     */
+    public enum DropReason {
+        /** All frame buffers were in use, the camera image was not acquired at all. */
+        NO_FREE_BUFFER,
+        /** The frame was tracked but a newer frame replaced it before the detector was free. */
+        DETECTOR_BUSY,
+        /** The detection of the frame failed. */
+        DETECTION_FAILED,
+        /** The frame was tracked but not detected because the scene was stable, see {@link MLSettings#setUseMotionGatedDetection(boolean)}. */
+        SCENE_STABLE,
+        /** The frame was tracked but not detected because the models were still loading. */
+        MODELS_LOADING
+    }
+
+    public static class StageLatency {
+        private final long count;
+        private final long p50Micros;
+        private final long p95Micros;
+        private final long p99Micros;
+        private final long maxMicros;
+
+        StageLatency(long count, long p50Micros, long p95Micros, long p99Micros, long maxMicros) {
+            this.count = count;
+            this.p50Micros = p50Micros;
+            this.p95Micros = p95Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        /**
+         * @return how many times the stage was run in the interval.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP95Micros() {
+            return p95Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        @Override
+        public @NonNull String toString() {
+            return String.format(Locale.ENGLISH, "n=%d p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                    count, p50Micros / 1000.0f, p95Micros / 1000.0f, p99Micros / 1000.0f, maxMicros / 1000.0f);
+        }
+    }
+
+    private final long intervalMs;
+    private final StageLatency[] latencies;
+    private final long framesOffered;
+    private final long framesAcquired;
+    private final long framesTracked;
+    private final long framesDetected;
+    private final long[] framesDropped;
+    private final float trackingFps;
+    private final float detectionFps;
+    private final long modelLoadMs;
+    private final long warmUpMs;
+    private final boolean compiledModelCached;
+    private final long timeToFirstDetectionMs;
+
+    MLMetrics(long intervalMs, StageLatency[] latencies,
+              long framesOffered, long framesAcquired, long framesTracked, long framesDetected, long[] framesDropped,
+              float trackingFps, float detectionFps,
+              long modelLoadMs, long warmUpMs, boolean compiledModelCached, long timeToFirstDetectionMs) {
+        this.intervalMs = intervalMs;
+        this.latencies = latencies;
+        this.framesOffered = framesOffered;
+        this.framesAcquired = framesAcquired;
+        this.framesTracked = framesTracked;
+        this.framesDetected = framesDetected;
+        this.framesDropped = framesDropped;
+        this.trackingFps = trackingFps;
+        this.detectionFps = detectionFps;
+        this.modelLoadMs = modelLoadMs;
+        this.warmUpMs = warmUpMs;
+        this.compiledModelCached = compiledModelCached;
+        this.timeToFirstDetectionMs = timeToFirstDetectionMs;
+    }
+
+    /**
+     * @return the length of the interval this snapshot covers.
+     */
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public StageLatency getLatency(Stage stage) {
+        return latencies[stage.ordinal()];
+    }
+
+    /**
+     * @return number of camera frames the camera delivered to the library.
+     */
+    public long getFramesOffered() {
+        return framesOffered;
+    }
+
+    /**
+     * @return number of camera frames which got a frame buffer and were processed.
+     */
+    public long getFramesAcquired() {
+        return framesAcquired;
+    }
+
+    public long getFramesTracked() {
+        return framesTracked;
+    }
+
+    public long getFramesDetected() {
+        return framesDetected;
+    }
+
+    public long getFramesDropped(DropReason reason) {
+        return framesDropped[reason.ordinal()];
+    }
+
+    /**
+     * @return rolling average of the frames per second which go through the tracker.
+     */
+    public float getTrackingFps() {
+        return trackingFps;
+    }
+
+    /**
+     * @return rolling average of the frames per second which go through the detector.
+     */
+    public float getDetectionFps() {
+        return detectionFps;
+    }
+
+    /**
+     * @return time spent to load the latest models, including interpreter and delegate creation.
+     */
+    public long getModelLoadMs() {
+        return modelLoadMs;
+    }
+
+    /**
+     * @return time spent in the warm-up inferences of the latest models, see
+     * {@link MLSettings#setNumberOfWarmUpRuns(int)}.
+     */
+    public long getWarmUpMs() {
+        return warmUpMs;
+    }
+
+    /**
+     * @return true if the latest models were loaded from the compiled model cache instead of being
+     * compiled by the delegate, see {@link MLSettings#setUseCompiledModelCache(boolean)}.
+     */
+    public boolean isCompiledModelCached() {
+        return compiledModelCached;
+    }
+
+    /**
+     * @return time from the start of the detection until the first detection results were
+     * published, 0 if there were none yet.
+     */
+    public long getTimeToFirstDetectionMs() {
+        return timeToFirstDetectionMs;
+    }
+
+    @Override
+    public @NonNull String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("interval=").append(intervalMs).append("ms");
+        builder.append(String.format(Locale.ENGLISH,
+                "\nframes offered=%d acquired=%d tracked=%d detected=%d, tracking %.1f fps, detection %.1f fps",
+                framesOffered, framesAcquired, framesTracked, framesDetected, trackingFps, detectionFps));
+        builder.append(String.format(Locale.ENGLISH, "\nmodel load %dms%s, warm-up %dms, first detection after %dms",
+                modelLoadMs, compiledModelCached ? " (compiled model cached)" : "", warmUpMs, timeToFirstDetectionMs));
+        for (final DropReason reason : DropReason.values()) {
+            builder.append("\ndropped ").append(reason).append(": ").append(getFramesDropped(reason));
+        }
+        for (final Stage stage : Stage.values()) {
+            builder.append('\n').append(stage).append(": ").append(getLatency(stage));
+        }
+        return builder.toString();
+    }
+}
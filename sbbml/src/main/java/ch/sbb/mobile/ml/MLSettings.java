@@ -5,6 +5,9 @@ package ch.sbb.mobile.ml;
 
 import android.util.Size;
 
+import java.util.Collections;
+import java.util.List;
+
 public class MLSettings {
     /**
      * The preview size will be at least this large. Avoid too large preview size, it will just slow down image operations.
@@ -56,6 +59,100 @@ public class MLSettings {
      * Use CPU as backup if running on other processor type fails.
      */
     private boolean useCPUBackup;
+    /**
+     * Read the camera image planes in place instead of copying them into Java arrays. The camera
+     * image is then kept open until tracking and detection of the frame are done.
+     */
+    private boolean useZeroCopy;
+    /**
+     * Number of camera frames which can be in processing at the same time. With more than 2 frames the
+     * tracker can keep up with every camera frame while the detector holds a frame.
+     */
+    private int numberOfFrameBuffers;
+    /**
+     * How often in milliseconds the pipeline metrics are reported to MLView.DetectionListener#metrics.
+     * 0 disables the metrics.
+     */
+    private int metricsIntervalMs;
+    /**
+     * Models in assets folder between which the detection switches depending on the measured inference
+     * time. All of them are loaded at start. Empty disables the adaptive mode, then #modelFilename is used.
+     */
+    private List<String> adaptiveModelFilenames;
+    /**
+     * In adaptive mode, switch to the next larger model when the average inference time falls below this.
+     */
+    private int adaptiveMinInferenceTimeMs;
+    /**
+     * In adaptive mode, switch to the next smaller model when the average inference time rises above this.
+     */
+    private int adaptiveMaxInferenceTimeMs;
+    /**
+     * Inferences run on a synthetic input after a model is loaded, before the detection starts. The first
+     * inference is much slower than the following ones, this keeps the delay out of the first camera frames.
+     */
+    private int numberOfWarmUpRuns;
+    /**
+     * Bytes of model files kept loaded for released detectors, so the same model with the same processor
+     * and threads is not loaded again when the view restarts. 0 closes detectors as soon as they are released.
+     */
+    private long modelCacheSizeBytes;
+    /**
+     * Store the models compiled by the GPU or NNAPI delegate in the cache dir of the app, keyed by model hash
+     * and ABI, so later starts load them instead of compiling again. Has no effect on the CPU.
+     */
+    private boolean useCompiledModelCache;
+    /**
+     * Rows of the tiles the preview frame is split into for the detection, each tile is scaled to the model
+     * input. More tiles find smaller objects but need more inferences. 1 row and 1 column disables tiling.
+     */
+    private int tileRows;
+    /**
+     * Columns of the tiles, see #tileRows.
+     */
+    private int tileColumns;
+    /**
+     * Fraction of a tile which overlaps its neighbours, so objects on the border are seen whole by one tile.
+     */
+    private float tileOverlap;
+    /**
+     * How the tiles are scheduled, see TileScheduling.
+     */
+    private TileScheduling tileScheduling;
+    /**
+     * Detect only in regions around the tracked objects while the tracker follows them, needs #useTracker.
+     * The whole frame is scanned every #fullScanInterval detections, when a tracked object is lost, or when
+     * there are more tracked objects than the full scan has inferences, 1 or the number of tiles.
+     */
+    private boolean useRoiDetection;
+    /**
+     * With #useRoiDetection, every how many detections the whole frame is scanned for new objects.
+     */
+    private int fullScanInterval;
+    /**
+     * Skip the detection while the tracker sees a stable scene, to save battery. The detection runs at once on
+     * large motion, many lost keypoints or falling correlation of the tracked objects, see #minDetectionIntervalMs
+     * and #maxDetectionIntervalMs.
+     */
+    private boolean useMotionGatedDetection;
+    /**
+     * With #useMotionGatedDetection, the shortest time between two detections, also when the scene changes.
+     */
+    private int minDetectionIntervalMs;
+    /**
+     * With #useMotionGatedDetection, the longest time between two detections, also when the scene is stable.
+     */
+    private int maxDetectionIntervalMs;
+    /**
+     * Interpreters per model in the live pipeline, all on the same mapped model. With more than one,
+     * the tiles of a frame and the regions around tracked objects are detected in parallel. The
+     * threads of the settings are reduced so that the interpreters together use at most the cores.
+     */
+    private int interpreterPoolSize;
+    /**
+     * Number of frames of tracked keypoints kept for inspection, 0 disables the history.
+     */
+    private int keypointHistorySize;
 
     // Default
     private final int NUMBER_OF_THREADS  = 4;
@@ -66,9 +163,36 @@ public class MLSettings {
     private final float IOU = 0.45f;
     private final boolean USE_TRACKER = true;
     private final boolean USE_CPU_BACKUP = true;
+    private final boolean USE_ZERO_COPY = false;
+    private final int NUMBER_OF_FRAME_BUFFERS = 3;
+    private final int METRICS_INTERVAL_MS = 1000;
+    private final List<String> ADAPTIVE_MODEL_FILENAMES = Collections.emptyList();
+    private final int ADAPTIVE_MIN_INFERENCE_TIME_MS = 40;
+    private final int ADAPTIVE_MAX_INFERENCE_TIME_MS = 100;
+    private final int NUMBER_OF_WARM_UP_RUNS = 1;
+    private final long MODEL_CACHE_SIZE_BYTES = 32L * 1024 * 1024;
+    private final boolean USE_COMPILED_MODEL_CACHE = false;
+    private final int TILE_ROWS = 1;
+    private final int TILE_COLUMNS = 1;
+    private final float TILE_OVERLAP = 0.2f;
+    private final TileScheduling TILE_SCHEDULING = TileScheduling.BATCH;
+    private final boolean USE_ROI_DETECTION = false;
+    private final int FULL_SCAN_INTERVAL = 10;
+    private final boolean USE_MOTION_GATED_DETECTION = false;
+    private final int MIN_DETECTION_INTERVAL_MS = 100;
+    private final int MAX_DETECTION_INTERVAL_MS = 2000;
+    private final int INTERPRETER_POOL_SIZE = 1;
+    private final int KEYPOINT_HISTORY_SIZE = 0;
 
     public enum Processor {CPU, GPU, NNAPI}
 
+    /**
+     * BATCH runs all tiles on every detected frame. ROUND_ROBIN runs one tile per detected frame and
+     * merges it with the latest results of the other tiles, so the detection rate stays the same
+     * but the results of a tile are refreshed less often.
+     */
+    public enum TileScheduling {BATCH, ROUND_ROBIN}
+
     public MLSettings(Size desirePreviewSize, String modelFilename, int modelInputSize) {
         this.desirePreviewSize = desirePreviewSize;
         this.modelFilename = modelFilename;
@@ -82,6 +206,26 @@ public class MLSettings {
         this.iou = IOU;
         this.useTracker = USE_TRACKER;
         this.useCPUBackup = USE_CPU_BACKUP;
+        this.useZeroCopy = USE_ZERO_COPY;
+        this.numberOfFrameBuffers = NUMBER_OF_FRAME_BUFFERS;
+        this.metricsIntervalMs = METRICS_INTERVAL_MS;
+        this.adaptiveModelFilenames = ADAPTIVE_MODEL_FILENAMES;
+        this.adaptiveMinInferenceTimeMs = ADAPTIVE_MIN_INFERENCE_TIME_MS;
+        this.adaptiveMaxInferenceTimeMs = ADAPTIVE_MAX_INFERENCE_TIME_MS;
+        this.numberOfWarmUpRuns = NUMBER_OF_WARM_UP_RUNS;
+        this.modelCacheSizeBytes = MODEL_CACHE_SIZE_BYTES;
+        this.useCompiledModelCache = USE_COMPILED_MODEL_CACHE;
+        this.tileRows = TILE_ROWS;
+        this.tileColumns = TILE_COLUMNS;
+        this.tileOverlap = TILE_OVERLAP;
+        this.tileScheduling = TILE_SCHEDULING;
+        this.useRoiDetection = USE_ROI_DETECTION;
+        this.fullScanInterval = FULL_SCAN_INTERVAL;
+        this.useMotionGatedDetection = USE_MOTION_GATED_DETECTION;
+        this.minDetectionIntervalMs = MIN_DETECTION_INTERVAL_MS;
+        this.maxDetectionIntervalMs = MAX_DETECTION_INTERVAL_MS;
+        this.interpreterPoolSize = INTERPRETER_POOL_SIZE;
+        this.keypointHistorySize = KEYPOINT_HISTORY_SIZE;
     }
 
     public Size getDesirePreviewSize() {
@@ -175,4 +319,164 @@ public class MLSettings {
     public void setUseCPUBackup(boolean useCPUBackup) {
         this.useCPUBackup = useCPUBackup;
     }
+
+    public boolean isUseZeroCopy() {
+        return useZeroCopy;
+    }
+
+    public void setUseZeroCopy(boolean useZeroCopy) {
+        this.useZeroCopy = useZeroCopy;
+    }
+
+    public int getNumberOfFrameBuffers() {
+        return numberOfFrameBuffers;
+    }
+
+    public void setNumberOfFrameBuffers(int numberOfFrameBuffers) {
+        this.numberOfFrameBuffers = numberOfFrameBuffers;
+    }
+
+    public int getMetricsIntervalMs() {
+        return metricsIntervalMs;
+    }
+
+    public void setMetricsIntervalMs(int metricsIntervalMs) {
+        this.metricsIntervalMs = metricsIntervalMs;
+    }
+
+    public List<String> getAdaptiveModelFilenames() {
+        return adaptiveModelFilenames;
+    }
+
+    public void setAdaptiveModelFilenames(List<String> adaptiveModelFilenames) {
+        this.adaptiveModelFilenames = adaptiveModelFilenames;
+    }
+
+    public int getAdaptiveMinInferenceTimeMs() {
+        return adaptiveMinInferenceTimeMs;
+    }
+
+    public void setAdaptiveMinInferenceTimeMs(int adaptiveMinInferenceTimeMs) {
+        this.adaptiveMinInferenceTimeMs = adaptiveMinInferenceTimeMs;
+    }
+
+    public int getAdaptiveMaxInferenceTimeMs() {
+        return adaptiveMaxInferenceTimeMs;
+    }
+
+    public void setAdaptiveMaxInferenceTimeMs(int adaptiveMaxInferenceTimeMs) {
+        this.adaptiveMaxInferenceTimeMs = adaptiveMaxInferenceTimeMs;
+    }
+
+    public int getNumberOfWarmUpRuns() {
+        return numberOfWarmUpRuns;
+    }
+
+    public void setNumberOfWarmUpRuns(int numberOfWarmUpRuns) {
+        this.numberOfWarmUpRuns = numberOfWarmUpRuns;
+    }
+
+    public long getModelCacheSizeBytes() {
+        return modelCacheSizeBytes;
+    }
+
+    public void setModelCacheSizeBytes(long modelCacheSizeBytes) {
+        this.modelCacheSizeBytes = modelCacheSizeBytes;
+    }
+
+    public boolean isUseCompiledModelCache() {
+        return useCompiledModelCache;
+    }
+
+    public void setUseCompiledModelCache(boolean useCompiledModelCache) {
+        this.useCompiledModelCache = useCompiledModelCache;
+    }
+
+    public int getTileRows() {
+        return tileRows;
+    }
+
+    public void setTileRows(int tileRows) {
+        this.tileRows = tileRows;
+    }
+
+    public int getTileColumns() {
+        return tileColumns;
+    }
+
+    public void setTileColumns(int tileColumns) {
+        this.tileColumns = tileColumns;
+    }
+
+    public float getTileOverlap() {
+        return tileOverlap;
+    }
+
+    public void setTileOverlap(float tileOverlap) {
+        this.tileOverlap = tileOverlap;
+    }
+
+    public TileScheduling getTileScheduling() {
+        return tileScheduling;
+    }
+
+    public void setTileScheduling(TileScheduling tileScheduling) {
+        this.tileScheduling = tileScheduling;
+    }
+
+    public boolean isUseRoiDetection() {
+        return useRoiDetection;
+    }
+
+    public void setUseRoiDetection(boolean useRoiDetection) {
+        this.useRoiDetection = useRoiDetection;
+    }
+
+    public int getFullScanInterval() {
+        return fullScanInterval;
+    }
+
+    public void setFullScanInterval(int fullScanInterval) {
+        this.fullScanInterval = fullScanInterval;
+    }
+
+    public boolean isUseMotionGatedDetection() {
+        return useMotionGatedDetection;
+    }
+
+    public void setUseMotionGatedDetection(boolean useMotionGatedDetection) {
+        this.useMotionGatedDetection = useMotionGatedDetection;
+    }
+
+    public int getMinDetectionIntervalMs() {
+        return minDetectionIntervalMs;
+    }
+
+    public void setMinDetectionIntervalMs(int minDetectionIntervalMs) {
+        this.minDetectionIntervalMs = minDetectionIntervalMs;
+    }
+
+    public int getMaxDetectionIntervalMs() {
+        return maxDetectionIntervalMs;
+    }
+
+    public void setMaxDetectionIntervalMs(int maxDetectionIntervalMs) {
+        this.maxDetectionIntervalMs = maxDetectionIntervalMs;
+    }
+
+    public int getInterpreterPoolSize() {
+        return interpreterPoolSize;
+    }
+
+    public void setInterpreterPoolSize(int interpreterPoolSize) {
+        this.interpreterPoolSize = interpreterPoolSize;
+    }
+
+    public int getKeypointHistorySize() {
+        return keypointHistorySize;
+    }
+
+    public void setKeypointHistorySize(int keypointHistorySize) {
+        this.keypointHistorySize = keypointHistorySize;
+    }
 }
@@ -23,10 +23,7 @@ import android.widget.FrameLayout;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
 
 import timber.log.Timber;
@@ -96,6 +93,16 @@ public class MLView extends FrameLayout implements OnImageAvailableListener, Fra
      */
     void drawObjects(Canvas canvas, View view, List<MLRecognition> objects);
 
+    /**
+     * Same as {@link #drawObjects(Canvas, View, List)}, the objects are held in primitive arrays.
+     * Override it to draw without allocating a list of recognitions for every frame.
+     *
+     * @param objects the detected objects and their locations on the canvas, only valid during the call.
+     */
+    default void drawObjects(Canvas canvas, View view, DetectionBuffer objects) {
+      drawObjects(canvas, view, objects.toRecognitions());
+    }
+
     /**
      * User denied to give camera access asked by the library.
      * You can also ask the permission on app side to have more control of this.
@@ -108,21 +115,40 @@ public class MLView extends FrameLayout implements OnImageAvailableListener, Fra
      * @param errorMsg
      */
     void runError(String errorMsg);
+
+    /**
+     * The model is loaded and warmed up, the detection runs from now on. Called on the main thread.
+     */
+    default void ready() {}
+
+    /**
+     * Periodic snapshot of where the time per frame goes, see {@link MLSettings#setMetricsIntervalMs(int)}.
+     * Called from a processing thread.
+     *
+     * @param metrics latencies of the processing stages over the last interval, frame counters and frame rates.
+     */
+    default void metrics(MLMetrics metrics) {}
   }
 
   private enum STATE {STOPPED, RUNNING, INITIALIZING}
 
-  private STATE state = STATE.STOPPED;
+  private volatile STATE state = STATE.STOPPED;
   public static final String TAG = "MLView";
   private DetectionListener detectionListener;
   private MLSettings mlSettings;
+  // settings updated while the models load, applied once ready; only used on the main thread
+  private MLSettings pendingSettings;
   private AutoFitTextureView textureView;
   private Integer sensorOrientation;
-  private final List<MLRecognition> canvasObjects = new ArrayList<>();
+  // the latest objects from the processing threads and their copy mapped to the canvas
+  private final DetectionBuffer frameObjects = new DetectionBuffer(DetectionBuffer.DEFAULT_CAPACITY);
+  private final DetectionBuffer canvasObjects = new DetectionBuffer(DetectionBuffer.DEFAULT_CAPACITY);
+  private Matrix frameToCanvasMatrix;
+  private int frameToCanvasWidth;
+  private int frameToCanvasHeight;
   private OverlayView trackingOverlay;
   private CameraPreview cameraPreview;
   private FrameProcessor frameProcessor;
-  private List<MultiBoxTracker.TrackedRecognition> frameRecognitions = new ArrayList<>();
   private final Semaphore updateObjectsSemaphore = new Semaphore(1);
 
   private final TextureView.SurfaceTextureListener surfaceTextureListener =
@@ -191,6 +217,10 @@ public class MLView extends FrameLayout implements OnImageAvailableListener, Fra
   public void onStop() {
     Timber.i("onStop");
     state = STATE.STOPPED;
+    if (pendingSettings != null) {
+      mlSettings = pendingSettings;
+      pendingSettings = null;
+    }
 
     if (cameraPreview != null) {
       cameraPreview.stopCamera();
@@ -203,18 +233,40 @@ public class MLView extends FrameLayout implements OnImageAvailableListener, Fra
   /**
    * Update the ML settings.
    * <p>
+   * While the detection is running, model, thresholds, processor, thread count and tracker changes are
+   * applied without restarting the camera: new models are loaded in the background and replace the
+   * current ones between two inferences. Changes which need another preview size or camera setup
+   * restart the detection. Settings updated while the detection initializes are applied once it is ready.
+   * <p>
    * Update may fail and the object detection does not start. In this case @see {@link DetectionListener#runError(String)}
    *
    * @param mlSettings new settings.
    */
   public void updateSettings(MLSettings mlSettings) {
-    if (state.equals(STATE.RUNNING) || state.equals(STATE.STOPPED)) {
+    if (state.equals(STATE.RUNNING) && canUpdateLive(mlSettings)) {
+      Timber.i("updateSettings on the running pipeline");
+      mlSettings.setPreviewSize(this.mlSettings.getPreviewSize());
+      this.mlSettings = mlSettings;
+      frameProcessor.updateSettings(mlSettings);
+    } else if (state.equals(STATE.RUNNING) || state.equals(STATE.STOPPED)) {
       this.mlSettings = mlSettings;
       onStop();
       initialize();
     } else {
-      detectionListener.runError("Cannot update settings, already initializing");
+      Timber.i("updateSettings when ready");
+      pendingSettings = mlSettings;
+    }
+  }
+
+  private boolean canUpdateLive(MLSettings newSettings) {
+    if (frameProcessor == null || cameraPreview == null || !frameProcessor.canUpdateSettings(newSettings)) {
+      return false;
     }
+    final Size previewSize = ImageUtils.chooseOptimalSize(
+        cameraPreview.getCameraOutputSizes(getContext()),
+        newSettings.getDesirePreviewSize().getWidth(),
+        newSettings.getDesirePreviewSize().getHeight());
+    return previewSize.equals(this.mlSettings.getPreviewSize());
   }
 
   private void setAspectRatio() {
@@ -239,23 +291,17 @@ public class MLView extends FrameLayout implements OnImageAvailableListener, Fra
     setAspectRatio();
 
     sensorOrientation = cameraPreview.getCameraOrientation(getContext()) - getScreenOrientation();
+    resetCanvasMapping();
 
-    try {
-      frameProcessor = new FrameProcessor(getContext(), mlSettings, sensorOrientation, this);
-    } catch (final IOException e) {
-      String errorMsg = "model init failed: " + e.toString();
-      Timber.e(errorMsg);
-      detectionListener.runError(errorMsg);
-      state = STATE.STOPPED;
-      return;
-    }
+    // the models are loaded and warmed up in the background while the camera opens, the state
+    // changes to RUNNING in ready().
+    frameProcessor = new FrameProcessor(getContext(), mlSettings, sensorOrientation, this);
 
     configureTextureViewTransform(textureView.getWidth(), textureView.getHeight());
 
     initRenderer();
 
     cameraPreview.openCamera(getContext(), this, textureView, mlSettings);
-    state = STATE.RUNNING;
   }
 
   /**
@@ -291,38 +337,31 @@ public class MLView extends FrameLayout implements OnImageAvailableListener, Fra
     textureView.setTransform(matrix);
   }
 
+  private synchronized void resetCanvasMapping() {
+    frameToCanvasMatrix = null;
+  }
+
   private synchronized void mapTrackedObjectPositions2Canvas(Canvas canvas) {
     Timber.i("mapRecognitions2Canvas");
-    final boolean rotated = sensorOrientation % 180 == 90;
-    final float multiplier = Math.min(
-        canvas.getHeight() / (float) (rotated ? mlSettings.getPreviewSize().getWidth() : mlSettings.getPreviewSize().getHeight()),
-        canvas.getWidth() / (float) (rotated ? mlSettings.getPreviewSize().getHeight() : mlSettings.getPreviewSize().getWidth()));
-
-    Matrix frameToCanvasMatrix = ImageUtils.getTransformationMatrix(
-        mlSettings.getPreviewSize().getWidth(),
-        mlSettings.getPreviewSize().getHeight(),
-        (int) (multiplier * (rotated ? mlSettings.getPreviewSize().getHeight() : mlSettings.getPreviewSize().getWidth())),
-        (int) (multiplier * (rotated ? mlSettings.getPreviewSize().getWidth() : mlSettings.getPreviewSize().getHeight())),
-        sensorOrientation,
-        false);
-
-    canvasObjects.clear();
-    CopyOnWriteArrayList<MultiBoxTracker.TrackedRecognition> unmutableCopyOfTrackedRecognitions = new CopyOnWriteArrayList(frameRecognitions);
-    for (final MultiBoxTracker.TrackedRecognition recognition : unmutableCopyOfTrackedRecognitions) {
-      if(recognition != null) {
-        MLRecognition detectedObject;
-        if (recognition.getTrackedObject() != null) {
-          detectedObject = new MLRecognition(recognition.getTitle(), recognition.getDetectionConfidence(), recognition.getTrackedObject().getTrackedPositionInPreviewFrame());
-        } else {
-          detectedObject = new MLRecognition(recognition.getTitle(), recognition.getDetectionConfidence(), recognition.getLocation());
-        }
-
-        final RectF trackedPos = new RectF(detectedObject.getLocation());
-        frameToCanvasMatrix.mapRect(trackedPos);
-        detectedObject.setLocation(trackedPos);
-        canvasObjects.add(detectedObject);
-      }
+    if (frameToCanvasMatrix == null || frameToCanvasWidth != canvas.getWidth() || frameToCanvasHeight != canvas.getHeight()) {
+      final boolean rotated = sensorOrientation % 180 == 90;
+      final float multiplier = Math.min(
+          canvas.getHeight() / (float) (rotated ? mlSettings.getPreviewSize().getWidth() : mlSettings.getPreviewSize().getHeight()),
+          canvas.getWidth() / (float) (rotated ? mlSettings.getPreviewSize().getHeight() : mlSettings.getPreviewSize().getWidth()));
+
+      frameToCanvasMatrix = ImageUtils.getTransformationMatrix(
+          mlSettings.getPreviewSize().getWidth(),
+          mlSettings.getPreviewSize().getHeight(),
+          (int) (multiplier * (rotated ? mlSettings.getPreviewSize().getHeight() : mlSettings.getPreviewSize().getWidth())),
+          (int) (multiplier * (rotated ? mlSettings.getPreviewSize().getWidth() : mlSettings.getPreviewSize().getHeight())),
+          sensorOrientation,
+          false);
+      frameToCanvasWidth = canvas.getWidth();
+      frameToCanvasHeight = canvas.getHeight();
     }
+
+    canvasObjects.copyFrom(frameObjects);
+    canvasObjects.transform(frameToCanvasMatrix);
   }
 
   @Override
@@ -338,6 +377,12 @@ public class MLView extends FrameLayout implements OnImageAvailableListener, Fra
           frameProcessor.freeBuffer(bufferIndex);
         }
       }
+    } else {
+      // the models are not ready yet, do not let the camera wait for us
+      final Image image = reader.acquireLatestImage();
+      if (image != null) {
+        image.close();
+      }
     }
   }
 
@@ -376,9 +421,9 @@ public class MLView extends FrameLayout implements OnImageAvailableListener, Fra
   }
 
   @Override
-  public void foundObjects(List<MultiBoxTracker.TrackedRecognition> objectList) {
+  public void foundObjects(DetectionBuffer objects) {
     updateObjectsSemaphore.acquireUninterruptibly();
-    frameRecognitions = objectList;
+    frameObjects.copyFrom(objects);
     updateObjectsSemaphore.release();
     requestDrawing();
   }
@@ -398,4 +443,41 @@ public class MLView extends FrameLayout implements OnImageAvailableListener, Fra
       detectionListener.inferenceTime(inferenceTime);
     }
   }
+
+  @Override
+  public void ready() {
+    post(() -> {
+      Timber.i("ready");
+      if (state.equals(STATE.INITIALIZING)) {
+        state = STATE.RUNNING;
+        if (detectionListener != null) {
+          detectionListener.ready();
+        }
+        if (pendingSettings != null) {
+          final MLSettings settings = pendingSettings;
+          pendingSettings = null;
+          updateSettings(settings);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void initializationFailed(String errorMsg) {
+    post(() -> {
+      if (state.equals(STATE.INITIALIZING)) {
+        onStop();
+        if (detectionListener != null) {
+          detectionListener.runError(errorMsg);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void metrics(MLMetrics metrics) {
+    if (detectionListener != null) {
+      detectionListener.metrics(metrics);
+    }
+  }
 }
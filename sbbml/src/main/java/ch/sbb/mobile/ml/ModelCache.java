@@ -0,0 +1,161 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/*
+ * Process wide cache of models and interpreters. A mapped model file is shared by every detector
+ * created from it. A detector is used by one frame processor at a time; once released it stays
+ * loaded so a restarted view with the same model, processor and threads gets it back without
+ * loading and warming up again. Released detectors are closed, least recently used first, when
+ * their models exceed the budget of the settings.
+ */
+class ModelCache {
+
+    private static final ModelCache INSTANCE = new ModelCache();
+
+    private static class CachedModel {
+        final ModelFile model;
+        int references;
+
+        CachedModel(ModelFile model) {
+            this.model = model;
+        }
+    }
+
+    private final Map<String, CachedModel> models = new HashMap<>();
+    private final Map<TFLiteObjectDetector, String> keys = new IdentityHashMap<>();
+    // least recently released first
+    private final List<TFLiteObjectDetector> idle = new ArrayList<>();
+    private long idleBytes;
+
+    static ModelCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Key of the settings an interpreter is created with. Thresholds are not part of it, they are
+     * taken over by {@link TFLiteObjectDetector#updateSettings(MLSettings)}.
+     */
+    static String keyOf(String modelFilename, MLSettings mlSettings) {
+        return keyOf(modelFilename, mlSettings, mlSettings.getNumberOfThreds());
+    }
+
+    static String keyOf(String modelFilename, MLSettings mlSettings, int numberOfThreads) {
+        return modelFilename
+                + "|" + mlSettings.getProcessor()
+                + "|" + numberOfThreads
+                + "|" + mlSettings.isUseCPUBackup()
+                + "|" + mlSettings.isUseCompiledModelCache();
+    }
+
+    /**
+     * A detector for the model, exclusively used by the caller until it is released. A released
+     * detector with the same key is reused, otherwise a new interpreter is created on the shared
+     * mapped model.
+     */
+    TFLiteObjectDetector acquire(Context context, MLSettings mlSettings, String modelFilename) throws IOException {
+        return acquire(context, mlSettings, modelFilename, mlSettings.getNumberOfThreds());
+    }
+
+    /**
+     * Same as {@link #acquire(Context, MLSettings, String)} with another number of threads than
+     * the settings.
+     */
+    TFLiteObjectDetector acquire(Context context, MLSettings mlSettings, String modelFilename, int numberOfThreads) throws IOException {
+        final String key = keyOf(modelFilename, mlSettings, numberOfThreads);
+        final ModelFile model;
+        synchronized (this) {
+            for (final Iterator<TFLiteObjectDetector> it = idle.iterator(); it.hasNext(); ) {
+                final TFLiteObjectDetector detector = it.next();
+                if (key.equals(keys.get(detector))) {
+                    it.remove();
+                    idleBytes -= detector.getModel().getSizeBytes();
+                    detector.updateSettings(mlSettings);
+                    Timber.i("Reusing loaded model %s", modelFilename);
+                    return detector;
+                }
+            }
+            CachedModel cached = models.get(modelFilename);
+            if (cached == null) {
+                cached = new CachedModel(ModelFile.load(context.getAssets(), modelFilename));
+                models.put(modelFilename, cached);
+            }
+            cached.references++;
+            model = cached.model;
+        }
+
+        // creating the interpreter takes long, do not block the other frame processors
+        try {
+            final TFLiteObjectDetector detector = new TFLiteObjectDetector(model, mlSettings,
+                    TFLiteObjectDetector.compiledModelCacheDir(context, mlSettings), numberOfThreads);
+            synchronized (this) {
+                keys.put(detector, key);
+            }
+            return detector;
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                releaseModel(modelFilename);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Give a detector back. It stays loaded as long as the released models fit into budgetBytes.
+     */
+    synchronized void release(TFLiteObjectDetector detector, long budgetBytes) {
+        if (!keys.containsKey(detector) || idle.contains(detector)) {
+            return;
+        }
+        idle.add(detector);
+        idleBytes += detector.getModel().getSizeBytes();
+        while (idleBytes > budgetBytes && !idle.isEmpty()) {
+            close(idle.remove(0));
+        }
+    }
+
+    /**
+     * Close every released detector.
+     */
+    synchronized void clear() {
+        while (!idle.isEmpty()) {
+            close(idle.remove(0));
+        }
+    }
+
+    synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    synchronized int getModelCount() {
+        return models.size();
+    }
+
+    private void close(TFLiteObjectDetector detector) {
+        idleBytes -= detector.getModel().getSizeBytes();
+        keys.remove(detector);
+        detector.close();
+        releaseModel(detector.getModelFilename());
+        Timber.i("Closed cached model %s", detector.getModelFilename());
+    }
+
+    private void releaseModel(String modelFilename) {
+        final CachedModel cached = models.get(modelFilename);
+        if (cached != null && --cached.references == 0) {
+            models.remove(modelFilename);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.os.Build;
+import org.tensorflow.lite.support.metadata.MetadataExtractor;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import timber.log.Timber;
+
+/**
+ * A memory mapped model from the assets with its parsed metadata. It is never modified, so
+ * several interpreters can be created from the same instance.
+ */
+class ModelFile {
+
+  private final String filename;
+  private final MappedByteBuffer buffer;
+  private final List<String> labels;
+  private final List<String> inputOrder;
+  private final List<String> outputOrder;
+  private final int maxNumberOfOutput;
+  private String cacheToken;
+
+  /**
+   * For models without metadata, the labels and tensor names are given here. Models from the
+   * assets are loaded with {@link #load(AssetManager, String)}.
+   */
+  ModelFile(String filename, MappedByteBuffer buffer, List<String> labels,
+            List<String> inputOrder, List<String> outputOrder, int maxNumberOfOutput) {
+    this.filename = filename;
+    this.buffer = buffer;
+    this.labels = labels;
+    this.inputOrder = inputOrder;
+    this.outputOrder = outputOrder;
+    this.maxNumberOfOutput = maxNumberOfOutput;
+  }
+
+  static ModelFile load(AssetManager assets, String filename) throws IOException {
+    MappedByteBuffer buffer = mapAsset(assets, filename);
+    MetadataExtractor metadataExtractor = new MetadataExtractor(buffer);
+
+    List<String> labels = new ArrayList<>();
+    InputStream labelsInputStream = metadataExtractor.getAssociatedFile("labels.txt");
+    InputStreamReader labelsInputStreamReader = new InputStreamReader(labelsInputStream);
+    try (BufferedReader br = new BufferedReader(labelsInputStreamReader)) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        Timber.i(line);
+        labels.add(line);
+      }
+    }
+
+    List<String> inputOrder = new ArrayList<>();
+    int numberInput = metadataExtractor.getInputTensorCount();
+    for(int i = 0; i < numberInput; i++) {
+      String inputName = metadataExtractor.getInputTensorMetadata(i).name();
+      inputOrder.add(inputName);
+    }
+
+    List<String> outputOrder = new ArrayList<>();
+    int numberOutput = metadataExtractor.getOutputTensorCount();
+    for (int i = 0; i < numberOutput; i++) {
+      String outputName = metadataExtractor.getOutputTensorMetadata(i).name();
+      outputOrder.add(outputName);
+    }
+
+    int maxNumberOfOutput = Arrays.stream(metadataExtractor.getOutputTensorShape(0)).max().getAsInt();
+
+    return new ModelFile(filename, buffer,
+        Collections.unmodifiableList(labels),
+        Collections.unmodifiableList(inputOrder),
+        Collections.unmodifiableList(outputOrder),
+        maxNumberOfOutput);
+  }
+
+  private static MappedByteBuffer mapAsset(AssetManager assets, String filename) throws IOException {
+    try (AssetFileDescriptor fileDescriptor = assets.openFd(filename);
+         FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+      FileChannel fileChannel = inputStream.getChannel();
+      long startOffset = fileDescriptor.getStartOffset();
+      long declaredLength = fileDescriptor.getDeclaredLength();
+      // the mapping stays valid after the channel is closed
+      return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    }
+  }
+
+  String getFilename() {
+    return filename;
+  }
+
+  MappedByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  List<String> getLabels() {
+    return labels;
+  }
+
+  List<String> getInputOrder() {
+    return inputOrder;
+  }
+
+  List<String> getOutputOrder() {
+    return outputOrder;
+  }
+
+  int getMaxNumberOfOutput() {
+    return maxNumberOfOutput;
+  }
+
+  long getSizeBytes() {
+    return buffer.capacity();
+  }
+
+  /**
+   * Identifies the compiled form of this model in the delegate caches. It changes with the content
+   * of the model and the ABI of the app, the delegates add the GPU or driver themselves.
+   */
+  synchronized String getCacheToken() {
+    if (cacheToken == null) {
+      final CRC32 crc = new CRC32();
+      // CRC32.update(ByteBuffer) needs API level 26
+      final ByteBuffer model = buffer.duplicate();
+      model.rewind();
+      final byte[] chunk = new byte[64 * 1024];
+      while (model.hasRemaining()) {
+        final int length = Math.min(chunk.length, model.remaining());
+        model.get(chunk, 0, length);
+        crc.update(chunk, 0, length);
+      }
+      cacheToken = String.format("%s_%08x_%s",
+          filename.replaceAll("[^A-Za-z0-9_]", "_"), crc.getValue(), Build.SUPPORTED_ABIS[0]);
+    }
+    return cacheToken;
+  }
+}
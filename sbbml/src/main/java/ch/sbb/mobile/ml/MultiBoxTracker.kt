@@ -4,22 +4,66 @@
 package ch.sbb.mobile.ml
 
 import android.graphics.RectF
-import android.util.Pair
 import timber.log.Timber
-import java.util.*
+import java.nio.ByteBuffer
+import java.util.Collections
 import java.util.concurrent.Semaphore
 
 internal class MultiBoxTracker protected  constructor() {
 
     internal var objectTracker: ObjectTracker? = null
-    internal val screenRects: MutableList<Pair<Float, RectF>> = LinkedList()
-    private val trackedObjects = LinkedList<TrackedRecognition>()
+    // the first trackedCount slots hold the tracked objects, removed by moving the last one into the gap
+    private val trackedObjects = arrayOfNulls<TrackedRecognition>(MAX_TRACKED_OBJECTS)
+    private var trackedCount = 0
+    // immutable copy of the tracked objects handed out by publish(), replaced only when they change
+    @Volatile
+    private var snapshot: List<TrackedRecognition> = Collections.emptyList()
+    // scratch of processResults() and associateDetections(), reused for every detection
+    private var detectionRects = arrayOfNulls<RectF>(0)
+    private var detectionIndices = IntArray(0)
+    private var detectionBoxes = FloatArray(0)
+    private val trackBoxes = FloatArray(MAX_TRACKED_OBJECTS * 4)
+    private val trackedPosition = RectF()
+    private val detectionPosition = RectF()
+    private val removeTracks = BooleanArray(MAX_TRACKED_OBJECTS)
+    private val addedObjects = arrayOfNulls<TrackedRecognition>(MAX_TRACKED_OBJECTS)
+    private val association = TrackAssociation()
     private val trackedObjectsSemaphore = Semaphore(1)
     private val initializeSemaphore = Semaphore(1)
     private var frameWidth: Int = 0
     private var frameHeight: Int = 0
     private var initialized = false
 
+    /** Time spent in downsampling and in tracking of the last frame passed to onFrame().  */
+    val downsampleNanos: Long
+        get() = objectTracker?.lastDownsampleNanos ?: 0
+    val trackingNanos: Long
+        get() = objectTracker?.lastTrackingNanos ?: 0
+
+    /** Motion statistics of the last frame passed to onFrame(), see ObjectTracker.getFrameStats().  */
+    private val frameStats = FloatArray(3)
+    @Volatile
+    var keypointCount: Int = 0
+        private set
+    @Volatile
+    var keypointChurn: Float = 0f
+        private set
+    @Volatile
+    var frameMotion: Float = 0f
+        private set
+    /** Lowest correlation of the tracked objects, 1 if nothing is tracked.  */
+    @Volatile
+    var minCorrelation: Float = 1f
+        private set
+
+    /** Frames of keypoints the ObjectTracker keeps, 0 to disable the history. Applies when the tracker is initialized.  */
+    var keypointHistorySize: Int = 0
+
+    /** Number of tracked objects which were lost since the tracker was created.  */
+    @Volatile
+    var lostObjectCount: Int = 0
+        private set
+
     companion object {
         // Maximum percentage of a box that can be overlapped by another box at detection time. Otherwise
         // the lower scored box (new or old) will be removed.
@@ -33,13 +77,17 @@ internal class MultiBoxTracker protected  constructor() {
 
         // Consider object to be lost if correlation falls below this threshold.
         private val MIN_CORRELATION = 0.20f
+
+        // Capacity of the store, further detections are not tracked while it is full.
+        private const val MAX_TRACKED_OBJECTS = 64
     }
 
-    class TrackedRecognition internal constructor(trackedObjectParam: ObjectTracker.TrackedObject? = null, locationParam: RectF? = null, detectionConfidenceParam: Float = 0.toFloat(), titleParam: String? = null){
+    class TrackedRecognition internal constructor(trackedObjectParam: ObjectTracker.TrackedObject? = null, locationParam: RectF? = null, detectionConfidenceParam: Float = 0.toFloat(), titleParam: String? = null, labelIdParam: Int = -1){
         internal var trackedObject: ObjectTracker.TrackedObject? = trackedObjectParam
         internal var location: RectF? = locationParam
         internal var detectionConfidence: Float = detectionConfidenceParam
         internal var title: String? = titleParam
+        internal var labelId: Int = labelIdParam
 
         // for some reason java code cannot access this class if these getters are not explicitely defined here
         fun getTrackedObject() :  ObjectTracker.TrackedObject? {
@@ -57,163 +105,299 @@ internal class MultiBoxTracker protected  constructor() {
         fun getDetectionConfidence(): Float {
             return detectionConfidence
         }
+
+        fun getLabelId(): Int {
+            return labelId
+        }
     }
 
     fun trackResults(results: List<MLRecognition>, frame: ByteArray, timestamp: Long) {
-        Timber.i("Processing ${results.size} results from timestamp $timestamp")
-        processResults(timestamp, results, frame)
+        trackResults(DetectionBuffer.fromRecognitions(results), frame, timestamp)
+    }
+
+    fun trackResults(results: List<MLRecognition>, frame: ByteBuffer, timestamp: Long) {
+        trackResults(DetectionBuffer.fromRecognitions(results), frame, timestamp)
+    }
+
+    fun trackResults(results: DetectionBuffer, frame: ByteArray, timestamp: Long) {
+        Timber.i("Processing ${results.size()} results from timestamp $timestamp")
+        processResults(timestamp, results) { location -> objectTracker!!.trackObject(location, timestamp, frame) }
+    }
+
+    fun trackResults(results: DetectionBuffer, frame: ByteBuffer, timestamp: Long) {
+        Timber.i("Processing ${results.size()} results from timestamp $timestamp")
+        processResults(timestamp, results) { location -> objectTracker!!.trackObject(location, timestamp, frame) }
     }
 
+    /**
+     * @return the tracked objects. The list does not change, a new one is published when objects
+     * are added or removed.
+     */
     fun publish(): List<TrackedRecognition> {
-        return trackedObjects
+        return snapshot
     }
 
     fun onFrame(w: Int, h: Int, rowStride: Int, frame: ByteArray, timestamp: Long) {
+        if (!initTracker(w, h, rowStride)) {
+            return
+        }
+
+        objectTracker!!.nextFrame(frame, null, timestamp, null)
+        removeLostObjects()
+        updateFrameStats()
+    }
+
+    fun onFrame(w: Int, h: Int, rowStride: Int, frame: ByteBuffer, timestamp: Long) {
+        if (!initTracker(w, h, rowStride)) {
+            return
+        }
+
+        objectTracker!!.nextFrame(frame, timestamp)
+        removeLostObjects()
+        updateFrameStats()
+    }
+
+    private fun updateFrameStats() {
+        objectTracker!!.getFrameStats(frameStats)
+        keypointCount = frameStats[0].toInt()
+        keypointChurn = frameStats[1]
+        frameMotion = frameStats[2]
+    }
+
+    private fun initTracker(w: Int, h: Int, rowStride: Int): Boolean {
         initializeSemaphore.acquireUninterruptibly()
         if (objectTracker == null && !initialized) {
             ObjectTracker.clearInstance()
             Timber.i("Initializing ObjectTracker: $w, $h")
-            objectTracker = ObjectTracker.getInstance(w, h, rowStride, true)
+            objectTracker = ObjectTracker.getInstance(w, h, rowStride, true, keypointHistorySize)
             frameWidth = w
             frameHeight = h
             initialized = true
         }
         initializeSemaphore.release()
 
-        if (objectTracker == null) {
-            return
-        }
-
-        objectTracker!!.nextFrame(frame, null, timestamp, null)
+        return objectTracker != null
+    }
 
+    private fun removeLostObjects() {
         trackedObjectsSemaphore.acquireUninterruptibly()
-        // Clean up any objects not worth tracking any more.
-        val copyList = LinkedList(trackedObjects)
-        for (recognition in copyList) {
+        // Clean up any objects not worth tracking any more. Backwards, so that the object moved into
+        // a removed slot was already visited.
+        val removedBefore = lostObjectCount
+        var lowestCorrelation = 1f
+        for (i in trackedCount - 1 downTo 0) {
+            val recognition = trackedObjects[i]!!
             val trackedObject = recognition.trackedObject
             trackedObject?.let {
                 val correlation = trackedObject.currentCorrelation
                 if (correlation < MIN_CORRELATION) {
                     Timber.i("Removing tracked object ${recognition.title} because NCC is $correlation")
                     trackedObject.stopTracking()
-                    trackedObjects.remove(recognition)
+                    removeTrackedObject(i)
+                    lostObjectCount++
+                } else if (correlation < lowestCorrelation) {
+                    lowestCorrelation = correlation
                 }
             }
         }
+        minCorrelation = lowestCorrelation
+        if (lostObjectCount != removedBefore) {
+            updateSnapshot()
+        }
         trackedObjectsSemaphore.release()
     }
 
-    private fun processResults(timestamp: Long, results: List<MLRecognition>, originalFrame: ByteArray) {
-        val rectsToTrack = LinkedList<Pair<Float, MLRecognition>>()
-        screenRects.clear()
+    private fun removeTrackedObject(index: Int) {
+        trackedCount--
+        trackedObjects[index] = trackedObjects[trackedCount]
+        trackedObjects[trackedCount] = null
+    }
 
-        for (result in results) {
-            if (result.location == null) {
-                continue
-            }
-            val detectionFrameRect = RectF(result.location)
-            screenRects.add(Pair(result.confidence!!, detectionFrameRect))
+    private fun addTrackedObject(recognition: TrackedRecognition) {
+        trackedObjects[trackedCount++] = recognition
+    }
+
+    // called with the semaphore held, after the store changed
+    private fun updateSnapshot() {
+        snapshot = Collections.unmodifiableList(Array(trackedCount) { trackedObjects[it]!! }.asList())
+    }
+
+    private fun processResults(timestamp: Long, results: DetectionBuffer, trackObject: (RectF) -> ObjectTracker.TrackedObject) {
+        if (detectionRects.size < results.size()) {
+            detectionRects = Array<RectF?>(results.size()) { detectionRects.getOrNull(it) ?: RectF() }
+            detectionIndices = IntArray(results.size())
+            detectionBoxes = FloatArray(results.size() * 4)
+        }
+
+        var rectsToTrack = 0
+        for (i in 0 until results.size()) {
+            val detectionFrameRect = detectionRects[i]!!
+            results.getLocation(i, detectionFrameRect)
 
             if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
                 Timber.i("Degenerate rectangle! $detectionFrameRect")
                 continue
             }
-
-            rectsToTrack.add(Pair<Float, MLRecognition>(result.confidence, result))
+            rectsToTrack++
         }
 
-        if (rectsToTrack.isEmpty()) {
+        if (rectsToTrack == 0) {
             Timber.i("Nothing to track, aborting.")
             return
         }
 
         if (objectTracker == null) {
             trackedObjectsSemaphore.acquireUninterruptibly()
-            trackedObjects.clear()
-            for (potential in rectsToTrack) {
-                val trackedRecognition = TrackedRecognition()
-                trackedRecognition.detectionConfidence = potential.first
-                trackedRecognition.location = RectF(potential.second.location)
-                trackedRecognition.trackedObject = null
-                trackedRecognition.title = potential.second.title
-                trackedObjects.add(trackedRecognition)
+            trackedObjects.fill(null)
+            trackedCount = 0
+            for (i in 0 until results.size()) {
+                val location = detectionRects[i]!!
+                if (location.width() < MIN_SIZE || location.height() < MIN_SIZE) {
+                    continue
+                }
+                if (trackedCount == MAX_TRACKED_OBJECTS) {
+                    break
+                }
+                addTrackedObject(TrackedRecognition(null, RectF(location), results.getScore(i), results.getLabel(i), results.getLabelId(i)))
             }
+            updateSnapshot()
             trackedObjectsSemaphore.release()
             return
         }
 
-        Timber.i("$rectsToTrack.size rects to track")
-        for (potential in rectsToTrack) {
-            handleDetection(originalFrame, timestamp, potential)
-        }
+        Timber.i("$rectsToTrack rects to track")
+        associateDetections(timestamp, trackObject, results)
     }
 
-    private fun handleDetection(frameCopy: ByteArray, timestamp: Long, potential: Pair<Float, MLRecognition>) {
-        val potentialObject = objectTracker!!.trackObject(potential.second.location!!, timestamp, frameCopy)
+    /**
+     * Assigns all detections to the tracked objects at once, by their overlap. An associated
+     * detection replaces its object unless the object is still tracked well and was detected with
+     * a higher confidence. A detection without an object starts a new one, unless it overlaps an
+     * object which is already associated with another detection.
+     *
+     * The detections are of the frame at timestamp, which the tracker has usually passed already.
+     * They are moved along the motion tracked since then, so that they are compared with the
+     * objects in the same frame.
+     */
+    private fun associateDetections(timestamp: Long, trackObject: (RectF) -> ObjectTracker.TrackedObject, results: DetectionBuffer) {
+        val tracker = objectTracker!!
+        trackedObjectsSemaphore.acquireUninterruptibly()
+        var detectionCount = 0
+        // no frame may pass between moving the detections and reading the tracked positions
+        synchronized(tracker) {
+            for (i in 0 until results.size()) {
+                val location = detectionRects[i]!!
+                if (location.width() < MIN_SIZE || location.height() < MIN_SIZE) {
+                    continue
+                }
+                detectionIndices[detectionCount] = i
+                if (!tracker.trackBoxToLastFrame(location, timestamp, detectionPosition)) {
+                    detectionPosition.set(location)
+                }
+                setBox(detectionBoxes, detectionCount, detectionPosition)
+                detectionCount++
+            }
 
-        if (potentialObject.currentCorrelation < MARGINAL_CORRELATION) {
-            Timber.i("Correlation too low to begin tracking $potentialObject.currentCorrelation")
-            potentialObject.stopTracking()
-            return
+            for (t in 0 until trackedCount) {
+                val trackedObject = trackedObjects[t]!!.trackedObject
+                if (trackedObject == null || !trackedObject.copyTrackedPositionInPreviewFrame(trackedPosition)) {
+                    trackedPosition.setEmpty()
+                }
+                setBox(trackBoxes, t, trackedPosition)
+                removeTracks[t] = false
+            }
         }
+        association.computeIou(detectionBoxes, detectionCount, trackBoxes, trackedCount)
+        association.solve(MAX_OVERLAP)
+
+        var addedCount = 0
+        for (d in 0 until detectionCount) {
+            val index = detectionIndices[d]
+            val confidence = results.getScore(index)
+            val track = association.getTrack(d)
+            if (track >= 0) {
+                val trackedRecognition = trackedObjects[track]!!
+                val trackedObject = trackedRecognition.trackedObject
+                if (trackedObject != null && confidence < trackedRecognition.detectionConfidence && trackedObject.currentCorrelation > MARGINAL_CORRELATION) {
+                    // If track for the existing object is still going strong and the detection score was
+                    // good, reject this new object.
+                    continue
+                }
+            } else if (overlapsAssociatedTrack(d)) {
+                continue
+            }
 
-        trackedObjectsSemaphore.acquireUninterruptibly()
-        val removeList = LinkedList<TrackedRecognition>()
-        var maxIntersect = 0.0f
-
-        // Look for intersections that will be overridden by this object or an intersection that would
-        // prevent this one from being placed.
-        for (trackedRecognition in trackedObjects) {
-            if(trackedRecognition.trackedObject != null && potentialObject.trackedPositionInPreviewFrame != null) {
-                val a = trackedRecognition.trackedObject!!.trackedPositionInPreviewFrame
-                val b = potentialObject.trackedPositionInPreviewFrame
-                val intersection = RectF()
-                val intersects = intersection.setIntersect(a!!, b!!)
-
-                val intersectArea = intersection.width() * intersection.height()
-                val totalArea = a.width() * a.height() + b.width() * b.height() - intersectArea
-                val intersectOverUnion = intersectArea / totalArea
-
-                // If there is an intersection with this currently tracked box above the maximum overlap
-                // percentage allowed, either the new recognition needs to be dismissed or the old
-                // recognition needs to be removed and possibly replaced with the new one.
-                if (intersects && (intersectOverUnion > MAX_OVERLAP)) {
-                    if (potential.first < trackedRecognition.detectionConfidence && trackedRecognition.trackedObject!!.currentCorrelation > MARGINAL_CORRELATION) {
-                        // If track for the existing object is still going strong and the detection score was
-                        // good, reject this new object.
-                        potentialObject.stopTracking()
-                        trackedObjectsSemaphore.release()
-                        return
-                    } else {
-                        removeList.add(trackedRecognition)
-
-                        // Let the previously tracked object with max intersection amount donate its color to
-                        // the new object.
-                        if (intersectOverUnion > maxIntersect) {
-                            maxIntersect = intersectOverUnion
-                        }
-                    }
+            // the tracker reads the location only while registering the object
+            val potentialObject = trackObject(detectionRects[index]!!)
+            if (potentialObject.currentCorrelation < MARGINAL_CORRELATION) {
+                Timber.i("Correlation too low to begin tracking ${potentialObject.currentCorrelation}")
+                potentialObject.stopTracking()
+                continue
+            }
+            if (addedCount == MAX_TRACKED_OBJECTS) {
+                Timber.w("Already adding $addedCount objects, dropping ${results.getLabel(index)}")
+                potentialObject.stopTracking()
+                continue
+            }
+
+            // The new object replaces its associated object and the unassociated ones it overlaps.
+            for (t in 0 until trackedCount) {
+                if (t == track || (association.getDetection(t) < 0 && association.getIou(d, t) > MAX_OVERLAP)) {
+                    removeTracks[t] = true
                 }
             }
+            addedObjects[addedCount++] = TrackedRecognition(potentialObject, null, confidence, results.getLabel(index), results.getLabelId(index))
         }
 
-        // Remove everything that got intersected.
-        for (trackedRecognition in removeList) {
-            if(trackedRecognition.trackedObject != null) {
-                Timber.i("Removing tracked object ${trackedRecognition.title} with detection confidence ${trackedRecognition.detectionConfidence}, correlation ${trackedRecognition.trackedObject!!.currentCorrelation}")
-                trackedRecognition.trackedObject!!.stopTracking()
-                trackedObjects.remove(trackedRecognition)
+        // Remove everything that got replaced, from the last index so that the moved objects were
+        // already visited.
+        var changed = addedCount > 0
+        for (t in trackedCount - 1 downTo 0) {
+            if (!removeTracks[t]) {
+                continue
+            }
+            val trackedRecognition = trackedObjects[t]!!
+            trackedRecognition.trackedObject?.let {
+                Timber.i("Removing tracked object ${trackedRecognition.title} with detection confidence ${trackedRecognition.detectionConfidence}, correlation ${it.currentCorrelation}")
+                it.stopTracking()
             }
+            removeTrackedObject(t)
+            changed = true
         }
 
-        // Finally safe to say we can track this object.
-        val trackedRecognition = TrackedRecognition()
-        trackedRecognition.detectionConfidence = potential.first
-        trackedRecognition.trackedObject = potentialObject
-        trackedRecognition.title = potential.second.title
-        Timber.i("Tracking object ${trackedRecognition.title}")
+        // Finally safe to say we can track these objects.
+        for (a in 0 until addedCount) {
+            val trackedRecognition = addedObjects[a]!!
+            addedObjects[a] = null
+            if (trackedCount == MAX_TRACKED_OBJECTS) {
+                Timber.w("Already tracking $trackedCount objects, dropping ${trackedRecognition.title}")
+                trackedRecognition.trackedObject!!.stopTracking()
+                continue
+            }
+            Timber.i("Tracking object ${trackedRecognition.title}")
+            addTrackedObject(trackedRecognition)
+        }
 
-        trackedObjects.add(trackedRecognition)
+        if (changed) {
+            updateSnapshot()
+        }
         trackedObjectsSemaphore.release()
     }
-}
\ No newline at end of file
+
+    // another detection of an object which already got its detection
+    private fun overlapsAssociatedTrack(detection: Int): Boolean {
+        for (t in 0 until trackedCount) {
+            if (association.getDetection(t) >= 0 && association.getIou(detection, t) > MAX_OVERLAP) {
+                return true
+            }
+        }
+        return false
+    }
+
+    private fun setBox(boxes: FloatArray, index: Int, rect: RectF) {
+        boxes[index * 4] = rect.left
+        boxes[index * 4 + 1] = rect.top
+        boxes[index * 4 + 2] = rect.right
+        boxes[index * 4 + 3] = rect.bottom
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+/*
+ * Class aware non maximum suppression on boxes held in primitive arrays. Instead of sorting all
+ * candidates, the best remaining one is searched for every kept box, which is cheaper as long as
+ * only few boxes are kept. Nothing is allocated.
+ */
+final class NonMaxSuppression {
+
+    private NonMaxSuppression() {
+    }
+
+    /**
+     * Select up to maxSelected boxes, best score first. A box is dropped if it overlaps a better
+     * box of the same class by more than iouThreshold. The scores of the candidates are consumed,
+     * they are set to -1 once a box is selected or dropped.
+     *
+     * @param top      top edges of the candidates, the box arrays hold count valid entries
+     * @param selected receives the indices of the selected candidates
+     * @return number of selected boxes
+     */
+    static int select(float[] top, float[] left, float[] bottom, float[] right,
+                      float[] scores, int[] classes, int count,
+                      float iouThreshold, int maxSelected, int[] selected) {
+        int numSelected = 0;
+        while (numSelected < maxSelected) {
+            int best = -1;
+            float bestScore = 0;
+            for (int i = 0; i < count; i++) {
+                if (scores[i] > bestScore) {
+                    bestScore = scores[i];
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            selected[numSelected++] = best;
+            scores[best] = -1;
+
+            final float bestArea = area(top[best], left[best], bottom[best], right[best]);
+            for (int i = 0; i < count; i++) {
+                if (scores[i] > 0 && classes[i] == classes[best]
+                        && iou(top, left, bottom, right, best, bestArea, i) > iouThreshold) {
+                    scores[i] = -1;
+                }
+            }
+        }
+        return numSelected;
+    }
+
+    private static float iou(float[] top, float[] left, float[] bottom, float[] right, int a, float areaA, int b) {
+        final float intersectionTop = Math.max(top[a], top[b]);
+        final float intersectionLeft = Math.max(left[a], left[b]);
+        final float intersectionBottom = Math.min(bottom[a], bottom[b]);
+        final float intersectionRight = Math.min(right[a], right[b]);
+        if (intersectionBottom <= intersectionTop || intersectionRight <= intersectionLeft) {
+            return 0;
+        }
+        final float intersection = (intersectionBottom - intersectionTop) * (intersectionRight - intersectionLeft);
+        return intersection / (areaA + area(top[b], left[b], bottom[b], right[b]) - intersection);
+    }
+
+    private static float area(float top, float left, float bottom, float right) {
+        return Math.max(0, bottom - top) * Math.max(0, right - left);
+    }
+}
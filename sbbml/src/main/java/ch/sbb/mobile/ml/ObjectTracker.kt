@@ -4,6 +4,8 @@
 package ch.sbb.mobile.ml
 
 import android.graphics.RectF
+import android.os.SystemClock
+import java.nio.ByteBuffer
 import java.util.*
 import timber.log.Timber
 
@@ -23,21 +25,36 @@ import timber.log.Timber
  * are associated with the ObjectTracker that created them, and are only valid while that
  * ObjectTracker still exists.
  */
-internal class ObjectTracker protected  constructor(protected val frameWidth: Int, protected val frameHeight: Int, private val rowStride: Int, protected val alwaysTrack: Boolean) {
+internal class ObjectTracker protected  constructor(protected val frameWidth: Int, protected val frameHeight: Int, private val rowStride: Int, protected val alwaysTrack: Boolean, private val keypointHistorySize: Int) {
 
     private val downsampledFrame: ByteArray
-    private val trackedObjects: MutableMap<String, TrackedObject>
+    // indexed by the native handle, the slots of forgotten objects are null until the handle is reused
+    private val trackedObjects: ArrayList<TrackedObject?>
     private var lastTimestamp: Long = 0
-    private val timestampedDeltas: LinkedList<TimestampedDeltas>
+    // ring of the packed keypoints of the last keypointHistorySize frames, one fixed size slot per
+    // frame filled in place by the native code. Empty if the history is disabled.
+    private val keypointHistory = ByteArray(keypointHistorySize * KEYPOINT_HISTORY_SLOT_BYTES)
+    private val keypointHistoryCounts = IntArray(keypointHistorySize)
+    private val keypointHistoryTimestamps = LongArray(keypointHistorySize)
+    private var keypointHistoryFrames = 0
     private var downsampledTimestamp: Long = 0
+    // [handle, left, top, right, bottom, correlation, visible] of every native object, grows with the objects
+    private var objectStates = FloatArray(16 * OBJECT_STATE_STEP)
+    private val trackedPosition = FloatArray(4)
+    // scratch of trackBoxToLastFrame()
+    private val trackedBox = FloatArray(4)
+
+    /** Time spent in downsampling and in tracking during the last nextFrame() call.  */
+    var lastDownsampleNanos: Long = 0
+        private set
+    var lastTrackingNanos: Long = 0
+        private set
 
     /** ********************* NATIVE CODE ************************************  */
 
     /** This will contain an opaque pointer to the native ObjectTracker  */
     private val nativeObjectTracker: Long = 0
 
-    private class TimestampedDeltas(internal val timestamp: Long, internal val deltas: ByteArray)
-
     /**
      * A simple class that records keypoint information, which includes
      * local location, score and type. This will be used in calculating
@@ -130,8 +147,7 @@ internal class ObjectTracker protected  constructor(protected val frameWidth: In
     }
 
     init {
-        this.timestampedDeltas = LinkedList()
-        trackedObjects = HashMap()
+        trackedObjects = ArrayList()
         downsampledFrame = ByteArray((frameWidth + DOWNSAMPLE_FACTOR - 1) / DOWNSAMPLE_FACTOR * (frameWidth + DOWNSAMPLE_FACTOR - 1) / DOWNSAMPLE_FACTOR)
     }
 
@@ -145,25 +161,106 @@ internal class ObjectTracker protected  constructor(protected val frameWidth: In
     fun nextFrame(
             frameData: ByteArray, uvData: ByteArray?,
             timestamp: Long, transformationMatrix: FloatArray?) {
+        val downsampleStartNanos = SystemClock.elapsedRealtimeNanos()
         if (downsampledTimestamp != timestamp) {
             downsampleImageNative(
                     frameWidth, frameHeight, rowStride, frameData, DOWNSAMPLE_FACTOR, downsampledFrame)
             downsampledTimestamp = timestamp
         }
 
+        trackDownsampledFrame(uvData, timestamp, transformationMatrix, downsampleStartNanos)
+    }
+
+    /**
+     * Same as nextFrame(ByteArray, ...) but reads the luminance in place from a direct buffer,
+     * e.g. the first plane of an android.media.Image.
+     */
+    @Synchronized
+    fun nextFrame(frameData: ByteBuffer, timestamp: Long) {
+        val downsampleStartNanos = SystemClock.elapsedRealtimeNanos()
+        if (downsampledTimestamp != timestamp) {
+            downsampleImageBufferNative(
+                    frameWidth, frameHeight, rowStride, frameData, DOWNSAMPLE_FACTOR, downsampledFrame)
+            downsampledTimestamp = timestamp
+        }
+
+        trackDownsampledFrame(null, timestamp, null, downsampleStartNanos)
+    }
+
+    /**
+     * Statistics of the last frame change: the number of keypoints, the fraction of them lost in
+     * the new frame, and the mean keypoint motion relative to the frame width.
+     */
+    @Synchronized
+    fun getFrameStats(stats: FloatArray) {
+        getFrameStatsNative(stats)
+    }
+
+    private fun trackDownsampledFrame(uvData: ByteArray?, timestamp: Long, transformationMatrix: FloatArray?, downsampleStartNanos: Long) {
+        val trackingStartNanos = SystemClock.elapsedRealtimeNanos()
+        lastDownsampleNanos = trackingStartNanos - downsampleStartNanos
+
         // Do Lucas Kanade using the fullframe initializer.
         nextFrameNative(downsampledFrame, uvData, timestamp, transformationMatrix)
 
-        timestampedDeltas.add(TimestampedDeltas(timestamp, getKeypointsPacked(DOWNSAMPLE_FACTOR.toFloat())))
-        while (timestampedDeltas.size > MAX_FRAME_HISTORY_SIZE) {
-            timestampedDeltas.removeFirst()
+        if (keypointHistorySize > 0) {
+            val slot = keypointHistoryFrames % keypointHistorySize
+            keypointHistoryCounts[slot] = getKeypointsPackedNative(
+                    DOWNSAMPLE_FACTOR.toFloat(), keypointHistory, slot * KEYPOINT_HISTORY_SLOT_BYTES)
+            keypointHistoryTimestamps[slot] = timestamp
+            keypointHistoryFrames++
         }
 
-        for (trackedObject in trackedObjects.values) {
-            trackedObject.updateTrackedPosition()
+        // one native call for the states of all objects instead of several per object
+        if (objectStates.size < trackedObjects.size * OBJECT_STATE_STEP) {
+            objectStates = FloatArray(trackedObjects.size * 2 * OBJECT_STATE_STEP)
+        }
+        val objectCount = getObjectStatesNative(objectStates)
+        for (i in 0 until objectCount) {
+            val offset = i * OBJECT_STATE_STEP
+            trackedObjects.getOrNull(objectStates[offset].toInt())?.updateState(objectStates, offset)
         }
 
         lastTimestamp = timestamp
+        lastTrackingNanos = SystemClock.elapsedRealtimeNanos() - trackingStartNanos
+    }
+
+    /**
+     * Number of frames in the keypoint history, at most the size it was created with.
+     */
+    @Synchronized
+    fun getKeypointHistoryFrames(): Int {
+        return Math.min(keypointHistoryFrames, keypointHistorySize)
+    }
+
+    /**
+     * Copy the packed keypoints of a frame of the history into out, which needs
+     * KEYPOINT_HISTORY_SLOT_BYTES. Each keypoint is four uint16: x and y in the previous and in
+     * this frame, in full frame coordinates.
+     *
+     * @param age 0 for the last frame, 1 for the one before and so on.
+     * @return the number of keypoints, -1 if the frame is not in the history.
+     */
+    @Synchronized
+    fun copyKeypointHistory(age: Int, out: ByteArray): Int {
+        if (age < 0 || age >= getKeypointHistoryFrames()) {
+            return -1
+        }
+        val slot = (keypointHistoryFrames - 1 - age) % keypointHistorySize
+        val count = keypointHistoryCounts[slot]
+        System.arraycopy(keypointHistory, slot * KEYPOINT_HISTORY_SLOT_BYTES, out, 0, count * KEYPOINT_PACKED_BYTES)
+        return count
+    }
+
+    /**
+     * Timestamp of a frame of the history, see copyKeypointHistory().
+     */
+    @Synchronized
+    fun getKeypointHistoryTimestamp(age: Int): Long {
+        if (age < 0 || age >= getKeypointHistoryFrames()) {
+            return -1
+        }
+        return keypointHistoryTimestamps[(keypointHistoryFrames - 1 - age) % keypointHistorySize]
     }
 
     @Synchronized
@@ -199,43 +296,63 @@ internal class ObjectTracker protected  constructor(protected val frameWidth: In
      * @author andrewharp@google.com (Andrew Harp)
      */
     inner class TrackedObject internal constructor(position: RectF, timestamp: Long, data: ByteArray) {
-        private val id: String
+        private var handle: Int = -1
 
         @get:Synchronized
         internal var lastExternalPositionTime: Long = 0
             private set
 
-        private var lastTrackedPosition: RectF? = null
+        // the state of the native object after the last frame, updated in place
+        private val lastTrackedPosition = RectF()
+        private var hasTrackedPosition: Boolean = false
+        private var lastCorrelation: Float = 0f
         private var visibleInLastFrame: Boolean = false
 
         private var isDead: Boolean = false
 
         val currentCorrelation: Float
-            get() {
+            @Synchronized get() {
                 checkValidObject()
-                return this@ObjectTracker.getCurrentCorrelation(id)
+                return lastCorrelation
             }
 
         val trackedPositionInPreviewFrame: RectF?
             @Synchronized get() {
                 checkValidObject()
 
-                return if (lastTrackedPosition == null) {
+                return if (!hasTrackedPosition) {
                     null
-                } else upscaleRect(lastTrackedPosition!!)
+                } else upscaleRect(lastTrackedPosition)
             }
 
+        /**
+         * Same as trackedPositionInPreviewFrame, into a rect of the caller instead of a new one.
+         *
+         * @return false if the object has no position yet, out is unchanged then.
+         */
+        @Synchronized
+        fun copyTrackedPositionInPreviewFrame(out: RectF): Boolean {
+            checkValidObject()
+            if (!hasTrackedPosition) {
+                return false
+            }
+            out.set(lastTrackedPosition.left * DOWNSAMPLE_FACTOR, lastTrackedPosition.top * DOWNSAMPLE_FACTOR,
+                    lastTrackedPosition.right * DOWNSAMPLE_FACTOR, lastTrackedPosition.bottom * DOWNSAMPLE_FACTOR)
+            return true
+        }
+
         init {
             isDead = false
 
-            id = Integer.toString(this.hashCode())
-
             lastExternalPositionTime = timestamp
 
             synchronized(this@ObjectTracker) {
-                registerInitialAppearance(position, data)
+                handle = registerInitialAppearance(position, data)
                 setPreviousPosition(position, timestamp)
-                trackedObjects.put(id, this)
+                while (trackedObjects.size <= handle) {
+                    trackedObjects.add(null)
+                }
+                trackedObjects[handle] = this
             }
         }
 
@@ -247,15 +364,22 @@ internal class ObjectTracker protected  constructor(protected val frameWidth: In
             checkValidObject()
 
             synchronized(this@ObjectTracker) {
+                // the handle may belong to another object by now
+                if (isDead) {
+                    return
+                }
                 isDead = true
-                forgetNative(id)
-                trackedObjects.remove(id)
+                forgetNative(handle)
+                trackedObjects[handle] = null
             }
         }
 
-        internal fun registerInitialAppearance(position: RectF, data: ByteArray) {
+        /**
+         * @return the native handle of the new object.
+         */
+        internal fun registerInitialAppearance(position: RectF, data: ByteArray): Int {
             val externalPosition = downscaleRect(position)
-            registerNewObjectWithAppearanceNative(id,
+            return registerNewObjectWithAppearanceNative(
                     externalPosition.left, externalPosition.top,
                     externalPosition.right, externalPosition.bottom,
                     data)
@@ -272,7 +396,7 @@ internal class ObjectTracker protected  constructor(protected val frameWidth: In
                 val externalPosition = downscaleRect(position)
                 lastExternalPositionTime = timestamp
 
-                setPreviousPositionNative(id,
+                setPreviousPositionNative(handle,
                         externalPosition.left, externalPosition.top,
                         externalPosition.right, externalPosition.bottom,
                         lastExternalPositionTime)
@@ -281,15 +405,30 @@ internal class ObjectTracker protected  constructor(protected val frameWidth: In
             }
         }
 
+        /**
+         * Query the state of this object alone, after its position was set. After a frame the
+         * states of all objects are taken over at once by updateState().
+         */
         @Synchronized
         fun updateTrackedPosition() {
             checkValidObject()
 
-            val delta = FloatArray(4)
-            getTrackedPositionNative(id, delta)
-            lastTrackedPosition = RectF(delta[0], delta[1], delta[2], delta[3])
+            getTrackedPositionNative(handle, trackedPosition)
+            lastTrackedPosition.set(trackedPosition[0], trackedPosition[1], trackedPosition[2], trackedPosition[3])
+            hasTrackedPosition = true
+            lastCorrelation = getCurrentCorrelation(handle)
+            visibleInLastFrame = isObjectVisible(handle)
+        }
 
-            visibleInLastFrame = isObjectVisible(id)
+        /**
+         * Take over the state at offset of the array filled by getObjectStatesNative().
+         */
+        @Synchronized
+        internal fun updateState(states: FloatArray, offset: Int) {
+            lastTrackedPosition.set(states[offset + 1], states[offset + 2], states[offset + 3], states[offset + 4])
+            hasTrackedPosition = true
+            lastCorrelation = states[offset + 5]
+            visibleInLastFrame = states[offset + 6] > 0f
         }
 
         private fun checkValidObject() {
@@ -301,6 +440,26 @@ internal class ObjectTracker protected  constructor(protected val frameWidth: In
         }
     }
 
+    /**
+     * Moves a box of the frame at timestamp along the motion tracked since then, to where it is in
+     * the last frame passed to nextFrame(). Both boxes are in preview frame coordinates.
+     *
+     * @return false if the frame at timestamp is not older than the last frame, out is unchanged then.
+     */
+    @Synchronized
+    fun trackBoxToLastFrame(position: RectF, timestamp: Long, out: RectF): Boolean {
+        if (timestamp <= 0 || timestamp >= lastTimestamp) {
+            return false
+        }
+        getCurrentPositionNative(timestamp,
+                position.left / DOWNSAMPLE_FACTOR, position.top / DOWNSAMPLE_FACTOR,
+                position.right / DOWNSAMPLE_FACTOR, position.bottom / DOWNSAMPLE_FACTOR,
+                trackedBox)
+        out.set(trackedBox[0] * DOWNSAMPLE_FACTOR, trackedBox[1] * DOWNSAMPLE_FACTOR,
+                trackedBox[2] * DOWNSAMPLE_FACTOR, trackedBox[3] * DOWNSAMPLE_FACTOR)
+        return true
+    }
+
     @Synchronized
     fun trackObject(
             position: RectF, timestamp: Long, frameData: ByteArray): TrackedObject {
@@ -312,6 +471,17 @@ internal class ObjectTracker protected  constructor(protected val frameWidth: In
         return TrackedObject(position, timestamp, downsampledFrame)
     }
 
+    @Synchronized
+    fun trackObject(
+            position: RectF, timestamp: Long, frameData: ByteBuffer): TrackedObject {
+        if (downsampledTimestamp != timestamp) {
+            downsampleImageBufferNative(
+                    frameWidth, frameHeight, rowStride, frameData, DOWNSAMPLE_FACTOR, downsampledFrame)
+            downsampledTimestamp = timestamp
+        }
+        return TrackedObject(position, timestamp, downsampledFrame)
+    }
+
     @Synchronized
     fun trackObject(position: RectF, frameData: ByteArray): TrackedObject {
         return TrackedObject(position, lastTimestamp, frameData)
@@ -320,25 +490,25 @@ internal class ObjectTracker protected  constructor(protected val frameWidth: In
     private external fun initNative(imageWidth: Int, imageHeight: Int, alwaysTrack: Boolean)
 
     protected external fun registerNewObjectWithAppearanceNative(
-            objectId: String, x1: Float, y1: Float, x2: Float, y2: Float, data: ByteArray)
+            x1: Float, y1: Float, x2: Float, y2: Float, data: ByteArray): Int
 
     protected external fun setPreviousPositionNative(
-            objectId: String, x1: Float, y1: Float, x2: Float, y2: Float, timestamp: Long)
+            handle: Int, x1: Float, y1: Float, x2: Float, y2: Float, timestamp: Long)
 
     protected external fun setCurrentPositionNative(
-            objectId: String, x1: Float, y1: Float, x2: Float, y2: Float)
+            handle: Int, x1: Float, y1: Float, x2: Float, y2: Float)
 
-    protected external fun forgetNative(key: String)
+    protected external fun forgetNative(handle: Int)
 
-    protected external fun getModelIdNative(key: String): String
+    protected external fun getModelIdNative(handle: Int): String
 
-    protected external fun haveObject(key: String): Boolean
-    protected external fun isObjectVisible(key: String): Boolean
-    protected external fun getCurrentCorrelation(key: String): Float
+    protected external fun haveObject(handle: Int): Boolean
+    protected external fun isObjectVisible(handle: Int): Boolean
+    protected external fun getCurrentCorrelation(handle: Int): Float
 
-    protected external fun getMatchScore(key: String): Float
+    protected external fun getMatchScore(handle: Int): Float
 
-    protected external fun getTrackedPositionNative(key: String, points: FloatArray)
+    protected external fun getTrackedPositionNative(handle: Int, points: FloatArray)
 
     protected external fun nextFrameNative(
             frameData: ByteArray, uvData: ByteArray?, timestamp: Long, frameAlignMatrix: FloatArray?)
@@ -350,15 +520,22 @@ internal class ObjectTracker protected  constructor(protected val frameWidth: In
                                                     positionX2: Float, positionY2: Float,
                                                     delta: FloatArray)
 
-    protected external fun getKeypointsPacked(scaleFactor: Float): ByteArray
+    protected external fun getKeypointsPackedNative(scaleFactor: Float, out: ByteArray, offset: Int): Int
 
     protected external fun getKeypointsNative(onlyReturnCorrespondingKeypoints: Boolean): FloatArray
 
+    protected external fun getFrameStatsNative(stats: FloatArray)
+
+    protected external fun getObjectStatesNative(states: FloatArray): Int
+
     protected external fun drawNative(viewWidth: Int, viewHeight: Int, frameToCanvas: FloatArray)
 
     protected external fun downsampleImageNative(
             width: Int, height: Int, rowStride: Int, input: ByteArray, factor: Int, output: ByteArray)
 
+    protected external fun downsampleImageBufferNative(
+            width: Int, height: Int, rowStride: Int, input: ByteBuffer, factor: Int, output: ByteArray)
+
     companion object {
 
         private var libraryFound = false
@@ -372,22 +549,27 @@ internal class ObjectTracker protected  constructor(protected val frameWidth: In
             }
         }
 
-        private val MAX_FRAME_HISTORY_SIZE = 200
+        // bytes of a keypoint packed by the native code and of a history slot, see kMaxKeypoints
+        const val KEYPOINT_PACKED_BYTES = 8
+        const val KEYPOINT_HISTORY_SLOT_BYTES = 76 * KEYPOINT_PACKED_BYTES
 
         private val DOWNSAMPLE_FACTOR = 2
 
+        // floats per object in the array of getObjectStatesNative(), see kObjectStateStep
+        private const val OBJECT_STATE_STEP = 7
+
         protected var instance: ObjectTracker? = null
 
         @Synchronized
         fun getInstance(
-                frameWidth: Int, frameHeight: Int, rowStride: Int, alwaysTrack: Boolean): ObjectTracker? {
+                frameWidth: Int, frameHeight: Int, rowStride: Int, alwaysTrack: Boolean, keypointHistorySize: Int = 0): ObjectTracker? {
             if (!libraryFound) {
                 // Native object tracking support not found. See tensorflow/examples/android/README.md for details.
                 return null
             }
 
             if (instance == null) {
-                instance = ObjectTracker(frameWidth, frameHeight, rowStride, alwaysTrack)
+                instance = ObjectTracker(frameWidth, frameHeight, rowStride, alwaysTrack, keypointHistorySize)
                 instance!!.init()
             } else {
                 throw RuntimeException(
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Collects the per stage latencies and the frame counters of the frame processing. The stages are
+ * timed with SystemClock.elapsedRealtimeNanos() and recorded into fixed memory histograms, a
+ * snapshot is taken at most once per interval.
+ */
+class PipelineMetrics {
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[MLMetrics.Stage.values().length];
+    private final long[] drainedCounts = new long[LatencyHistogram.BUCKET_COUNT];
+    private final long intervalNanos;
+    private long intervalStartNanos;
+    private final AtomicLong framesOffered = new AtomicLong(0);
+    private final AtomicLong framesAcquired = new AtomicLong(0);
+    private final AtomicLong framesTracked = new AtomicLong(0);
+    private final AtomicLong framesDetected = new AtomicLong(0);
+    private final AtomicLongArray framesDropped = new AtomicLongArray(MLMetrics.DropReason.values().length);
+    private final RateMeter trackingRate = new RateMeter();
+    private final RateMeter detectionRate = new RateMeter();
+    private final long createdNanos;
+    private volatile long modelLoadNanos = 0;
+    private volatile long warmUpNanos = 0;
+    private volatile boolean compiledModelCached = false;
+    private volatile long firstDetectionNanos = 0;
+
+    /**
+     * @param intervalMs how often a snapshot is taken, 0 or less disables the metrics.
+     */
+    PipelineMetrics(int intervalMs) {
+        intervalNanos = intervalMs * 1_000_000L;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        intervalStartNanos = SystemClock.elapsedRealtimeNanos();
+        createdNanos = intervalStartNanos;
+    }
+
+    int getIntervalMs() {
+        return (int) (intervalNanos / 1_000_000L);
+    }
+
+    boolean isEnabled() {
+        return intervalNanos > 0;
+    }
+
+    /**
+     * @return current time to be passed to {@link #record} when the stage is finished.
+     */
+    static long startStage() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    void record(MLMetrics.Stage stage, long startNanos) {
+        recordNanos(stage, SystemClock.elapsedRealtimeNanos() - startNanos);
+    }
+
+    void recordNanos(MLMetrics.Stage stage, long nanos) {
+        if (isEnabled()) {
+            histograms[stage.ordinal()].record(nanos / 1000);
+        }
+    }
+
+    void frameOffered() {
+        framesOffered.incrementAndGet();
+    }
+
+    void frameAcquired() {
+        framesAcquired.incrementAndGet();
+    }
+
+    /**
+     * Must be called from the tracking thread.
+     */
+    void frameTracked() {
+        framesTracked.incrementAndGet();
+        trackingRate.tick(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Must be called from the detection thread.
+     */
+    void frameDetected() {
+        framesDetected.incrementAndGet();
+        detectionRate.tick(SystemClock.elapsedRealtimeNanos());
+    }
+
+    void frameDropped(MLMetrics.DropReason reason) {
+        framesDropped.incrementAndGet(reason.ordinal());
+    }
+
+    /**
+     * Time spent to load and to warm up the latest models, and whether the delegate could skip
+     * compiling them.
+     */
+    void recordStartup(long modelLoadNanos, long warmUpNanos, boolean compiledModelCached) {
+        this.modelLoadNanos = modelLoadNanos;
+        this.warmUpNanos = warmUpNanos;
+        this.compiledModelCached = compiledModelCached;
+    }
+
+    /**
+     * Must be called from the detection thread, only the first call counts.
+     */
+    void firstDetectionPublished() {
+        if (firstDetectionNanos == 0) {
+            firstDetectionNanos = SystemClock.elapsedRealtimeNanos() - createdNanos;
+        }
+    }
+
+    /**
+     * @return the metrics of the finished interval, or null if the interval is still running.
+     */
+    synchronized MLMetrics snapshotIfDue() {
+        if (!isEnabled()) {
+            return null;
+        }
+        final long now = SystemClock.elapsedRealtimeNanos();
+        if (now - intervalStartNanos < intervalNanos) {
+            return null;
+        }
+
+        final MLMetrics.StageLatency[] latencies = new MLMetrics.StageLatency[histograms.length];
+        for (int i = 0; i < histograms.length; i++) {
+            final long max = histograms[i].drainTo(drainedCounts);
+            long count = 0;
+            for (final long bucketCount : drainedCounts) {
+                count += bucketCount;
+            }
+            latencies[i] = new MLMetrics.StageLatency(
+                    count,
+                    LatencyHistogram.valueAtPercentile(drainedCounts, count, 50),
+                    LatencyHistogram.valueAtPercentile(drainedCounts, count, 95),
+                    LatencyHistogram.valueAtPercentile(drainedCounts, count, 99),
+                    max);
+        }
+
+        final long intervalMs = (now - intervalStartNanos) / 1_000_000L;
+        intervalStartNanos = now;
+        final long[] dropped = new long[framesDropped.length()];
+        for (int i = 0; i < dropped.length; i++) {
+            dropped[i] = framesDropped.get(i);
+        }
+        return new MLMetrics(intervalMs, latencies,
+                framesOffered.get(), framesAcquired.get(), framesTracked.get(), framesDetected.get(), dropped,
+                trackingRate.getEventsPerSecond(now), detectionRate.getEventsPerSecond(now),
+                modelLoadNanos / 1_000_000L, warmUpNanos / 1_000_000L, compiledModelCached,
+                firstDetectionNanos / 1_000_000L);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+/*
+ * Rolling event rate, an exponentially weighted moving average of the time between events. Events
+ * must be reported from one thread, the rate can be read from any thread. When the events stop, the
+ * pending interval counts as soon as it is longer than the average, so the rate falls toward 0.
+ */
+class RateMeter {
+
+    private static final float SMOOTHING = 0.1f;
+
+    private volatile long lastEventNanos = -1;
+    private volatile float averageIntervalNanos = 0;
+
+    void tick(long nowNanos) {
+        if (lastEventNanos >= 0) {
+            final long interval = nowNanos - lastEventNanos;
+            averageIntervalNanos = averageIntervalNanos == 0
+                    ? interval
+                    : averageIntervalNanos + SMOOTHING * (interval - averageIntervalNanos);
+        }
+        lastEventNanos = nowNanos;
+    }
+
+    /**
+     * @return the rate at nowNanos, 0 before the second event.
+     */
+    float getEventsPerSecond(long nowNanos) {
+        final long lastNanos = lastEventNanos;
+        final float averageNanos = averageIntervalNanos;
+        if (lastNanos < 0 || averageNanos <= 0) {
+            return 0;
+        }
+        // decay by the time since the last event, as if an event arrived now
+        final long pendingNanos = nowNanos - lastNanos;
+        final float intervalNanos = pendingNanos > averageNanos
+                ? averageNanos + SMOOTHING * (pendingNanos - averageNanos)
+                : averageNanos;
+        return 1_000_000_000f / intervalNanos;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import android.graphics.RectF;
+
+/*
+ * Decides for every detection whether the detector looks at the regions around the tracked
+ * objects or scans the whole frame, and lays out the regions. The whole frame is scanned every
+ * fullScanInterval detections and after the tracker lost an object, to find the objects the
+ * regions do not cover.
+ */
+class RoiPlanner {
+
+    // size of the region around a tracked object relative to the object
+    static final float ROI_MARGIN = 1.5f;
+
+    private int detectionsSinceFullScan = 0;
+    private int lastLostObjectCount = 0;
+
+    /**
+     * @param lostObjectCount objects the tracker lost so far, a change since the last call asks for a scan
+     * @return true if the next detection should scan the whole frame.
+     */
+    boolean isFullScanDue(int fullScanInterval, int lostObjectCount) {
+        if (lostObjectCount != lastLostObjectCount) {
+            lastLostObjectCount = lostObjectCount;
+            return true;
+        }
+        return detectionsSinceFullScan + 1 >= fullScanInterval;
+    }
+
+    /**
+     * To be called after a detection in the regions.
+     */
+    void regionsDetected() {
+        detectionsSinceFullScan++;
+    }
+
+    /**
+     * To be called after a scan of the whole frame.
+     */
+    void frameScanned() {
+        detectionsSinceFullScan = 0;
+    }
+
+    /**
+     * Set roi to a square around the object: minSide, usually the model input size, or larger if
+     * the object with its margin needs it, but at most the shorter side of the frame. The square
+     * is moved into the frame where the object is close to an edge.
+     */
+    static void setRoiAround(RectF position, float minSide, float frameWidth, float frameHeight, RectF roi) {
+        final float side = Math.min(Math.min(frameWidth, frameHeight),
+                Math.max(minSide, Math.max(position.width(), position.height()) * ROI_MARGIN));
+        final float left = Math.max(0, Math.min(frameWidth - side, position.centerX() - side / 2));
+        final float top = Math.max(0, Math.min(frameHeight - side, position.centerY() - side / 2));
+        roi.set(left, top, left + side, top + side);
+    }
+}
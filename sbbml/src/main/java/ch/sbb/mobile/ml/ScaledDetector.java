@@ -0,0 +1,84 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+import java.util.Arrays;
+
+/*
+ * A loaded detector together with the transformations between the preview frame and its model
+ * input. Models with different input sizes need their own transformations. In tiling mode every
+ * tile of the frame has its own transformation as well. The detector is the first of a pool of
+ * interpreters of the model, the others detect further tiles of the same frame in parallel.
+ */
+class ScaledDetector {
+
+    final InterpreterPool interpreterPool;
+    final TFLiteObjectDetector detector;
+    final Matrix frameToScaledTransform;
+    final Matrix scaledToFrameTransform = new Matrix();
+    final float[] scaledToFrameValues = new float[9];
+    final FrameTile[] tiles;
+    private int nextTile = 0;
+    // regions around tracked objects, created when first needed
+    FrameTile[] rois = new FrameTile[0];
+
+    ScaledDetector(InterpreterPool interpreterPool, MLSettings mlSettings, int sensorOrientation) {
+        this.interpreterPool = interpreterPool;
+        this.detector = interpreterPool.get(0);
+        frameToScaledTransform = ImageUtils.getTransformationMatrix(
+                mlSettings.getPreviewSize().getWidth(), mlSettings.getPreviewSize().getHeight(),
+                detector.getInputWidth(), detector.getInputHeight(),
+                sensorOrientation, mlSettings.isMaintainAspectRatio());
+        frameToScaledTransform.invert(scaledToFrameTransform);
+        scaledToFrameTransform.getValues(scaledToFrameValues);
+
+        final int rows = mlSettings.getTileRows();
+        final int columns = mlSettings.getTileColumns();
+        if (rows * columns > 1) {
+            final RectF[] bounds = ImageUtils.getTiles(
+                    mlSettings.getPreviewSize().getWidth(), mlSettings.getPreviewSize().getHeight(),
+                    rows, columns, mlSettings.getTileOverlap());
+            tiles = new FrameTile[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                tiles[i] = new FrameTile(bounds[i], detector, sensorOrientation, mlSettings.isMaintainAspectRatio());
+            }
+        } else {
+            tiles = new FrameTile[0];
+        }
+    }
+
+    boolean isTiled() {
+        return tiles.length > 0;
+    }
+
+    /**
+     * The region around the tracked object with the given index, its bounds are set by the caller.
+     */
+    FrameTile getRoi(int index) {
+        if (index >= rois.length) {
+            final FrameTile[] grown = Arrays.copyOf(rois, index + 1);
+            for (int i = rois.length; i < grown.length; i++) {
+                grown[i] = new FrameTile(detector);
+            }
+            rois = grown;
+        }
+        return rois[index];
+    }
+
+    /**
+     * The tile to detect next in round robin scheduling.
+     */
+    FrameTile nextTile() {
+        final FrameTile tile = tiles[nextTile];
+        nextTile = (nextTile + 1) % tiles.length;
+        return tile;
+    }
+
+    int getInputPixels() {
+        return detector.getInputWidth() * detector.getInputHeight();
+    }
+}
@@ -4,26 +4,20 @@
 package ch.sbb.mobile.ml;
 
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
-import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.RectF;
 import android.os.Trace;
 import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
 import org.tensorflow.lite.gpu.CompatibilityList;
 import org.tensorflow.lite.gpu.GpuDelegate;
 import org.tensorflow.lite.nnapi.NnApiDelegate;
-import org.tensorflow.lite.support.image.TensorImage;
-import org.tensorflow.lite.support.metadata.MetadataExtractor;
-import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -33,36 +27,136 @@ import static java.lang.Math.min;
 
 class TFLiteObjectDetector {
 
-  private final List<String> labels = new ArrayList<>();
-  private final List<String> output_order = new ArrayList<>();
-  private final List<String> input_order = new ArrayList<>();
+  private final ModelFile model;
+  private final List<String> labels;
+  private final List<String> output_order;
+  private final List<String> input_order;
   private float[][][] outputLocations;
   private float[][] outputClasses;
   private float[][] outputScores;
   private float[] numDetections;
   private int maxNumberOfOutput;
 
+  // Models without embedded post-processing return the raw YOLO output, which is decoded here.
+  private YoloDecoder yoloDecoder;
+  private ByteBuffer rawOutputBuffer;
+  private FloatBuffer rawOutputFloats;
+  private float[] rawOutput;
+  private byte[] rawOutputBytes;
+  private float rawOutputScale;
+  private int rawOutputZeroPoint;
+  private boolean rawOutputSigned;
+
+  // Everything handed to the interpreter is allocated once in loadModel and reused for every
+  // inference, so running the detector does not create garbage on the hot path.
+  private ByteBuffer inputBuffer;
+  private ByteBuffer iouThresholdBuffer;
+  private ByteBuffer confThresholdBuffer;
+  private int[] pixelValues;
+  private int inputWidth;
+  private int inputHeight;
+  private int inputTensorType;
+  private Object[] inputs;
+  // images per inference, more than one only for raw output models which allow resizing the batch
+  private int batchSize = 1;
+  private final Map<Integer, Object> outputs = new HashMap<>();
+
   private Interpreter tfLite;
   private GpuDelegate gpuDelegate;
   private NnApiDelegate nnApiDelegate;
-  private final MLSettings mlSettings;
-
+  private volatile MLSettings mlSettings;
+  private final File compiledModelCacheDir;
+  private final int numberOfThreads;
+  private boolean compiledModelCached;
 
   public TFLiteObjectDetector(final Context context, MLSettings mlSettings) throws IOException {
+    this(context, mlSettings, mlSettings.getModelFilename());
+  }
+
+  /**
+   * Load another model than {@link MLSettings#getModelFilename()}, all other settings are taken
+   * from mlSettings.
+   */
+  TFLiteObjectDetector(final Context context, MLSettings mlSettings, String modelFilename) throws IOException {
+    this(ModelFile.load(context.getAssets(), modelFilename), mlSettings, compiledModelCacheDir(context, mlSettings));
+  }
+
+  /**
+   * Create an interpreter for an already mapped model, see {@link ModelCache}.
+   *
+   * @param compiledModelCacheDir where the delegates store the compiled model, null to compile it every time.
+   */
+  TFLiteObjectDetector(final ModelFile model, MLSettings mlSettings, File compiledModelCacheDir) throws IOException {
+    this(model, mlSettings, compiledModelCacheDir, mlSettings.getNumberOfThreds());
+  }
+
+  /**
+   * Create an interpreter with another number of threads than the settings, see {@link InterpreterPool}.
+   */
+  TFLiteObjectDetector(final ModelFile model, MLSettings mlSettings, File compiledModelCacheDir,
+                       int numberOfThreads) throws IOException {
     this.mlSettings = mlSettings;
-    loadModel(context, mlSettings);
+    this.model = model;
+    this.compiledModelCacheDir = compiledModelCacheDir;
+    this.numberOfThreads = numberOfThreads;
+    labels = model.getLabels();
+    input_order = model.getInputOrder();
+    output_order = model.getOutputOrder();
+    maxNumberOfOutput = model.getMaxNumberOfOutput();
+    loadModel(mlSettings);
   }
 
-  private MappedByteBuffer loadModelFile(AssetManager assets) throws IOException {
-    AssetFileDescriptor fileDescriptor = assets.openFd(mlSettings.getModelFilename());
-    FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-    FileChannel fileChannel = inputStream.getChannel();
-    long startOffset = fileDescriptor.getStartOffset();
-    long declaredLength = fileDescriptor.getDeclaredLength();
-    return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+  String getModelFilename() {
+    return model.getFilename();
+  }
+
+  int getNumberOfThreads() {
+    return numberOfThreads;
+  }
+
+  ModelFile getModel() {
+    return model;
+  }
+
+  static File compiledModelCacheDir(Context context, MLSettings mlSettings) {
+    if (!mlSettings.isUseCompiledModelCache()) {
+      return null;
+    }
+    final File dir = new File(context.getCacheDir(), "tflite_compiled_models");
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      Timber.w("Cannot create %s, models are compiled on every start", dir);
+      return null;
+    }
+    return dir;
   }
 
-  private void loadModel(final Context context, final MLSettings mlSettings) throws IOException {
+  /**
+   * @return true if the delegate found the compiled model of an earlier start in the cache dir.
+   */
+  boolean isCompiledModelCached() {
+    return compiledModelCached;
+  }
+
+  private boolean hasCompiledModel(String token) {
+    final String[] names = compiledModelCacheDir.list();
+    if (names != null) {
+      for (final String name : names) {
+        if (name.startsWith(token)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Use the thresholds of new settings for the next inferences. The model is not loaded again.
+   */
+  void updateSettings(MLSettings mlSettings) {
+    this.mlSettings = mlSettings;
+  }
+
+  private void loadModel(final MLSettings mlSettings) throws IOException {
     if (gpuDelegate != null) {
       gpuDelegate.close();
       gpuDelegate = null;
@@ -77,37 +171,13 @@ class TFLiteObjectDetector {
       tfLite.close();
     }
 
-    MappedByteBuffer modelFile = loadModelFile(context.getAssets());
-    MetadataExtractor metadataExtractor = new MetadataExtractor(modelFile);
-
-    InputStream labelsInputStream = metadataExtractor.getAssociatedFile("labels.txt");
-    InputStreamReader labelsInputStreamReader = new InputStreamReader(labelsInputStream);
-    try (BufferedReader br = new BufferedReader(labelsInputStreamReader)) {
-      String line;
-      while ((line = br.readLine()) != null) {
-        Timber.i(line);
-        labels.add(line);
-      }
-    }
-
-    int numberInput = metadataExtractor.getInputTensorCount();
-    for(int i = 0; i < numberInput; i++) {
-      String inputName = metadataExtractor.getInputTensorMetadata(i).name();
-      input_order.add(inputName);
-    }
-
-    int numberOutput = metadataExtractor.getOutputTensorCount();
-    for (int i = 0; i < numberOutput; i++) {
-      String outputName = metadataExtractor.getOutputTensorMetadata(i).name();
-      output_order.add(outputName);
-    }
-
-    maxNumberOfOutput = Arrays.stream(metadataExtractor.getOutputTensorShape(0)).max().getAsInt();
-
+    MappedByteBuffer modelFile = model.getBuffer();
+    final String cacheToken = compiledModelCacheDir != null ? model.getCacheToken() : null;
+    compiledModelCached = false;
 
     try {
       Interpreter.Options options = new Interpreter.Options();
-      options.setNumThreads(mlSettings.getNumberOfThreds());
+      options.setNumThreads(numberOfThreads);
 
       if(mlSettings.getProcessor() == MLSettings.Processor.CPU) {
         options = getCPUModeOptions();
@@ -115,6 +185,10 @@ class TFLiteObjectDetector {
         CompatibilityList compatList = new CompatibilityList();
         if(compatList.isDelegateSupportedOnThisDevice()){
           GpuDelegate.Options delegateOptions = compatList.getBestOptionsForThisDevice();
+          if (cacheToken != null) {
+            compiledModelCached = hasCompiledModel(cacheToken);
+            delegateOptions.setSerializationParams(compiledModelCacheDir.getAbsolutePath(), cacheToken);
+          }
           gpuDelegate = new GpuDelegate(delegateOptions);
           options.addDelegate(gpuDelegate);
           Timber.i("GPU Delegate %s", delegateOptions.toString());
@@ -125,11 +199,17 @@ class TFLiteObjectDetector {
         NnApiDelegate.Options nnapi_options = new NnApiDelegate.Options();
         nnapi_options.setExecutionPreference(1);
         nnapi_options.setAllowFp16(true);
+        if (cacheToken != null) {
+          compiledModelCached = hasCompiledModel(cacheToken);
+          nnapi_options.setCacheDir(compiledModelCacheDir.getAbsolutePath());
+          nnapi_options.setModelToken(cacheToken);
+        }
         nnApiDelegate = new NnApiDelegate(nnapi_options);
         options.addDelegate(nnApiDelegate);
       }
       tfLite = new Interpreter(modelFile, options);
     } catch (Exception e) {
+      compiledModelCached = false;
       if(mlSettings.isUseCPUBackup()) {
         tfLite = new Interpreter(modelFile, getCPUModeOptions());
       } else {
@@ -138,66 +218,380 @@ class TFLiteObjectDetector {
       }
     }
 
-    Timber.i("Interepreter created for model %s", mlSettings.getModelFilename());
+    Timber.i("Interepreter created for model %s", model.getFilename());
+    batchSize = 1;
+    yoloDecoder = null;
+    if (!output_order.contains("location")) {
+      createYoloDecoder();
+    }
+
     outputLocations = new float[1][maxNumberOfOutput][4];
     outputClasses = new float[1][maxNumberOfOutput];
     outputScores = new float[1][maxNumberOfOutput];
     numDetections = new float[1];
+
+    inputs = new Object[input_order.size()];
+    for (int i = 0; i < input_order.size(); i++) {
+      switch (input_order.get(i)) {
+        case "image":
+          // shape is [1, height, width, 3]
+          Tensor imageTensor = tfLite.getInputTensor(i);
+          int[] shape = imageTensor.shape();
+          inputHeight = shape[1];
+          inputWidth = shape[2];
+          inputTensorType = getTensorType(imageTensor);
+          inputBuffer = allocateTensorBuffer(i);
+          pixelValues = new int[inputWidth * inputHeight];
+          inputs[i] = inputBuffer;
+          break;
+        case "iou threshold":
+          iouThresholdBuffer = allocateTensorBuffer(i);
+          inputs[i] = iouThresholdBuffer;
+          break;
+        case "conf threshold":
+          confThresholdBuffer = allocateTensorBuffer(i);
+          inputs[i] = confThresholdBuffer;
+          break;
+      }
+    }
+
+    outputs.clear();
+    if (yoloDecoder != null) {
+      outputs.put(0, rawOutputBuffer);
+    } else {
+      outputs.put(output_order.indexOf("location"), outputLocations);
+      outputs.put(output_order.indexOf("category"), outputClasses);
+      outputs.put(output_order.indexOf("score"), outputScores);
+      outputs.put(output_order.indexOf("number of detections"), numDetections);
+    }
+  }
+
+  /**
+   * The model has no NMS ops, its single output is [1, anchors, 5 + classes]. The thresholds are
+   * applied by the decoder instead of being model inputs.
+   */
+  private void createYoloDecoder() throws IOException {
+    Tensor outputTensor = tfLite.getOutputTensor(0);
+    int[] shape = outputTensor.shape();
+    if (shape.length != 3 || shape[2] <= 5) {
+      throw new IOException("Unsupported raw output shape " + Arrays.toString(shape));
+    }
+    yoloDecoder = new YoloDecoder(shape[1], shape[2] - 5, YoloDecoder.MAX_DETECTIONS);
+    maxNumberOfOutput = yoloDecoder.getMaxDetections();
+    rawOutputBuffer = ByteBuffer.allocateDirect(outputTensor.numBytes()).order(ByteOrder.nativeOrder());
+    rawOutputFloats = rawOutputBuffer.asFloatBuffer();
+    rawOutput = new float[shape[1] * shape[2]];
+    rawOutputBytes = null;
+    switch (outputTensor.dataType()) {
+      case FLOAT32:
+        break;
+      case UINT8:
+      case INT8:
+        rawOutputBytes = new byte[rawOutput.length];
+        rawOutputScale = outputTensor.quantizationParams().getScale();
+        rawOutputZeroPoint = outputTensor.quantizationParams().getZeroPoint();
+        rawOutputSigned = outputTensor.dataType() == DataType.INT8;
+        break;
+      default:
+        throw new IOException("Unsupported raw output type " + outputTensor.dataType());
+    }
+    Timber.i("Decoding raw output %s with %d classes", Arrays.toString(shape), shape[2] - 5);
+  }
+
+  private void decodeRawOutput(int batchIndex) {
+    Trace.beginSection("decodeRawOutput");
+    if (rawOutputBytes == null) {
+      rawOutputFloats.position(batchIndex * rawOutput.length);
+      rawOutputFloats.get(rawOutput);
+    } else {
+      rawOutputBuffer.position(batchIndex * rawOutputBytes.length);
+      rawOutputBuffer.get(rawOutputBytes);
+      for (int i = 0; i < rawOutputBytes.length; i++) {
+        final int value = rawOutputSigned ? rawOutputBytes[i] : rawOutputBytes[i] & 0xFF;
+        rawOutput[i] = (value - rawOutputZeroPoint) * rawOutputScale;
+      }
+    }
+    numDetections[0] = yoloDecoder.decode(rawOutput, mlSettings.getMinimumConfidence(), mlSettings.getIou(),
+        outputLocations[0], outputClasses[0], outputScores[0]);
+    Trace.endSection();
+  }
+
+  /**
+   * Quantized models take the camera pixels as they are, so the bytes can be fed directly without
+   * float conversion. This is only exact if a quantized value is the pixel value, which needs a
+   * scale of 1 and a zero point of 0 for uint8 or -128 for int8. Other parameters are rejected
+   * instead of feeding wrong values.
+   */
+  private static int getTensorType(Tensor imageTensor) throws IOException {
+    DataType dataType = imageTensor.dataType();
+    Tensor.QuantizationParams quantization = imageTensor.quantizationParams();
+    Timber.i("Image input %s, scale %f, zero point %d", dataType, quantization.getScale(), quantization.getZeroPoint());
+    switch (dataType) {
+      case FLOAT32:
+        return ImageUtils.TENSOR_FLOAT32;
+      case UINT8:
+        checkPixelQuantization(dataType, quantization, 0);
+        return ImageUtils.TENSOR_UINT8;
+      case INT8:
+        checkPixelQuantization(dataType, quantization, -128);
+        return ImageUtils.TENSOR_INT8;
+      default:
+        throw new IOException("Unsupported image input type " + dataType);
+    }
+  }
+
+  private static void checkPixelQuantization(DataType dataType, Tensor.QuantizationParams quantization,
+                                             int pixelZeroPoint) throws IOException {
+    if (quantization.getScale() != 1f || quantization.getZeroPoint() != pixelZeroPoint) {
+      throw new IOException("Unsupported quantization of " + dataType + " image input, scale "
+          + quantization.getScale() + ", zero point " + quantization.getZeroPoint());
+    }
+  }
+
+  /**
+   * Release the interpreter and its delegates. The detector cannot be used afterwards.
+   */
+  void close() {
+    if (tfLite != null) {
+      tfLite.close();
+      tfLite = null;
+    }
+
+    if (gpuDelegate != null) {
+      gpuDelegate.close();
+      gpuDelegate = null;
+    }
+
+    if(nnApiDelegate != null) {
+      nnApiDelegate.close();
+      nnApiDelegate = null;
+    }
+  }
+
+  private ByteBuffer allocateTensorBuffer(int inputIndex) {
+    return ByteBuffer.allocateDirect(tfLite.getInputTensor(inputIndex).numBytes()).order(ByteOrder.nativeOrder());
   }
 
   private Interpreter.Options getCPUModeOptions() {
     Interpreter.Options options = new Interpreter.Options();
-    options.setNumThreads(mlSettings.getNumberOfThreds());
+    options.setNumThreads(numberOfThreads);
     options.setUseXNNPACK(true);
     return options;
   }
   
-  public List<MLRecognition> recognizeImage(final Bitmap bitmap) throws IOException {
-    Trace.beginSection("recognizeImage");
-    TensorImage tensorImage = new TensorImage(DataType.FLOAT32);
-    tensorImage.load(bitmap);
+  /**
+   * The direct buffer which is fed to the interpreter as the image input. It can be filled in place
+   * by the caller before calling {@link #runInference()}.
+   */
+  ByteBuffer getInputBuffer() {
+    return inputBuffer;
+  }
 
-    Object[] inputImageAsArray = new Object[input_order.size()];
-    for(int i = 0; i < input_order.size(); i++) {
-      switch (input_order.get(i)) {
-        case "image": inputImageAsArray[i] = tensorImage.getBuffer(); break;
-        case "iou threshold": inputImageAsArray[i] = mlSettings.getIou(); break;
-        case "conf threshold": inputImageAsArray[i] = mlSettings.getMinimumConfidence(); break;
+  int getInputWidth() {
+    return inputWidth;
+  }
+
+  int getInputHeight() {
+    return inputHeight;
+  }
+
+  /**
+   * Element type of the input buffer, one of the ImageUtils.TENSOR_ constants.
+   */
+  int getInputTensorType() {
+    return inputTensorType;
+  }
+
+  /**
+   * Copy the bitmap into the input buffer. The bitmap must have the size of the model input.
+   */
+  void loadImage(final Bitmap bitmap) {
+    loadImage(bitmap, 0);
+  }
+
+  /**
+   * Copy the bitmap into the input of image batchIndex of the batch.
+   */
+  void loadImage(final Bitmap bitmap, int batchIndex) {
+    Trace.beginSection("loadImage");
+    bitmap.getPixels(pixelValues, 0, inputWidth, 0, 0, inputWidth, inputHeight);
+    inputBuffer.position(batchIndex * getInputImageBytes());
+    if (inputTensorType == ImageUtils.TENSOR_FLOAT32) {
+      for (int pixel : pixelValues) {
+        inputBuffer.putFloat((pixel >> 16) & 0xFF);
+        inputBuffer.putFloat((pixel >> 8) & 0xFF);
+        inputBuffer.putFloat(pixel & 0xFF);
+      }
+    } else {
+      // int8 is uint8 shifted by the zero point of -128, which is flipping the highest bit.
+      final int offset = inputTensorType == ImageUtils.TENSOR_INT8 ? 0x80 : 0;
+      for (int pixel : pixelValues) {
+        inputBuffer.put((byte) (((pixel >> 16) & 0xFF) ^ offset));
+        inputBuffer.put((byte) (((pixel >> 8) & 0xFF) ^ offset));
+        inputBuffer.put((byte) ((pixel & 0xFF) ^ offset));
       }
     }
-
-    Map<Integer, Object> outputMap = new HashMap<>();
-    outputMap.put(output_order.indexOf("location"), outputLocations);
-    outputMap.put(output_order.indexOf("category"), outputClasses);
-    outputMap.put(output_order.indexOf("score"), outputScores);
-    outputMap.put(output_order.indexOf("number of detections"), numDetections);
+    inputBuffer.rewind();
     Trace.endSection();
+  }
+
+  /**
+   * Run the model on the current content of the input buffer. Nothing is allocated here, the
+   * results stay in the preallocated output arrays.
+   *
+   * @return number of detections.
+   */
+  int runInference() throws IOException {
+    runBatchInference();
+    return getBatchResult(0);
+  }
+
+  /**
+   * Run the model on all images of the batch, the results are taken with
+   * {@link #getBatchResult(int)} one image after the other.
+   */
+  void runBatchInference() throws IOException {
+    if (iouThresholdBuffer != null) {
+      iouThresholdBuffer.putFloat(0, mlSettings.getIou());
+    }
+    if (confThresholdBuffer != null) {
+      confThresholdBuffer.putFloat(0, mlSettings.getMinimumConfidence());
+    }
+    inputBuffer.rewind();
+    if (rawOutputBuffer != null) {
+      // the interpreter writes the output from the position, which the last run and
+      // decodeRawOutput() leave at the end
+      rawOutputBuffer.rewind();
+    }
 
     Trace.beginSection("run");
     try {
-      tfLite.runForMultipleInputsOutputs(inputImageAsArray, outputMap);
+      tfLite.runForMultipleInputsOutputs(inputs, outputs);
     } catch (Exception e) {
       Timber.e("Failed to run the model %s", e.toString());
       Trace.endSection();
       throw new IOException("failed to run: " + e.toString());
     }
     Trace.endSection();
+  }
 
-    int numDetectionsOutput = min(maxNumberOfOutput, (int) numDetections[0]);
-    final ArrayList<MLRecognition> recognitions = new ArrayList<>(numDetectionsOutput);
-    for (int i = 0; i < numDetectionsOutput; ++i) {
-      final RectF detection = new RectF(
-              outputLocations[0][i][1] * mlSettings.getModelInputSize(),
-              outputLocations[0][i][0] * mlSettings.getModelInputSize(),
-              outputLocations[0][i][3] * mlSettings.getModelInputSize(),
-              outputLocations[0][i][2] * mlSettings.getModelInputSize());
+  /**
+   * Make the results of image batchIndex of the last {@link #runBatchInference()} the current
+   * ones, overwriting the results of the previous image.
+   *
+   * @return number of detections.
+   */
+  int getBatchResult(int batchIndex) {
+    if (yoloDecoder != null) {
+      decodeRawOutput(batchIndex);
+    }
+    return min(maxNumberOfOutput, (int) numDetections[0]);
+  }
 
-      int labelIndex = (int) outputClasses[0][i];
-      if(labelIndex < labels.size()) {
-        recognitions.add( new MLRecognition(labels.get(labelIndex), outputScores[0][i], detection));
+  /**
+   * Resize the interpreter to run batchSize images at once. Only raw output models can be
+   * batched, the detection post-processing op of the other models handles one image. The model
+   * must have been converted with a dynamic batch dimension, otherwise the size stays unchanged.
+   *
+   * @return the batch size now in use.
+   */
+  int setBatchSize(int batchSize) {
+    if (batchSize == this.batchSize || yoloDecoder == null) {
+      return this.batchSize;
+    }
+    final int imageIndex = input_order.indexOf("image");
+    try {
+      tfLite.resizeInput(imageIndex, new int[] {batchSize, inputHeight, inputWidth, 3}, true);
+      tfLite.allocateTensors();
+      if (tfLite.getOutputTensor(0).shape()[0] != batchSize) {
+        throw new IllegalArgumentException("output keeps batch size " + tfLite.getOutputTensor(0).shape()[0]);
       }
+    } catch (RuntimeException e) {
+      Timber.w("Model %s cannot run batches of %d: %s", model.getFilename(), batchSize, e.toString());
+      tfLite.resizeInput(imageIndex, new int[] {this.batchSize, inputHeight, inputWidth, 3});
+      tfLite.allocateTensors();
+      return this.batchSize;
     }
+
+    this.batchSize = batchSize;
+    inputBuffer = allocateTensorBuffer(imageIndex);
+    inputs[imageIndex] = inputBuffer;
+    rawOutputBuffer = ByteBuffer.allocateDirect(tfLite.getOutputTensor(0).numBytes()).order(ByteOrder.nativeOrder());
+    rawOutputFloats = rawOutputBuffer.asFloatBuffer();
+    outputs.put(0, rawOutputBuffer);
+    Timber.i("Model %s runs batches of %d", model.getFilename(), batchSize);
+    return batchSize;
+  }
+
+  int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * The part of the input buffer which holds image batchIndex, to be filled in place.
+   */
+  ByteBuffer getInputImageBuffer(int batchIndex) {
+    final ByteBuffer duplicate = inputBuffer.duplicate();
+    duplicate.position(batchIndex * getInputImageBytes());
+    duplicate.limit(duplicate.position() + getInputImageBytes());
+    return duplicate.slice().order(ByteOrder.nativeOrder());
+  }
+
+  private int getInputImageBytes() {
+    return inputBuffer.capacity() / batchSize;
+  }
+
+  public List<MLRecognition> recognizeImage(final Bitmap bitmap) throws IOException {
+    loadImage(bitmap);
+    return recognizeInputBuffer();
+  }
+
+  /**
+   * Run the model on the current content of the input buffer and return the results in model
+   * input coordinates.
+   */
+  List<MLRecognition> recognizeInputBuffer() throws IOException {
+    Trace.beginSection("recognizeImage");
+    final List<MLRecognition> recognitions = collectRecognitions(runInference());
     Trace.endSection(); // "recognizeImage"
     return recognitions;
   }
+
+  /**
+   * Map the first numDetectionsOutput results of the last {@link #runInference()} to recognitions
+   * in model input coordinates.
+   */
+  List<MLRecognition> collectRecognitions(final int numDetectionsOutput) {
+    final DetectionBuffer detections = new DetectionBuffer(numDetectionsOutput);
+    collectDetections(numDetectionsOutput, detections);
+    return detections.toRecognitions();
+  }
+
+  /**
+   * Fill detections with the first numDetectionsOutput results of the last {@link #runInference()}
+   * in model input coordinates. Results with an unknown label are skipped.
+   */
+  void collectDetections(final int numDetectionsOutput, final DetectionBuffer detections) {
+    detections.clear();
+    detections.setLabels(labels);
+    for (int i = 0; i < numDetectionsOutput; ++i) {
+      int labelIndex = (int) outputClasses[0][i];
+      if(labelIndex < labels.size()) {
+        detections.add(
+            outputLocations[0][i][1] * inputWidth,
+            outputLocations[0][i][0] * inputHeight,
+            outputLocations[0][i][3] * inputWidth,
+            outputLocations[0][i][2] * inputHeight,
+            outputScores[0][i],
+            labelIndex);
+      }
+    }
+  }
+
+  /**
+   * @return the most results {@link #runInference()} returns, the capacity needed to collect them.
+   */
+  int getMaxNumberOfOutput() {
+    return maxNumberOfOutput;
+  }
 }
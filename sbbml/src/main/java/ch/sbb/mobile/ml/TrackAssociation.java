@@ -0,0 +1,229 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+import java.util.Arrays;
+
+/*
+ * Assigns the detections of a frame to the tracked objects, at most one detection per track, so
+ * that the summed intersection over union of the pairs is maximal. The result does not depend on
+ * the order of the detections or the tracks. Up to HUNGARIAN_MAX_SIZE detections or tracks the
+ * assignment is solved exactly with the Hungarian method in O(n^3), above that greedily from the
+ * pair with the highest overlap down. All buffers are reused from one frame to the next.
+ */
+class TrackAssociation {
+
+    static final int HUNGARIAN_MAX_SIZE = 64;
+
+    // intersection over union, row major with a row per detection
+    private float[] iou = new float[0];
+    private int detections;
+    private int tracks;
+    private int[] trackOfDetection = new int[0];
+    private int[] detectionOfTrack = new int[0];
+
+    // Hungarian method, 1-based with the padded square size n: potentials of the rows and columns,
+    // row assigned to each column, previous column on the augmenting path
+    private float[] rowPotentials = new float[1];
+    private float[] columnPotentials = new float[1];
+    private float[] minSlack = new float[1];
+    private int[] columnRows = new int[1];
+    private int[] previousColumns = new int[1];
+    private boolean[] visitedColumns = new boolean[1];
+
+    // greedy: candidate pairs, the iou bits in the upper half and the matrix index in the lower
+    private long[] pairs = new long[0];
+
+    /**
+     * @return intersection over union of the boxes [left, top, right, bottom] at the offsets.
+     */
+    static float iou(float[] a, int aOffset, float[] b, int bOffset) {
+        final float intersectWidth = Math.min(a[aOffset + 2], b[bOffset + 2]) - Math.max(a[aOffset], b[bOffset]);
+        final float intersectHeight = Math.min(a[aOffset + 3], b[bOffset + 3]) - Math.max(a[aOffset + 1], b[bOffset + 1]);
+        if (intersectWidth <= 0 || intersectHeight <= 0) {
+            return 0;
+        }
+        final float intersectArea = intersectWidth * intersectHeight;
+        final float areaA = (a[aOffset + 2] - a[aOffset]) * (a[aOffset + 3] - a[aOffset + 1]);
+        final float areaB = (b[bOffset + 2] - b[bOffset]) * (b[bOffset + 3] - b[bOffset + 1]);
+        return intersectArea / (areaA + areaB - intersectArea);
+    }
+
+    /**
+     * Start a new matrix with all overlaps 0.
+     */
+    void setSize(int detections, int tracks) {
+        this.detections = detections;
+        this.tracks = tracks;
+        final int cells = detections * tracks;
+        if (iou.length < cells) {
+            iou = new float[cells];
+        } else {
+            Arrays.fill(iou, 0, cells, 0);
+        }
+        if (trackOfDetection.length < detections) {
+            trackOfDetection = new int[detections];
+        }
+        if (detectionOfTrack.length < tracks) {
+            detectionOfTrack = new int[tracks];
+        }
+    }
+
+    /**
+     * Fill the matrix from boxes given as [left, top, right, bottom] one after the other.
+     */
+    void computeIou(float[] detectionBoxes, int detections, float[] trackBoxes, int tracks) {
+        setSize(detections, tracks);
+        for (int d = 0; d < detections; d++) {
+            for (int t = 0; t < tracks; t++) {
+                iou[d * tracks + t] = iou(detectionBoxes, d * 4, trackBoxes, t * 4);
+            }
+        }
+    }
+
+    void setIou(int detection, int track, float value) {
+        iou[detection * tracks + track] = value;
+    }
+
+    float getIou(int detection, int track) {
+        return iou[detection * tracks + track];
+    }
+
+    /**
+     * Assign the detections, pairs need an overlap above minIou.
+     */
+    void solve(float minIou) {
+        if (Math.max(detections, tracks) <= HUNGARIAN_MAX_SIZE) {
+            solveHungarian(minIou);
+        } else {
+            solveGreedy(minIou);
+        }
+    }
+
+    /**
+     * @return the track assigned to the detection, -1 if none.
+     */
+    int getTrack(int detection) {
+        return trackOfDetection[detection];
+    }
+
+    /**
+     * @return the detection assigned to the track, -1 if none.
+     */
+    int getDetection(int track) {
+        return detectionOfTrack[track];
+    }
+
+    void solveHungarian(float minIou) {
+        clearAssignment();
+        final int n = Math.max(detections, tracks);
+        if (n == 0) {
+            return;
+        }
+        if (columnRows.length < n + 1) {
+            rowPotentials = new float[n + 1];
+            columnPotentials = new float[n + 1];
+            minSlack = new float[n + 1];
+            columnRows = new int[n + 1];
+            previousColumns = new int[n + 1];
+            visitedColumns = new boolean[n + 1];
+        }
+        Arrays.fill(rowPotentials, 0, n + 1, 0);
+        Arrays.fill(columnPotentials, 0, n + 1, 0);
+        Arrays.fill(columnRows, 0, n + 1, 0);
+
+        // minimize the cost 1 - iou on the matrix padded to n x n, pairs which are not allowed and
+        // the padding cost 1 like no overlap
+        for (int row = 1; row <= n; row++) {
+            columnRows[0] = row;
+            int column = 0;
+            Arrays.fill(minSlack, 0, n + 1, Float.MAX_VALUE);
+            Arrays.fill(visitedColumns, 0, n + 1, false);
+            do {
+                visitedColumns[column] = true;
+                final int columnRow = columnRows[column];
+                float delta = Float.MAX_VALUE;
+                int nextColumn = 0;
+                for (int j = 1; j <= n; j++) {
+                    if (visitedColumns[j]) {
+                        continue;
+                    }
+                    final float slack = cost(columnRow - 1, j - 1, minIou) - rowPotentials[columnRow] - columnPotentials[j];
+                    if (slack < minSlack[j]) {
+                        minSlack[j] = slack;
+                        previousColumns[j] = column;
+                    }
+                    if (minSlack[j] < delta) {
+                        delta = minSlack[j];
+                        nextColumn = j;
+                    }
+                }
+                for (int j = 0; j <= n; j++) {
+                    if (visitedColumns[j]) {
+                        rowPotentials[columnRows[j]] += delta;
+                        columnPotentials[j] -= delta;
+                    } else {
+                        minSlack[j] -= delta;
+                    }
+                }
+                column = nextColumn;
+            } while (columnRows[column] != 0);
+            // augment along the path back to the virtual column 0
+            do {
+                final int previous = previousColumns[column];
+                columnRows[column] = columnRows[previous];
+                column = previous;
+            } while (column != 0);
+        }
+
+        for (int j = 1; j <= tracks; j++) {
+            final int d = columnRows[j] - 1;
+            if (d < detections && iou[d * tracks + j - 1] > minIou) {
+                assign(d, j - 1);
+            }
+        }
+    }
+
+    void solveGreedy(float minIou) {
+        clearAssignment();
+        final int cells = detections * tracks;
+        if (pairs.length < cells) {
+            pairs = new long[cells];
+        }
+        int count = 0;
+        for (int i = 0; i < cells; i++) {
+            if (iou[i] > minIou) {
+                // the bits of positive floats sort like their values
+                pairs[count++] = ((long) Float.floatToIntBits(iou[i]) << 32) | i;
+            }
+        }
+        Arrays.sort(pairs, 0, count);
+        for (int p = count - 1; p >= 0; p--) {
+            final int i = (int) pairs[p];
+            final int d = i / tracks;
+            final int t = i % tracks;
+            if (trackOfDetection[d] < 0 && detectionOfTrack[t] < 0) {
+                assign(d, t);
+            }
+        }
+    }
+
+    private float cost(int detection, int track, float minIou) {
+        if (detection >= detections || track >= tracks) {
+            return 1;
+        }
+        final float value = iou[detection * tracks + track];
+        return value > minIou ? 1 - value : 1;
+    }
+
+    private void clearAssignment() {
+        Arrays.fill(trackOfDetection, 0, detections, -1);
+        Arrays.fill(detectionOfTrack, 0, tracks, -1);
+    }
+
+    private void assign(int detection, int track) {
+        trackOfDetection[detection] = track;
+        detectionOfTrack[track] = detection;
+    }
+}
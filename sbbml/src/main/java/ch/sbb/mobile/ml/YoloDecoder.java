@@ -0,0 +1,113 @@
+/*
+ * Copyright 2022 SBB AG. License: CC0-1.0
+ */
+package ch.sbb.mobile.ml;
+
+/*
+ * Decodes the raw output of a YOLOv5 model exported without the NMS graph ops. The output holds a
+ * row of (center x, center y, width, height, objectness, class scores...) for every anchor, all
+ * normalized to 0..1 and already passed through the sigmoid. The results are written in the format
+ * of the models with embedded post-processing, so both kinds are mapped the same way afterwards.
+ */
+class YoloDecoder {
+
+    /**
+     * Upper limit of the detections per frame, the models with embedded NMS return about as many.
+     */
+    static final int MAX_DETECTIONS = 100;
+
+    private static final int BOX_VALUES = 5;
+
+    private final int numberOfAnchors;
+    private final int numberOfClasses;
+    private final int maxDetections;
+
+    // candidates above the confidence threshold, reused for every frame
+    private final float[] top;
+    private final float[] left;
+    private final float[] bottom;
+    private final float[] right;
+    private final float[] scores;
+    // the scores are consumed by the suppression
+    private final float[] candidateConfidences;
+    private final int[] classes;
+    private final int[] selected;
+
+    YoloDecoder(int numberOfAnchors, int numberOfClasses, int maxDetections) {
+        this.numberOfAnchors = numberOfAnchors;
+        this.numberOfClasses = numberOfClasses;
+        this.maxDetections = maxDetections;
+        top = new float[numberOfAnchors];
+        left = new float[numberOfAnchors];
+        bottom = new float[numberOfAnchors];
+        right = new float[numberOfAnchors];
+        scores = new float[numberOfAnchors];
+        candidateConfidences = new float[numberOfAnchors];
+        classes = new int[numberOfAnchors];
+        selected = new int[maxDetections];
+    }
+
+    int getRowLength() {
+        return BOX_VALUES + numberOfClasses;
+    }
+
+    int getMaxDetections() {
+        return maxDetections;
+    }
+
+    /**
+     * @param output    the raw output, numberOfAnchors rows of {@link #getRowLength()} values
+     * @param locations receives the boxes as [top, left, bottom, right], normalized
+     * @param categories receives the class index of every box
+     * @param confidences receives objectness times class score of every box
+     * @return number of detections, at most maxDetections
+     */
+    int decode(float[] output, float minimumConfidence, float iouThreshold,
+               float[][] locations, float[] categories, float[] confidences) {
+        final int rowLength = getRowLength();
+        int count = 0;
+        for (int anchor = 0, row = 0; anchor < numberOfAnchors; anchor++, row += rowLength) {
+            final float objectness = output[row + 4];
+            // the class score is at most 1, so most anchors are rejected before looking at the classes
+            if (objectness < minimumConfidence) {
+                continue;
+            }
+            int bestClass = 0;
+            float bestClassScore = output[row + BOX_VALUES];
+            for (int c = 1; c < numberOfClasses; c++) {
+                final float classScore = output[row + BOX_VALUES + c];
+                if (classScore > bestClassScore) {
+                    bestClassScore = classScore;
+                    bestClass = c;
+                }
+            }
+            final float confidence = objectness * bestClassScore;
+            if (confidence < minimumConfidence || confidence <= 0) {
+                continue;
+            }
+            final float halfWidth = output[row + 2] / 2;
+            final float halfHeight = output[row + 3] / 2;
+            top[count] = output[row + 1] - halfHeight;
+            left[count] = output[row] - halfWidth;
+            bottom[count] = output[row + 1] + halfHeight;
+            right[count] = output[row] + halfWidth;
+            scores[count] = confidence;
+            candidateConfidences[count] = confidence;
+            classes[count] = bestClass;
+            count++;
+        }
+
+        final int numSelected = NonMaxSuppression.select(top, left, bottom, right, scores, classes, count,
+                iouThreshold, maxDetections, selected);
+        for (int i = 0; i < numSelected; i++) {
+            final int candidate = selected[i];
+            locations[i][0] = top[candidate];
+            locations[i][1] = left[candidate];
+            locations[i][2] = bottom[candidate];
+            locations[i][3] = right[candidate];
+            categories[i] = classes[candidate];
+            confidences[i] = candidateConfidences[candidate];
+        }
+        return numSelected;
+    }
+}